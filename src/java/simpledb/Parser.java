@@ -16,6 +16,8 @@ import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.IntField;
+import simpledb.storage.LockManagerMonitor;
+import simpledb.storage.LogFileMonitor;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -594,6 +596,9 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        // lock contention and commit latency can be watched with any JMX console
+        LockManagerMonitor.register();
+        LogFileMonitor.register();
 
         String queryFile = null;
 
@@ -2,9 +2,11 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.ReplacementPolicy;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 /**
  * Database is a class that initializes several static variables used by the
@@ -13,11 +15,18 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
+ * <p>
+ * Besides the static instance, further isolated databases (each with its own
+ * catalog, buffer pool, page size and log) can be built with
+ * {@link #create(BufferPool, File)}. A thread that calls {@link #bind} sees
+ * that database through the static accessors until it calls {@link #unbind}.
  * 
  * @Threadsafe
  */
 public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
+    //绑定到当前线程的数据库 未绑定的线程使用_instance
+    private static final ThreadLocal<Database> _bound = new ThreadLocal<>();
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
 
@@ -38,19 +47,64 @@ public class Database {
         // startControllerThread();
     }
 
-    /** Return the log file of the static Database instance */
+    private Database(BufferPool bufferPool, LogFile logFile) {
+        _catalog = new Catalog();
+        _bufferpool = bufferPool;
+        _logfile = logFile;
+    }
+
+    /**
+     * Create a database that shares no state with the static instance: it
+     * has an empty catalog, the given buffer pool and a log in logFile.
+     * Use {@link #bind} to make a thread work on it.
+     *
+     * @param bufferPool the buffer pool of the new database, which also fixes its page size
+     * @param logFile the file the new database writes its log to
+     */
+    public static Database create(BufferPool bufferPool, File logFile) throws IOException {
+        return new Database(bufferPool, new LogFile(logFile));
+    }
+
+    /**
+     * Make the static accessors of the calling thread return the catalog,
+     * buffer pool and log file of the given database.
+     */
+    public static void bind(Database db) {
+        _bound.set(db);
+    }
+
+    /** Make the calling thread use the static Database instance again */
+    public static void unbind() {
+        _bound.remove();
+    }
+
+    /** 当前线程使用的数据库 */
+    private static Database current() {
+        Database db = _bound.get();
+        return db != null ? db : _instance.get();
+    }
+
+    /**
+     * Return the Database the calling thread works on, so that work handed
+     * to another thread can {@link #bind} it there.
+     */
+    public static Database getCurrent() {
+        return current();
+    }
+
+    /** Return the log file of the Database the calling thread works on */
     public static LogFile getLogFile() {
-        return _instance.get()._logfile;
+        return current()._logfile;
     }
 
-    /** Return the buffer pool of the static Database instance */
+    /** Return the buffer pool of the Database the calling thread works on */
     public static BufferPool getBufferPool() {
-        return _instance.get()._bufferpool;
+        return current()._bufferpool;
     }
 
-    /** Return the catalog of the static Database instance */
+    /** Return the catalog of the Database the calling thread works on */
     public static Catalog getCatalog() {
-        return _instance.get()._catalog;
+        return current()._catalog;
     }
 
     /**
@@ -58,21 +112,59 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * using the given replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * split into the given number of partitions and return it
+     */
+    public static BufferPool resetBufferPool(int pages, int partitions, Supplier<ReplacementPolicy> policyFactory) {
+        return resetBufferPool(new BufferPool(pages, partitions, policyFactory));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
+        stopBackgroundThreads(current()._bufferpool);
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(current(), bufferPool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
 //        _instance._bufferpool = new BufferPool(pages);
-        return _instance.get()._bufferpool;
+        return current()._bufferpool;
     }
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        stopBackgroundThreads(_instance.get()._bufferpool);
+        try {
+            _instance.get()._logfile.stopGroupCommit();
+            _instance.get()._logfile.stopCheckpointScheduler();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         _instance.set(new Database());
     }
 
+    //丢弃缓冲池之前停止它的后台线程：写回已提交的页面，关闭预读
+    private static void stopBackgroundThreads(BufferPool bufferPool) {
+        bufferPool.setReadAheadWindow(0);
+        try {
+            bufferPool.stopPageWriter();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
 }
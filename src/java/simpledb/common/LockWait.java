@@ -0,0 +1,13 @@
+package simpledb.common;
+
+/**
+ * What a request does when a lock it needs is held by another transaction.
+ */
+public enum LockWait {
+    /** Wait until the lock is granted, the lock timeout expires or the transaction is chosen as a deadlock victim */
+    WAIT,
+    /** Fail right away with a LockNotAvailableException */
+    NOWAIT,
+    /** Leave the locked page or tuple out, as if it weren't there */
+    SKIP_LOCKED
+}
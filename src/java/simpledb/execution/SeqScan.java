@@ -6,7 +6,11 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.common.LockWait;
+import simpledb.common.Permissions;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -47,11 +51,34 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, Permissions.READ_ONLY, LockWait.WAIT);
+    }
+
+    /**
+     * Creates a sequential scan that locks the tuples it reads with the given
+     * permissions and handles tuples locked by other transactions as chosen
+     * by wait (see {@link HeapFile#iterator(TransactionId, Permissions, LockWait)}).
+     * Only heap files support scans other than READ_ONLY with WAIT.
+     *
+     * @param tid the transaction this scan is running as a part of
+     * @param tableid the table to scan
+     * @param tableAlias the alias of this table
+     * @param perm READ_WRITE to keep the tuples read locked for an update
+     * @param wait what to do with tuples locked by other transactions
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, Permissions perm, LockWait wait) {
         // some code goes here
         this.tid=tid;
         this.tableId=tableid;
         this.tableAlias=tableAlias;
-        this.tableIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if(file instanceof HeapFile){
+            this.tableIterator = ((HeapFile) file).iterator(tid, perm, wait);
+        }else if(perm==Permissions.READ_ONLY&&wait==LockWait.WAIT){
+            this.tableIterator = file.iterator(tid);
+        }else{
+            throw new IllegalArgumentException("table " + tableid + " only supports READ_ONLY scans that wait for locks");
+        }
     }
 
     /**
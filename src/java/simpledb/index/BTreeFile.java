@@ -35,6 +35,8 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	// long-lived channel used by every page read and write of this file
+	private final FileHandle handle;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -49,6 +51,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.handle = new FileHandle(f);
 	}
 
 	/**
@@ -90,11 +93,11 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
+                int retval = handle.read(pageBuf, 0);
+                if (retval == 0) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
                 if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -105,13 +108,9 @@ public class BTreeFile implements DbFile {
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
+                int retval = handle.read(pageBuf,
+                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize());
+                if (retval == 0) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
                 if (retval < BufferPool.getPageSize()) {
@@ -130,10 +129,28 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
     }
 
+	// see DbFile.java for javadocs
+	@Override
+	public Page decodePage(PageId pid, byte[] data) {
+		BTreePageId id = (BTreePageId) pid;
+		try {
+			switch (id.pgcateg()) {
+				case BTreePageId.ROOT_PTR:
+					return new BTreeRootPtrPage(id, data);
+				case BTreePageId.INTERNAL:
+					return new BTreeInternalPage(id, data, keyField);
+				case BTreePageId.LEAF:
+					return new BTreeLeafPage(id, data, keyField);
+				default:
+					return new BTreeHeaderPage(id, data);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -144,15 +161,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			handle.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			handle.write(data, BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
 		}
 	}
 	
@@ -172,80 +185,122 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, and lock it with permission perm.
+	 * 
+	 * The root pointer and the internal pages on the way down are not locked. They are
+	 * read under shared latches, coupling the latch of each page with the latch of its
+	 * parent ("latch crabbing"), so a search holds at most two latches at a time and
+	 * never waits for a transaction that inserted into another part of the tree. The
+	 * leaf lock is requested while the parent is still latched: the parent's pointer
+	 * to the leaf can't change during that time, and once the leaf is locked its key
+	 * range can only change by modifying the leaf itself. If the lock isn't granted
+	 * right away, the latches are released before waiting for it and the search
+	 * starts over from the root.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-
-		//对要搜索的页进行分类判断
-		switch(pid.pgcateg()){
-			//当前页面是叶节点页 说明找到目标域f所在的页
-			case BTreePageId.LEAF:
-				//Database.getBufferPool().lockManager.unTransactionIdlock(tid);
-				return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
-			//当前页是内部页 说明还未找到目标域f所在的叶节点页
-			case BTreePageId.INTERNAL:
-				//Database.getBufferPool().lockManager.unTransactionIdlock(tid);
-				//先通过页id获取内部页
-				BTreeInternalPage internalPage = (BTreeInternalPage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-
-				//获取内部页的迭代器，先查看内部页是否包含entry
-				Iterator<BTreeEntry> iterator = internalPage.iterator();
-				//若不包含entry 抛出异常
-				if(iterator==null||!iterator.hasNext()) throw new DbException("不包含entry");
-				//若f为null 按照讲义要求需要不断递归左子树，直到找到最左子节点页
-				if(f==null){
-					return findLeafPage(tid,dirtypages,iterator.next().getLeftChild(),Permissions.READ_ONLY,f);
-				}
-				// 若f不为null则在内部页找到属于f的区间，进行比较，依据大小情况递归到左还是右子树
-				BTreeEntry entry = null;
-				while(iterator.hasNext()){
-					 entry =iterator.next();
-					//与内部页中的entry一一比较 如果当前entry的key大于f 说明f所在的叶子页在entry的左子树中，向下递归
-					if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)){
-						return findLeafPage(tid,dirtypages,entry.getLeftChild(),Permissions.READ_ONLY,f);
+		while(true) {
+			Page parent = latchUnlocked(dirtypages, BTreeRootPtrPage.getId(tableid));
+			BTreePageId pid = ((BTreeRootPtrPage) parent).getRootId();
+			Page leaf;
+			try {
+				while(pid.pgcateg() == BTreePageId.INTERNAL) {
+					Page child = dirtypages.containsKey(pid) ? dirtypages.get(pid)
+							: Database.getBufferPool().getUnlockedPage(pid);
+					if(!child.getLatch().tryShared()) {
+						// a writer is changing the child: wait for it holding no latch, then retry
+						parent.getLatch().releaseShared();
+						parent = null;
+						child.getLatch().shared();
+						child.getLatch().releaseShared();
+						break;
 					}
+					parent.getLatch().releaseShared();
+					parent = child;
+					if(!child.getLatch().isValid()) break;
+					pid = childOf((BTreeInternalPage) child, f);
 				}
-				//到此处，说明当且内部页中的所有entry都小于f 也就是说f不属于当前内部页的子树范畴，应该向右子树递归
-				return findLeafPage(tid,dirtypages,entry.getRightChild(),Permissions.READ_ONLY,f);
-			case BTreePageId.ROOT_PTR:
-			case BTreePageId.HEADER:
-			default:
-				throw new DbException("页面错误！");
+				if(parent == null || !parent.getLatch().isValid()) continue;
+				if(pid.pgcateg() != BTreePageId.LEAF) throw new DbException("页面错误！");
+				leaf = dirtypages.containsKey(pid) ? dirtypages.get(pid)
+						: Database.getBufferPool().tryGetPage(tid, pid, perm);
+			} finally {
+				if(parent != null) parent.getLatch().releaseShared();
+			}
+			if(leaf == null) {
+				// never wait for a lock while holding latches; an insert or delete undoes
+				// what it did so far before waiting, see LatchedPages
+				if(dirtypages instanceof LatchedPages) throw new LockConflict(pid, perm);
+				Database.getBufferPool().getPage(tid, pid, perm);
+				continue;
+			}
+			return (BTreeLeafPage) track(dirtypages, leaf, perm);
 		}
+	}
 
+	/**
+	 * Return the child of an internal page whose subtree holds the left-most tuple
+	 * with key f, or the left-most child if f is null.
+	 */
+	private BTreePageId childOf(BTreeInternalPage internalPage, Field f) throws DbException {
+		//获取内部页的迭代器，先查看内部页是否包含entry
+		Iterator<BTreeEntry> iterator = internalPage.iterator();
+		//若不包含entry 抛出异常
+		if(iterator==null||!iterator.hasNext()) throw new DbException("不包含entry");
+		//若f为null 按照讲义要求需要不断向左子树查找，直到找到最左子节点页
+		if(f==null){
+			return iterator.next().getLeftChild();
+		}
+		// 若f不为null则在内部页找到属于f的区间，进行比较，依据大小情况向左还是右子树查找
+		BTreeEntry entry = null;
+		while(iterator.hasNext()){
+			entry =iterator.next();
+			//与内部页中的entry一一比较 如果当前entry的key大于f 说明f所在的叶子页在entry的左子树中
+			if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)){
+				return entry.getLeftChild();
+			}
+		}
+		//到此处，说明当且内部页中的所有entry都小于f 也就是说f不属于当前内部页的子树范畴，应该向右子树查找
+		return entry.getRightChild();
+	}
+
+	/**
+	 * Latch a page that is read without a lock (the root pointer page) in shared mode.
+	 * Must not be called while holding latches on pages other than those in dirtypages.
+	 */
+	private Page latchUnlocked(Map<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+		while(true) {
+			Page p = dirtypages.containsKey(pid) ? dirtypages.get(pid) : Database.getBufferPool().getUnlockedPage(pid);
+			p.getLatch().shared();
+			if(p.getLatch().isValid()) return p;
+			p.getLatch().releaseShared();
+		}
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Used by the BTreeFile iterator; the leaf page is locked READ_ONLY.
+	 * @see #findLeafPage(TransactionId, Map, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_WRITE, f);
+		return findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, f);
 	}
 
 	/**
@@ -291,6 +346,13 @@ public class BTreeFile implements DbFile {
 
 
 //		myLogger.logger.debug("当前页面已满，进行分裂叶子节点操作。");
+		//先锁住右兄弟和父母节点，被其他事务锁住时在分配新页面之前就重新开始，不会白白增加文件的页面
+		if(page.getRightSiblingId()!=null){
+			getPage(tid, dirtypages, page.getRightSiblingId(), Permissions.READ_WRITE);
+		}
+		if(page.getParentId().pgcateg()==BTreePageId.INTERNAL){
+			getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+		}
 		//1.创建页面
 		BTreeLeafPage newRight=(BTreeLeafPage) getEmptyPage(tid,dirtypages,BTreePageId.LEAF);
 		//开始复制操作 分裂成完整的两部分
@@ -575,7 +637,11 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child)
 			throws DbException, TransactionAbortedException {
 
-		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		// only a transaction that holds pid exclusively can point a child at pid or away
+		// from it, so the pointer is checked without a lock; the child is locked only
+		// when it has to change
+		BTreePage p = (BTreePage) (dirtypages.containsKey(child) ? dirtypages.get(child)
+				: Database.getBufferPool().getUnlockedPage(child));
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
@@ -610,14 +676,173 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			Page p;
+			if(dirtypages instanceof LatchedPages) {
+				// inserts and deletes hold latches, so they must not wait for a lock here
+				p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+				if(p == null) throw new LockConflict(pid, perm);
+			}
+			else {
+				p = Database.getBufferPool().getPage(tid, pid, perm);
+			}
 			//myLogger.logger.info("从缓冲区中获取的页面。。");
-			if(perm == Permissions.READ_WRITE) {
-				dirtypages.put(pid, p);
+			return track(dirtypages, p, perm);
+		}
+	}
+
+	/**
+	 * Add a page fetched with read-write permission to dirtypages. Pages of an insert
+	 * or delete are latched exclusively first.
+	 */
+	private Page track(Map<PageId, Page> dirtypages, Page p, Permissions perm) throws DbException {
+		if(perm == Permissions.READ_WRITE && !dirtypages.containsKey(p.getId())) {
+			if(dirtypages instanceof LatchedPages) p = ((LatchedPages) dirtypages).put(p);
+			else dirtypages.put(p.getId(), p);
+		}
+		return p;
+	}
+
+	/**
+	 * The dirty pages of one insertTuple or deleteTuple call. Every page in it
+	 * is latched exclusively from the moment it is fetched for writing until
+	 * the operation returns, so splits and merges are never seen half done;
+	 * the page locks stay until the transaction ends.
+	 *
+	 * Latches are taken bottom-up while searches crab top-down, so the operation
+	 * never waits for a lock while holding them: if a page is locked by another
+	 * transaction, the pages are restored to their contents from when they were
+	 * latched, the latches are released, and the operation starts over once the
+	 * lock is granted.
+	 */
+	private static class LatchedPages extends AbstractMap<PageId, Page> {
+		private final TransactionId tid;
+		private final Map<PageId, Page> pages = new HashMap<>();
+		// page contents from when the page was latched
+		private final Map<PageId, byte[]> before = new HashMap<>();
+
+		LatchedPages(TransactionId tid) {
+			this.tid = tid;
+		}
+
+		/**
+		 * Latch a page fetched with a lock and add it, refetching it if it left the
+		 * pool meanwhile. This is the only way pages are added; Map.put is not supported.
+		 * @return the page that was latched
+		 */
+		Page put(Page p) throws DbException {
+			while(true) {
+				p.getLatch().exclusive();
+				if(p.getLatch().isValid()) break;
+				p.getLatch().releaseExclusive();
+				p = Database.getBufferPool().getUnlockedPage(p.getId());
 			}
+			before.put(p.getId(), p.getPageData());
+			pages.put(p.getId(), p);
+			return p;
+		}
+
+		@Override
+		public Page get(Object pid) {
+			return pages.get(pid);
+		}
+
+		@Override
+		public boolean containsKey(Object pid) {
+			return pages.containsKey(pid);
+		}
+
+		// pages dropped from the cache (e.g. reused empty pages) are unlatched right away
+		@Override
+		public Page remove(Object pid) {
+			Page p = pages.remove(pid);
+			before.remove(pid);
+			if (p != null) unlatch(p);
 			return p;
 		}
+
+		@Override
+		public Collection<Page> values() {
+			return Collections.unmodifiableCollection(pages.values());
+		}
+
+		@Override
+		public Set<Map.Entry<PageId, Page>> entrySet() {
+			return Collections.unmodifiableMap(pages).entrySet();
+		}
+
+		/** Undo every change made to the pages since they were latched */
+		void rollback() throws IOException {
+			for (Map.Entry<PageId, byte[]> e : before.entrySet()) {
+				Page p = get(e.getKey());
+				if (p instanceof BTreePage) ((BTreePage) p).restore(e.getValue());
+				else if (p instanceof BTreeRootPtrPage) ((BTreeRootPtrPage) p).restore(e.getValue());
+				else if (p instanceof BTreeHeaderPage) ((BTreeHeaderPage) p).restore(e.getValue());
+			}
+		}
+
+		/**
+		 * Mark the pages dirty while they are still latched; a modified page that
+		 * looks clean could be evicted as soon as its latch is released.
+		 */
+		List<Page> finish() {
+			for (Page p : values()) p.markDirty(true, tid);
+			return new ArrayList<>(values());
+		}
+
+		void release() {
+			for (Page p : values()) unlatch(p);
+		}
+
+		private static void unlatch(Page p) {
+			if (p.getLatch().isHeldExclusively()) p.getLatch().releaseExclusive();
+		}
+	}
+
+	/**
+	 * Thrown inside an insert or delete when a page it needs is locked by another
+	 * transaction.
+	 */
+	private static class LockConflict extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final BTreePageId pid;
+		final Permissions perm;
+
+		LockConflict(BTreePageId pid, Permissions perm) {
+			super(null, null, false, false);
+			this.pid = pid;
+			this.perm = perm;
+		}
+	}
+
+	/** An insert or delete running on the pages in dirtypages */
+	private interface Update {
+		void run(LatchedPages dirtypages) throws DbException, IOException, TransactionAbortedException;
+	}
+
+	/**
+	 * Run an insert or delete, starting it over after every lock conflict. The lock
+	 * that got in the way is waited for with no latch held and kept for the next try.
+	 * An update that fails with an exception leaves the pages as they were.
+	 * @return the pages dirtied by the update
+	 */
+	private List<Page> latched(TransactionId tid, Update update)
+			throws DbException, IOException, TransactionAbortedException {
+		while(true) {
+			LatchedPages dirtypages = new LatchedPages(tid);
+			LockConflict conflict;
+			boolean done = false;
+			try {
+				update.run(dirtypages);
+				done = true;
+				return dirtypages.finish();
+			} catch(LockConflict e) {
+				conflict = e;
+			} finally {
+				if(!done) dirtypages.rollback();
+				dirtypages.release();
+			}
+			Database.getBufferPool().getPage(tid, conflict.pid, conflict.perm);
+		}
 	}
 
 	/**
@@ -630,31 +855,33 @@ public class BTreeFile implements DbFile {
 	 * many pages since parent pointers will need to be updated when an internal node splits.
 	 * @see #splitLeafPage(TransactionId, Map, BTreeLeafPage, Field)
 	 *
-	 * Every internal (non-leaf) page your findLeafPage() implementation visits
-	 * should be fetched with READ_ONLY permission, except the returned leaf page,
-	 * which should be fetched with the permission provided as an argument to the function.
-	 * These permission levels will not matter for this lab,
-	 * but they will be important for the code to function correctly in future labs.
+	 * Only the leaf page and the pages changed by splits are locked; the internal
+	 * pages on the way to the leaf are latched while they are read, see
+	 * findLeafPage().
 	 */
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		Map<PageId, Page> dirtypages = new HashMap<>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		return latched(tid, dirtypages -> insertTuple(tid, dirtypages, t));
+	}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+	private void insertTuple(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		createIfEmpty();
+		Page rootPtr = latchUnlocked(dirtypages, rootPtrId);
+		BTreePageId rootId = ((BTreeRootPtrPage) rootPtr).getRootId();
+		rootPtr.getLatch().releaseShared();
+
+		if(rootId == null) { // the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage lockedRootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			if(lockedRootPtr.getRootId() == null) {
+				lockedRootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			}
 		}
 
-
-//		myLogger.logger.debug(rootId);
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
 		myLogger.logger.debug("当前页面叶子节点已满，进行分页操作......");
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
@@ -662,8 +889,6 @@ public class BTreeFile implements DbFile {
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
-
-        return new ArrayList<>(dirtypages.values());
 	}
 
 	/**
@@ -1028,7 +1253,7 @@ public class BTreeFile implements DbFile {
 		//5.
 		leftPage.setRightSiblingId(rightSiblingId);
 		if(rightSiblingId!=null){
-			BTreeLeafPage bTreeLeafPage =(BTreeLeafPage)getPage(tid,dirtypages,rightSiblingId,Permissions.READ_ONLY);
+			BTreeLeafPage bTreeLeafPage =(BTreeLeafPage)getPage(tid,dirtypages,rightSiblingId,Permissions.READ_WRITE);
 			bTreeLeafPage.setLeftSiblingId(leftPage.getId());
 		}
 
@@ -1154,7 +1379,16 @@ public class BTreeFile implements DbFile {
 	 */
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		Map<PageId, Page> dirtypages = new HashMap<>();
+		// deleting the tuple from its page clears its record id; a retry needs it back
+		RecordId rid = t.getRecordId();
+		return latched(tid, dirtypages -> {
+			t.setRecordId(rid);
+			deleteTuple(tid, dirtypages, t);
+		});
+	}
+
+	private void deleteTuple(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
@@ -1167,8 +1401,6 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
-
-        return new ArrayList<>(dirtypages.values());
 	}
 
 	/**
@@ -1183,23 +1415,25 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 */
+	private synchronized void createIfEmpty() throws IOException {
+		if(f.length() == 0) {
+			// create the root pointer page and the root page
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			handle.write(emptyRootPtrData, 0);
+			handle.write(emptyLeafData, emptyRootPtrData.length);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1248,11 +1482,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				handle.write(emptyData, f.length());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1282,15 +1513,14 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
-		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
-		
-		// make sure the page is not in the buffer pool	or in the local cache		
+		// make sure the page is not in the buffer pool	or in the local cache
+		// (and that no pending background write overwrites the empty page)
 		Database.getBufferPool().discardPage(newPageId);
 		dirtypages.remove(newPageId);
+
+		// write empty page to disk
+		handle.write(BTreePage.createEmptyPageData(),
+				BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1416,6 +1646,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BufferRing ring = null;
+	ReadAhead readAhead = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1434,11 +1666,15 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curp = f.findLeafPage(tid, null);
 		it = curp.iterator();
+		// large trees read their leaf chain through a scan ring so that the
+		// internal pages stay cached
+		ring = Database.getBufferPool().newScanRing(f.numPages());
+		// the leaf chain is read ahead by following right sibling pointers
+		readAhead = Database.getBufferPool().newReadAhead(p -> ((BTreeLeafPage) p).getRightSiblingId());
+		if (readAhead != null)
+			readAhead.access(curp);
 	}
 
 	/**
@@ -1459,7 +1695,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, ring);
+				if (readAhead != null)
+					readAhead.access(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1486,6 +1724,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		ring = null;
+		readAhead = null;
 	}
 }
 
@@ -1519,16 +1759,13 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
 			//myLogger.logger.debug("当前插入元组所在的页面为："+curp.getId());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
 		}
 		it = curp.iterator();
 	}
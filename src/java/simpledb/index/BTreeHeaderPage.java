@@ -7,6 +7,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Page;
+import simpledb.storage.PageLatch;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
@@ -35,6 +36,10 @@ public class BTreeHeaderPage implements Page {
 
 	byte[] oldData;
 	private final Byte oldDataLock= (byte) 0;
+	// latch guarding the in-memory contents, see PageLatch
+	private final PageLatch latch = new PageLatch();
+	// LSN of the log record of the last update, kept in memory only
+	private volatile long pageLSN;
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -122,6 +127,30 @@ public class BTreeHeaderPage implements Page {
 		}
 	}
 
+	/**
+	 * Overwrite the contents of this page in place with the given page data,
+	 * keeping the dirty flag and the before image.
+	 * @see BTreePage#restore(byte[])
+	 */
+	void restore(byte[] data) throws IOException {
+		BTreeHeaderPage copy = new BTreeHeaderPage(pid, data);
+		nextPage = copy.nextPage;
+		prevPage = copy.prevPage;
+		System.arraycopy(copy.header, 0, header, 0, header.length);
+	}
+
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	public long getPageLSN() {
+		return pageLSN;
+	}
+
+	public void setPageLSN(long lsn) {
+		pageLSN = lsn;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -116,6 +116,16 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	@Override
+	void restore(byte[] data) throws IOException {
+		BTreeInternalPage copy = new BTreeInternalPage(pid, data, keyField);
+		parent = copy.parent;
+		childCategory = copy.childCategory;
+		System.arraycopy(copy.header, 0, header, 0, header.length);
+		System.arraycopy(copy.keys, 0, keys, 0, keys.length);
+		System.arraycopy(copy.children, 0, children, 0, children.length);
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
@@ -114,6 +114,16 @@ public class BTreeLeafPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	@Override
+	void restore(byte[] data) throws IOException {
+		BTreeLeafPage copy = new BTreeLeafPage(pid, data, keyField);
+		parent = copy.parent;
+		leftSibling = copy.leftSibling;
+		rightSibling = copy.rightSibling;
+		System.arraycopy(copy.header, 0, header, 0, header.length);
+		System.arraycopy(copy.tuples, 0, tuples, 0, tuples.length);
+	}
+
 	/** 
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
@@ -1,11 +1,14 @@
 package simpledb.index;
 
+import java.io.IOException;
+
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Page;
+import simpledb.storage.PageLatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -30,6 +33,10 @@ public abstract class BTreePage implements Page {
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
+	// latch guarding the in-memory contents, see PageLatch
+	private final PageLatch latch = new PageLatch();
+	// LSN of the log record of the last update, kept in memory only
+	private volatile long pageLSN;
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -60,6 +67,18 @@ public abstract class BTreePage implements Page {
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	public long getPageLSN() {
+		return pageLSN;
+	}
+
+	public void setPageLSN(long lsn) {
+		pageLSN = lsn;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -144,5 +163,13 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
+	/**
+	 * Overwrite the contents of this page in place with the given page data,
+	 * keeping the dirty flag and the before image. Used to undo an insert or
+	 * delete that could not finish while other threads may still hold a
+	 * reference to this page object.
+	 */
+	abstract void restore(byte[] data) throws IOException;
+
 }
 
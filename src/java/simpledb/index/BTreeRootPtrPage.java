@@ -3,6 +3,7 @@ package simpledb.index;
 import simpledb.common.DbException;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Page;
+import simpledb.storage.PageLatch;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
@@ -27,6 +28,10 @@ public class BTreeRootPtrPage implements Page {
 	private int header;
 
 	private byte[] oldData;
+	// latch guarding the in-memory contents, see PageLatch
+	private final PageLatch latch = new PageLatch();
+	// LSN of the log record of the last update, kept in memory only
+	private volatile long pageLSN;
 
 	/**
 	 * Constructor.
@@ -55,6 +60,30 @@ public class BTreeRootPtrPage implements Page {
 		oldData = getPageData().clone();
 	}
 
+	/**
+	 * Overwrite the contents of this page in place with the given page data,
+	 * keeping the dirty flag and the before image.
+	 * @see BTreePage#restore(byte[])
+	 */
+	void restore(byte[] data) throws IOException {
+		BTreeRootPtrPage copy = new BTreeRootPtrPage(pid, data);
+		root = copy.root;
+		rootCategory = copy.rootCategory;
+		header = copy.header;
+	}
+
+	public PageLatch getLatch() {
+		return latch;
+	}
+
+	public long getPageLSN() {
+		return pageLSN;
+	}
+
+	public void setPageLSN(long lsn) {
+		pageLSN = lsn;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
@@ -0,0 +1,89 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 缓冲池分区
+ * BufferPool按照PageId的hash把页面分到多个分区中，每个分区有自己的页面表、latch、
+ * 剩余容量以及置换策略，不同分区上的页面读入、驱逐、丢弃互不阻塞。
+ *
+ * 命中时直接查ConcurrentHashMap，不需要获取latch；
+ * 读入、驱逐、丢弃、替换页面等修改页面表的操作需要持有latch。
+ * latch只保护页面表，持有latch时不能再去获取LogFile的对象锁或者其他分区的latch，
+ * 否则会和持有LogFile对象锁再刷新缓冲池的回滚、恢复操作形成死锁。
+ */
+class BufferPartition {
+
+    //分区内的页
+    final ConcurrentHashMap<PageId, Page> pages;
+    //分区最多能保存的页数
+    final int capacity;
+    //分区的页面置换策略
+    final ReplacementPolicy policy;
+    //保护页面表的latch
+    final ReentrantLock latch;
+
+    BufferPartition(int capacity, ReplacementPolicy policy) {
+        this.capacity = capacity;
+        this.pages = new ConcurrentHashMap<>(capacity);
+        this.policy = policy;
+        this.latch = new ReentrantLock();
+        policy.reset(capacity);
+    }
+
+    /** 分区是否已满，调用时需要持有latch */
+    boolean isFull() {
+        return pages.size() >= capacity;
+    }
+
+    /**
+     * 新读入的页面加入分区，调用时需要持有latch
+     */
+    void add(Page page) {
+        if (pages.put(page.getId(), page) == null) {
+            policy.pageAdded(page.getId());
+        }
+    }
+
+    /**
+     * 从分区中移除页面，调用时需要持有latch
+     * @return 被移除的页面，页面不在分区中时返回null
+     */
+    Page remove(PageId pid) {
+        Page page = pages.remove(pid);
+        policy.pageRemoved(pid);
+        return page;
+    }
+
+    /**
+     * 由置换策略挑选一个clean页面驱逐，调用时需要持有latch
+     * @param pinned 不能被驱逐的clean页面（例如还在等待后台写回的页面）
+     * @return 被驱逐的页面，只剩pinned页面可以驱逐时返回null
+     * @throws DbException 分区内全为脏页
+     */
+    Page evict(Predicate<PageId> pinned) throws DbException {
+        if (pages.size() < 1) throw new DbException("BufferPool中不存在页面，无法进行驱逐");
+        while (true) {
+            //由置换策略挑选clean页面 策略中残留的已不在缓冲池内的页面也可以直接移除
+            PageId pageId = policy.chooseVictim(pid -> {
+                Page page = pages.get(pid);
+                return page == null || (page.isDirty() == null && !pinned.test(pid));
+            });
+            if (pageId == null) {
+                for (PageId pid : pages.keySet()) {
+                    if (pinned.test(pid)) return null;
+                }
+                //走到这里说明分区内的页全部都是脏页 直接抛出异常
+                throw new DbException("全为脏页，无法驱逐");
+            }
+            Page page = remove(pageId);
+            if (page != null) return page;
+        }
+    }
+}
@@ -1,22 +1,37 @@
 package simpledb.storage;
 
+import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.common.LockWait;
 import simpledb.index.BTreePage;
 import simpledb.myLogger;
+import simpledb.transaction.LockNotAvailableException;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
-import simpledb.transaction.deadLockDetec;
 
 import java.io.*;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -26,6 +41,10 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages are spread over several partitions by hash of their PageId. Each
+ * partition has its own latch and replacement policy, so lookups, evictions
+ * and flushes of pages in different partitions do not block each other.
  * 
  * @Threadsafe, all fields are final
  */
@@ -38,14 +57,62 @@ public class BufferPool {
 
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
-    private static int pageSize = DEFAULT_PAGE_SIZE;
+    //没有指定页大小时新建缓冲池使用的页大小
+    private static int defaultPageSize = DEFAULT_PAGE_SIZE;
 
+    //该缓冲池的页大小 数据库中所有文件都按照这个大小划分页面
+    private int pageSize;
     //页的最大数量
-    public  static int PAGES_NUM=DEFAULT_PAGES;
-    //缓冲池内的页
-   static  ConcurrentHashMap<PageId,Page> pages;
-   //锁管理器
-   static public LockManager lockManager;
+    public final int PAGES_NUM;
+    //缓冲池分区 页面按照PageId的hash分布在各个分区中
+    private final BufferPartition[] partitions;
+    //锁管理器
+    public final LockManager lockManager;
+    //命中与未命中次数，用于比较不同置换策略
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    //由缓冲环读入、目前只被该缓冲环使用的页面
+    private final ConcurrentHashMap<PageId,BufferRing> ringPages;
+    //已提交但还没有写回磁盘的页面 保存的是页面提交时的内容
+    private final ConcurrentHashMap<PageId,Page> pendingWrites;
+    //等待写回的页面id 同一页面可能出现多次，写回时以pendingWrites中的最新版本为准
+    private final LinkedBlockingDeque<PageId> writeQueue;
+    //保证同一页面的不同版本按提交顺序写回
+    private final ReentrantLock writeLock;
+    //脏页表：已经写入日志、可能还没有写回磁盘的页面 -> {recLSN, 最后一条记录的LSN}
+    //recLSN是页面上次写回之后第一条记录的LSN，检查点记录这张表，恢复时从其中最小的recLSN开始重做
+    private final ConcurrentHashMap<PageId,long[]> dirtyPageTable;
+    //后台写回的页面数 由PageWriter累加
+    final LongAdder backgroundWrites = new LongAdder();
+    //后台写回线程 未开启时为null
+    private volatile PageWriter pageWriter;
+    //每个事务以READ_WRITE权限获取过或者修改过的页面 提交、终止时只需要检查这些页面
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> dirtiedPages;
+    //按行加锁的页面上未提交的修改
+    private final RowUndoLog rowUndo = new RowUndoLog();
+    //快照读使用的页面旧版本
+    private final VersionStore versions = new VersionStore();
+    //快照读事务 -> 快照的时间戳
+    private final ConcurrentHashMap<TransactionId,Long> snapshots = new ConcurrentHashMap<>();
+    //保存被驱逐页面的堆外页帧 未开启时为null
+    private volatile FrameCache frames;
+    //从页帧中解码出来的页面数
+    private final LongAdder frameHitCount = new LongAdder();
+    //预读的最大窗口 0表示不预读
+    private volatile int readAheadWindow;
+    //预读线程 未开启预读时为null
+    private ExecutorService prefetcher;
+    //预读进缓冲池、还没有被访问过的页面
+    private final Set<PageId> prefetched = ConcurrentHashMap.newKeySet();
+    //预读读入的页面数以及其中被访问到的页面数
+    private final LongAdder prefetchCount = new LongAdder();
+    private final LongAdder prefetchHitCount = new LongAdder();
+
+    /** Upper bound on the number of slots of a scan ring */
+    public static final int MAX_RING_SIZE = 16;
+
+    /** Pools are only partitioned when every partition gets at least this many pages */
+    public static final int MIN_PARTITION_PAGES = 64;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -53,6 +120,47 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, defaultPartitions(numPages), ClockPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * pages in the order chosen by the given replacement policy. The pool
+     * has a single partition, since a policy instance can serve only one.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy used to pick eviction victims
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, 1, () -> policy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split over
+     * numPartitions partitions. Each partition gets its own replacement
+     * policy from policyFactory.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions the number of partitions, at least 1
+     * @param policyFactory creates the replacement policy of each partition
+     */
+    public BufferPool(int numPages, int numPartitions, Supplier<ReplacementPolicy> policyFactory) {
+        this(numPages, defaultPageSize, numPartitions, policyFactory);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages of pageSize
+     * bytes each, split over numPartitions partitions. Pools are independent
+     * of each other, so a Database built around this pool can run next to
+     * databases using other page sizes.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param pageSize bytes per page, including header
+     * @param numPartitions the number of partitions, at least 1
+     * @param policyFactory creates the replacement policy of each partition
+     * @see Database#create(BufferPool, java.io.File)
+     */
+    public BufferPool(int numPages, int pageSize, int numPartitions, Supplier<ReplacementPolicy> policyFactory) {
         // some code goes here
 //        PAGES_NUM = DEFAULT_PAGES;
 //        if(numPages!=DEFAULT_PAGES){
@@ -64,23 +172,267 @@ public class BufferPool {
 //            PAGES_NUM  = numPages;
 //        }
 
+        if (numPartitions < 1 || numPartitions > numPages)
+            throw new IllegalArgumentException("分区数必须在1和缓冲池页数之间");
         PAGES_NUM  = numPages;
-        pages = new ConcurrentHashMap<>(PAGES_NUM);
+        this.pageSize = pageSize;
+        //页数平均分给各个分区 除不尽的部分分给前面的分区
+        partitions = new BufferPartition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            int capacity = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            partitions[i] = new BufferPartition(capacity, policyFactory.get());
+        }
+        ringPages = new ConcurrentHashMap<>();
+        pendingWrites = new ConcurrentHashMap<>();
+        dirtyPageTable = new ConcurrentHashMap<>();
+        writeQueue = new LinkedBlockingDeque<>();
+        writeLock = new ReentrantLock();
+        dirtiedPages = new ConcurrentHashMap<>();
         lockManager = new LockManager();
+        resetStatistics();
+    }
+
+    /**
+     * 默认分区数：每个CPU一个分区，但每个分区至少要有MIN_PARTITION_PAGES个页面，
+     * 小缓冲池只有一个分区，驱逐行为和不分区时相同
+     */
+    static int defaultPartitions(int numPages) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cpus, numPages / MIN_PARTITION_PAGES));
+    }
+
+    /** 页面所在的分区 */
+    private BufferPartition partitionOf(PageId pid) {
+        return partitions[(pid.hashCode() & 0x7fffffff) % partitions.length];
+    }
+
+    /** Return the number of partitions of this buffer pool */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    /** Return the replacement policy used by the first partition of this buffer pool */
+    public ReplacementPolicy getReplacementPolicy() {
+        return partitions[0].policy;
+    }
+
+    /** Return the number of getPage calls that found the page in the pool */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** Return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * Return the number of getPage misses that were decoded from an off-heap
+     * frame instead of being read from disk. These are also counted by
+     * {@link #getMissCount()}.
+     */
+    public long getFrameHitCount() {
+        return frameHitCount.sum();
+    }
+
+    /**
+     * Create a private buffer ring for a sequential scan over a file with
+     * the given number of pages. Files that fit in the pool are scanned
+     * through the shared pool as usual, so null is returned for them.
+     *
+     * @param numPages the number of pages the scan is going to read
+     * @return a ring to pass to getPage, or null if the scan should not use one
+     */
+    public BufferRing newScanRing(int numPages) {
+        //放得下整张表时仍然缓存整张表，放不下时全部缓存也只会把热点页面挤出去
+        if (numPages <= PAGES_NUM) return null;
+        //缓冲环最多占用缓冲池的1/8
+        return new BufferRing(Math.max(1, Math.min(MAX_RING_SIZE, PAGES_NUM / 8)));
+    }
+
+    /** Reset the hit/miss counters and the lock manager's deadlock counters */
+    public void resetStatistics() {
+        hitCount.reset();
+        missCount.reset();
+        frameHitCount.reset();
+        prefetchCount.reset();
+        prefetchHitCount.reset();
+        lockManager.resetStatistics();
+    }
+
+    /** Return the number of pages read into the pool by read-ahead */
+    public long getPrefetchCount() {
+        return prefetchCount.sum();
+    }
+
+    /**
+     * Return the number of pages read by read-ahead that were requested
+     * through getPage before leaving the pool. Divided by
+     * {@link #getPrefetchCount()} this is the read-ahead hit rate.
+     */
+    public long getPrefetchHitCount() {
+        return prefetchHitCount.sum();
+    }
+
+    /**
+     * Set the largest number of pages a sequential scan reads ahead of
+     * itself. Read-ahead runs on a background thread. The window is capped
+     * at a quarter of the pool, so prefetched pages do not push each other
+     * out before the scan gets to them.
+     *
+     * @param pages the maximum read-ahead window, or 0 to turn read-ahead off
+     */
+    public synchronized void setReadAheadWindow(int pages) {
+        if(pages<0) throw new IllegalArgumentException("预读窗口不能为负数");
+        readAheadWindow = Math.min(pages, Math.max(1, PAGES_NUM/4));
+        if(readAheadWindow>0&&prefetcher==null){
+            prefetcher = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "simpledb-read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }else if(readAheadWindow==0&&prefetcher!=null){
+            //不打断正在读页面的预读线程：FileChannel被打断时会关闭
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+
+    /** Return the maximum read-ahead window, 0 if read-ahead is off */
+    public int getReadAheadWindow() {
+        return readAheadWindow;
+    }
+
+    /**
+     * Create the read-ahead state for a scan that visits pages in the order
+     * given by successor.
+     *
+     * @param successor returns the page a sequential scan reads after the given page, or null at the end
+     * @return the read-ahead state, or null if read-ahead is off
+     */
+    public ReadAhead newReadAhead(Function<Page,PageId> successor) {
+        int window = readAheadWindow;
+        return window==0 ? null : new ReadAhead(this, successor, window);
+    }
+
+    /**
+     * 在预读线程中从frontier开始沿着successor读入count个页面，每读入一个页面就推进frontier
+     * 预读线程使用发起预读的线程所在的数据库
+     */
+    synchronized void prefetch(AtomicReference<PageId> frontier, int count, Function<Page,PageId> successor) {
+        if(prefetcher==null) return;
+        Database database = Database.getCurrent();
+        try {
+            prefetcher.execute(() -> {
+                Database.bind(database);
+                try {
+                    PageId pid = frontier.get();
+                    Page page = pid==null ? null : prefetchPage(pid);
+                    for(int i=0;i<count&&page!=null;i++){
+                        PageId next = successor.apply(page);
+                        if(next==null) break;
+                        page = prefetchPage(next);
+                        if(page!=null) frontier.set(next);
+                    }
+                } finally {
+                    Database.unbind();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //预读已经关闭
+        }
+    }
+
+    /**
+     * 不加锁地把页面读入缓冲池，页面已经在缓冲池中时直接返回
+     * 缓冲池中的页面对所有事务可见，读入磁盘上已提交的内容不需要页锁；修改页面之前事务仍然要先获取锁
+     * @return 缓冲池中的页面，分区内没有可驱逐的页面时返回null
+     */
+    private Page prefetchPage(PageId pid) {
+        BufferPartition partition = partitionOf(pid);
+        Page page = partition.pages.get(pid);
+        if(page!=null) return page;
+        partition.latch.lock();
+        try {
+            page = partition.pages.get(pid);
+            if(page!=null) return page;
+            if(partition.isFull()&&!evictPage(partition)) return null;
+            page = loadPage(pid);
+            partition.add(page);
+            prefetched.add(pid);
+            prefetchCount.increment();
+            return page;
+        } catch (DbException | RuntimeException e) {
+            //预读失败不影响扫描 扫描访问到该页面时会自己读入
+            return null;
+        } finally {
+            partition.latch.unlock();
+        }
+    }
+
+    /**
+     * Keep the clean pages evicted from this pool as raw bytes in off-heap
+     * frames, up to the given number of bytes. This is a second-tier cache
+     * below the pool: a miss on such a page decodes it from its frame instead
+     * of reading the file. It saves disk reads, not heap. The pool is still
+     * capped at PAGES_NUM pages, and every resident page is fully decoded, so
+     * the heap and GC cost of the pages in the pool is the same as without
+     * frames.
+     *
+     * @param budgetBytes the off-heap memory for frames, or 0 to drop the frames
+     * @throws IllegalArgumentException if the budget is smaller than one page
+     */
+    public synchronized void setOffHeapBudget(long budgetBytes) {
+        frames = budgetBytes==0 ? null : new FrameCache(budgetBytes, pageSize);
+    }
+
+    /** Return the number of off-heap frames, 0 if the pool has none */
+    public int getOffHeapFrameCount() {
+        FrameCache cache = frames;
+        return cache==null ? 0 : cache.numFrames();
+    }
+
+    /**
+     * 读入缓冲池中没有的页面：页帧中有该页面时直接解码，否则从磁盘读取
+     */
+    private Page loadPage(PageId pid) {
+        //从数据库目录中获取指定pid的文件
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        FrameCache cache = frames;
+        if(cache!=null){
+            byte[] data = cache.take(pid);
+            Page page = data==null ? null : dbFile.decodePage(pid, data);
+            if(page!=null){
+                frameHitCount.increment();
+                return page;
+            }
+        }
+        return dbFile.readPage(pid);
     }
     
+    /**
+     * Return the page size of the database the calling thread works on.
+     * Access methods size and lay out their pages with this value.
+     */
     public static int getPageSize() {
+      return Database.getBufferPool().getPoolPageSize();
+    }
+
+    /** Return the number of bytes per page of this buffer pool */
+    public int getPoolPageSize() {
       return pageSize;
     }
     
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    //同时修改当前缓冲池和之后新建缓冲池的页大小
     public static void setPageSize(int pageSize) {
-    	BufferPool.pageSize = pageSize;
+    	BufferPool.defaultPageSize = pageSize;
+    	Database.getBufferPool().pageSize = pageSize;
     }
     
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void resetPageSize() {
-    	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
+    	setPageSize(DEFAULT_PAGE_SIZE);
     }
 
     /**
@@ -100,73 +452,328 @@ public class BufferPool {
      *   阻塞当前函数直到返回所需页面
      *
      */
-    public static Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, (BufferRing) null);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, deciding
+     * with wait what happens if another transaction holds a conflicting lock:
+     * WAIT blocks like {@link #getPage(TransactionId, PageId, Permissions)},
+     * NOWAIT throws a LockNotAvailableException and SKIP_LOCKED returns null.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param wait what to do if the lock isn't granted right away
+     * @return the page, or null if it is locked and wait is SKIP_LOCKED
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, LockWait wait)
+        throws TransactionAbortedException, DbException {
+        if(wait==LockWait.WAIT) return getPage(tid, pid, perm);
+        Page page = tryGetPage(tid, pid, perm);
+        if(page==null&&wait==LockWait.NOWAIT) throw new LockNotAvailableException();
+        return page;
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, as
+     * {@link #getPage(TransactionId, PageId, Permissions)} does. Pages that
+     * have to be read from disk are placed in the given ring; once the ring is
+     * full, the page read longest ago is dropped from the pool again if no
+     * one else has used it and it is clean.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan ring returned by {@link #newScanRing(int)}, or null
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        //先获取对应页面的锁，再去读入并返回页
-        boolean flag = false;
-//        if(perm==Permissions.READ_ONLY){
-//            flag=lockManager.grantSlock(pid,tid);
-//        }else{
-//            flag=lockManager.grantXlock(pid,tid);
-//        }
-        flag = lockManager.grantLock(perm,pid,tid);
-
-
-        /*这里先采用简单的超出次数抛出异常来实现死锁检测以及回滚操作*/
-        deadLockDetec detector = deadLockDetec.single();
-        //只要一直没获取对应页面的锁就不断自旋直到获取 但这样开销比较大，可以让线程sleep一段时间
-        while(!flag){
-      detector.deadLockDetect();
-            myLogger.logger.debug("死锁检测");
-        /*这里使用环形检测，出现死锁则抛出异常*/
-//            if(lockManager.deadlockDetect(tid,pid)){
-//                throw new TransactionAbortedException();
-//            }
+        //先获取对应页面的锁，再去读入并返回页 拿不到锁时在锁管理器中排队阻塞直到被唤醒
+        lockManager.acquire(tid,pid,perm);
+
+        //获取了对应页面的锁 可以读入并返回页面
+        if(perm==Permissions.READ_WRITE) recordWrite(tid,pid);
+        return fetchPage(pid,ring);
+    }
+
+    /**
+     * Retrieve the specified page if the lock can be granted right away.
+     * Unlike {@link #getPage(TransactionId, PageId, Permissions)} this never
+     * waits, so it can be called while holding page latches.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the page, or null if another transaction holds a conflicting lock
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if(!lockManager.grantLock(perm,pid,tid)) return null;
+        if(perm==Permissions.READ_WRITE) recordWrite(tid,pid);
+        return fetchPage(pid,null);
+    }
+
+    /**
+     * Retrieve the specified page without taking any lock. The caller must
+     * latch the page while reading it, and once the latch is held check that
+     * the page is still valid, see {@link PageLatch#isValid()}. Used for the
+     * internal pages of B+ trees, which are protected by latches only while
+     * they are traversed.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page getUnlockedPage(PageId pid) throws DbException {
+        return fetchPage(pid,null);
+    }
+
+    /**
+     * 返回缓冲池中的页面，不在缓冲池中时读入，调用者已经持有所需的锁
+     */
+    private Page fetchPage(PageId pid, BufferRing ring) throws DbException {
+        //查询pageid 命中时不需要获取分区latch
+        BufferPartition partition = partitionOf(pid);
+        Page page = partition.pages.get(pid);
+        //若该页不在缓冲池中
+        if(page==null){
+            if(ring!=null){
+                //页面归缓冲环所有 先复用槽位丢弃环中最早读入的页面，环满之后扫描不会再驱逐其他页面
+                PageId replaced = ring.add(pid);
+                if(replaced!=null) releaseRingPage(replaced,ring);
+            }
+            partition.latch.lock();
             try {
-                myLogger.logger.debug("获取锁失败，休眠一段时间。");
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                //获取latch期间其他事务可能已经读入了该页
+                page = partition.pages.get(pid);
+                //若分区页数大小到达限定大小 采取驱逐策略
+                if(page==null&&partition.isFull()&&!evictPage(partition)){
+                    //分区内能驱逐的页面都在等待后台写回 释放latch同步写回之后再试一次
+                    partition.latch.unlock();
+                    try {
+                        flushPendingWrites();
+                    } catch (IOException e) {
+                        throw new DbException("写回已提交页面失败："+e.getMessage());
+                    } finally {
+                        partition.latch.lock();
+                    }
+                    page = partition.pages.get(pid);
+                    if(page==null&&partition.isFull()&&!evictPage(partition)){
+                        throw new DbException("全为脏页，无法驱逐");
+                    }
+                }
+                if(page==null){
+                    //读出该文件的pid号页 加入到缓冲池中
+                    page = loadPage(pid);
+                    partition.add(page);
+                    missCount.increment();
+                    if(ring!=null) ringPages.put(pid,ring);
+                    return page;
+                }
+            } finally {
+                partition.latch.unlock();
             }
-            //继续获取锁
-            if(perm==Permissions.READ_ONLY){
-                    flag=lockManager.grantSlock(pid,tid);
-                }else{
-                    flag=lockManager.grantXlock(pid,tid);
+        }
+
+        hitCount.increment();
+        partition.policy.pageAccessed(pid);
+        if(prefetched.remove(pid)){
+            prefetchHitCount.increment();
+            //预读的页面在扫描第一次访问时归缓冲环所有 和扫描自己从磁盘读入的页面一样
+            if(ring!=null){
+                PageId replaced = ring.add(pid);
+                if(replaced!=null) releaseRingPage(replaced,ring);
+                ringPages.put(pid,ring);
+                return page;
             }
-//
         }
+        //被其他访问命中的页面不再属于缓冲环，环复用槽位时不会丢弃它
+        if(ring==null||ringPages.get(pid)!=ring){
+            ringPages.remove(pid);
+        }
+        return page;
 
 
 
-        //获取了对应页面的锁 可以读入并返回页面
+    }
 
-        //查询pageid
-        Page page = pages.get(pid);
-        //若该页不在缓冲池中
-        if(page==null){
-            //若缓冲池页数大小到达限定大小 采取驱逐策略 这里先抛出异常
-            if(pages.size()>=PAGES_NUM){
-                //throw new DbException("缓冲池页数超出限制");
+    /**
+     * Make the given transaction read from a snapshot of the database as of
+     * now. Heap file scans of the transaction then see only what was
+     * committed before this call, take no locks and never wait for writers.
+     * The snapshot ends when the transaction completes.
+     *
+     * @param tid the transaction reading from the snapshot
+     * @return the commit timestamp of the snapshot
+     */
+    public long beginSnapshot(TransactionId tid) {
+        return snapshots.computeIfAbsent(tid, t -> versions.openSnapshot());
+    }
+
+    /** Return the snapshot timestamp of the transaction, or null if it does not read from a snapshot */
+    public Long getSnapshot(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /** Return the number of old page versions kept for snapshot reads */
+    public int getVersionCount() {
+        return versions.size();
+    }
+
+    /**
+     * Retrieve the specified page as it was committed at the given snapshot
+     * timestamp. No locks are taken. The returned page is a private copy and
+     * must not be modified.
+     *
+     * @param pid the ID of the requested page
+     * @param snapshot a timestamp returned by {@link #beginSnapshot(TransactionId)}
+     */
+    public Page getSnapshotPage(PageId pid, long snapshot) throws DbException {
+        //先读当前已提交的内容再查旧版本：提交总是先保存旧版本再替换已提交的内容
+        Page committed = fetchPage(pid,null).getBeforeImage();
+        byte[] data = versions.find(pid,snapshot);
+        if(data==null) return committed;
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).decodePage(pid,data);
+    }
+
+    //页面已提交的内容将在提交ts中被替换 先保存旧版本供快照读使用 快照读只支持HeapFile
+    private void retireVersion(Page page, long ts) {
+        if(page instanceof HeapPage) versions.retire(page.getId(),((HeapPage)page).beforeImageData(),ts);
+    }
+
+    /**
+     * 按行加锁时获取页面：只在表和页面上加意向锁，元组上的行锁由调用者获取，
+     * 修改页面时需要持有页面的排他latch，见HeapFile#setRowLocking。
+     * 以READ_WRITE获取的页面会在返回之前被标记为脏页，直到页面上所有的写者都结束，
+     * 保证写者拿到的页面对象不会在修改之前被驱逐、再由其他写者读入另一个副本。
+     */
+    Page getRowPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        lockManager.acquireIntention(tid,pid,perm);
+        if(perm==Permissions.READ_ONLY) return fetchPage(pid,null);
+        recordWrite(tid,pid);
+        while(true){
+            Page page = fetchPage(pid,null);
+            page.getLatch().exclusive();
+            try {
+                BufferPartition partition = partitionOf(pid);
+                partition.latch.lock();
                 try {
-                    Database.getBufferPool().evictPage();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    //读入之后、获取latch之前页面已经被驱逐
+                    if(partition.pages.get(pid)!=page) continue;
+                    if(page.isDirty()==null) page.markDirty(true,tid);
+                } finally {
+                    partition.latch.unlock();
                 }
+                rowUndo.addWriter(tid,pid);
+                return page;
+            } finally {
+                page.getLatch().releaseExclusive();
             }
-            //从数据库目录中获取指定pid的文件
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            //读出该文件的pid号页 加入到缓冲池中
-            page = dbFile.readPage(pid);
-            pages.put(pid,page);
-
         }
+    }
 
-        return page;
+    /**
+     * 记录按行加锁的页面上的一次修改，调用时持有页面的排他latch
+     * @param before 被删除的元组，插入时为null
+     */
+    void rowChanged(TransactionId tid, HeapPage page, int slot, Tuple before) {
+        rowUndo.record(tid,page.getId(),slot,before);
+    }
 
+    /**
+     * tid以READ_WRITE获取了按行加锁的页面却没有修改它（例如要插入时页面已经满了），
+     * 不再作为页面的写者；页面上没有其他写者时恢复为clean页面，可以被驱逐。
+     * tid之前修改过页面时保持不变。调用时持有页面的排他latch
+     */
+    void rowPageUnused(TransactionId tid, HeapPage page) {
+        PageId pid = page.getId();
+        if(!rowUndo.isWriter(tid,pid)||rowUndo.changed(tid,pid)) return;
+        TransactionId writer = rowUndo.finish(tid,pid);
+        page.markDirty(writer!=null,writer);
+    }
 
+    /**
+     * 页面上其他事务未提交修改的slot，调用时持有页面的latch
+     */
+    Set<Integer> uncommittedSlots(TransactionId tid, PageId pid) {
+        return rowUndo.changedSlots(pid,tid);
+    }
 
+    /**
+     * 提交tid在按行加锁的页面上的修改：写回去掉其他事务未提交修改之后的内容，
+     * 并以它作为页面新的before image；页面上还有其他写者时保持为脏页
+     */
+    private void commitRowPage(TransactionId tid, HeapPage page, long ts) throws IOException {
+        PageId pid = page.getId();
+        page.getLatch().exclusive();
+        try {
+            if(!rowUndo.isWriter(tid,pid)) return;
+            if(rowUndo.changed(tid,pid)){
+                HeapPage image = rowUndo.commitImage(tid,page);
+                long lsn = Database.getLogFile().logWrite(tid,page.getBeforeImage(),image);
+                image.setPageLSN(lsn);
+                page.setPageLSN(lsn);
+                if(pageWriter!=null){
+                    pendingWrites.put(pid,image);
+                    writeQueue.offer(pid);
+                }else{
+                    Database.getLogFile().forceTo(lsn);
+                    writeLock.lock();
+                    try {
+                        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+                        pendingWrites.remove(pid);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    pageWritten(pid, lsn);
+                }
+                retireVersion(page,ts);
+                page.setBeforeImage(image.getPageData());
+            }
+            TransactionId writer = rowUndo.finish(tid,pid);
+            page.markDirty(writer!=null,writer);
+        } finally {
+            page.getLatch().releaseExclusive();
+        }
+    }
+
+    /**
+     * 中止时撤销tid在按行加锁的页面上的修改，其他事务的修改保留
+     */
+    private void abortRowPage(TransactionId tid, HeapPage page) {
+        PageId pid = page.getId();
+        page.getLatch().exclusive();
+        try {
+            if(!rowUndo.isWriter(tid,pid)) return;
+            rowUndo.undo(tid,page);
+            TransactionId writer = rowUndo.finish(tid,pid);
+            page.markDirty(writer!=null,writer);
+        } finally {
+            page.getLatch().releaseExclusive();
+        }
+    }
+
+    /**
+     * 缓冲环复用槽位时调用，页面仍只属于该缓冲环并且是clean页面时将其从缓冲池中丢弃。
+     * 只是让出缓冲池的位置，页面上的锁不受影响
+     * @param pid 被复用的槽位中的页面
+     * @param ring 复用槽位的缓冲环
+     */
+    private void releaseRingPage(PageId pid, BufferRing ring) {
+        if(!ringPages.remove(pid,ring)) return;
+        BufferPartition partition = partitionOf(pid);
+        partition.latch.lock();
+        try {
+            Page page = partition.pages.get(pid);
+            //正被latch的页面留在缓冲池中，和驱逐一样
+            if(page!=null&&page.isDirty()==null&&page.getLatch().tryInvalidate()){
+                partition.remove(pid);
+            }
+        } finally {
+            partition.latch.unlock();
+        }
     }
 
     /**
@@ -221,7 +828,7 @@ public class BufferPool {
      *              by restoring the page to its on-disk state.
      *        无论提交还是终止都需要释放相应事务的所有锁
      */
-    public  synchronized void transactionComplete(TransactionId tid, boolean commit) {
+    public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
         if(commit){
@@ -243,24 +850,58 @@ public class BufferPool {
 //            }
 
             //应该将脏页回滚成原本在磁盘上的状态 所以要重新读入磁盘中的对应页面再写入缓冲区 起到重新加载的效果
-            for(PageId pid : pages.keySet()){
-                Page page = pages.get(pid);
-                if(page.isDirty()!=null&&page.isDirty().equals(tid)){
-                    DbFile databaseFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                    //获取到了要被修改前的页面
-                    Page beforeModifyPage = databaseFile.readPage(page.getId());
-                    //将该页面覆盖掉被中断事物处理的页面
-                    pages.put(page.getId(),beforeModifyPage);
-
+            for(PageId pid : writtenPages(tid)){
+                BufferPartition partition = partitionOf(pid);
+                //按行加锁的页面上可能还有其他事务的修改，只撤销该事务自己的
+                Page rowPage = partition.pages.get(pid);
+                if(rowPage!=null&&rowUndo.isRowPage(pid)){
+                    abortRowPage(tid,(HeapPage)rowPage);
+                    continue;
+                }
+                Page page = partition.pages.get(pid);
+                if(page==null||page.isDirty()==null||!page.isDirty().equals(tid)) continue;
+                //不持有锁读页面的线程（遍历B+树内部页）可能正拿着旧页面的latch，等它们读完再替换，之后再拿到latch的线程会发现页面已失效
+                page.getLatch().exclusive();
+                partition.latch.lock();
+                try {
+                    if(partition.pages.get(pid)==page){
+                        //获取到了要被修改前的页面 开启后台写回时磁盘上可能还不是最新提交的内容，所以使用before image
+                        Page beforeModifyPage = page.getBeforeImage();
+                        //将该页面覆盖掉被中断事物处理的页面
+                        partition.pages.put(pid,beforeModifyPage);
+                        page.getLatch().invalidate();
+                    }
+                } finally {
+                    partition.latch.unlock();
+                    page.getLatch().releaseExclusive();
                 }
             }
 
         }
 
+        dirtiedPages.remove(tid);
+        Long snapshot = snapshots.remove(tid);
+        if(snapshot!=null) versions.closeSnapshot(snapshot);
         //释放所有的锁
         lockManager.unTransactionIdlock(tid);
     }
 
+    /**
+     * 记录事务可能修改的页面
+     */
+    private void recordWrite(TransactionId tid, PageId pid) {
+        if(tid==null) return;
+        dirtiedPages.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * 事务以READ_WRITE权限获取过或者修改过的页面，这些页面不一定还在缓冲池中，也不一定是脏页
+     */
+    private Set<PageId> writtenPages(TransactionId tid) {
+        Set<PageId> pids = tid==null ? null : dirtiedPages.get(tid);
+        return pids==null ? Collections.emptySet() : pids;
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -288,6 +929,8 @@ public class BufferPool {
         //获取收到影响的页面，按照要求将这些页面进行makedirt
         for(Page page : affetced){
             page.markDirty(true, tid);
+            recordWrite(tid, page.getId());
+            cachePage(page);
             //把修改过的页面（在缓冲池内的）重新写入disk
            // HeapFile databaseFile =(HeapFile) Database.getCatalog().getDatabaseFile(page.getId().getTableId());
             //databaseFile.writePage(page);
@@ -321,38 +964,54 @@ public class BufferPool {
         //按照要求将受到影响的页面makedirt
         for (Page page : affetced){
             page.markDirty(true, tid);
+            recordWrite(tid, page.getId());
+            cachePage(page);
             //把修改过的页面重新写入disk
             DbFile databaseFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
             //databaseFile.writePage(page);
         }
     }
 
+    /**
+     * 将被修改的页面放回缓冲池，替换掉缓冲池中的旧版本。
+     * 操作期间页面可能在还未被标记为脏页时就被驱逐，不放回的话修改会丢失
+     * @param page 被修改的页面
+     */
+    private void cachePage(Page page) {
+        BufferPartition partition = partitionOf(page.getId());
+        partition.latch.lock();
+        try {
+            partition.add(page);
+        } finally {
+            partition.latch.unlock();
+        }
+        //页面在修改期间被驱逐时，页帧中保存的是修改到一半的内容
+        FrameCache cache = frames;
+        if(cache!=null) cache.invalidate(page.getId());
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      *     将BufferPool中的所有脏页页面刷新到disk中，但不驱逐任何页面
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        //遍历所有的在BufferPool中的表，查看他们是否为脏页。
-        // 是就调用其所在表的write函数将该页写回disk
-        for(PageId pageId : pages.keySet()){
-           // Page page = pages.get(pageId);
-//            if(page.isDirty()!=null){
-//                DbFile databaseFile = null;
-//                //实验5时进行扩展，包括了BTreePage和HeapPage
-//                if(page instanceof HeapPage){
-//                     databaseFile = Database.getCatalog().getDatabaseFile(((HeapPage)page).pid.getTableId());
-//
-//                }else if(page instanceof BTreePage){
-//                    databaseFile = Database.getCatalog().getDatabaseFile(((BTreePage)page).getId().getTableId());
-//
-//                }
-//                databaseFile.writePage(page);
-//            }
-            flushPage(pageId);
+        //先写回所有已提交、等待后台写回的页面
+        flushPendingWrites();
+        //遍历所有的在BufferPool中的表，先为其中的脏页追加update记录，
+        //再调用其所在表的write函数将页面写回disk：写回第一个页面前的force使所有记录落盘，之后的页面不用再force
+        List<Page> logged = new ArrayList<>();
+        for(BufferPartition partition : partitions){
+            for(PageId pageId : partition.pages.keySet()){
+                Page page = logPage(pageId);
+                if(page!=null) logged.add(page);
+            }
+        }
+        for(Page page : logged){
+            writeLoggedPage(page);
         }
 
     }
@@ -365,10 +1024,30 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pages.remove(pid);
+        BufferPartition partition = partitionOf(pid);
+        partition.latch.lock();
+        try {
+            //恢复时在LogFile的监视器中调用，不能等待页面latch；已经拿着latch的读者读完旧内容
+            Page page = partition.remove(pid);
+            if(page!=null) page.getLatch().invalidate();
+            ringPages.remove(pid);
+            prefetched.remove(pid);
+        } finally {
+            partition.latch.unlock();
+        }
+        FrameCache cache = frames;
+        if(cache!=null) cache.invalidate(pid);
+        //丢弃的页面（以及同一位置上其他类型的页面）不能再被后台写回，否则会覆盖调用者接下来写入的内容
+        writeLock.lock();
+        try {
+            pendingWrites.keySet().removeIf(p -> p.getTableId()==pid.getTableId()&&p.getPageNumber()==pid.getPageNumber());
+        } finally {
+            writeLock.unlock();
+        }
+        Database.getLogFile().pageDiscarded(pid);
     }
 
     /**
@@ -376,79 +1055,297 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      *
      *    将特定页面刷新到disk，不驱逐
+     *    写日志和写页面时不持有分区latch，见BufferPartition
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = pages.get(pid);
-        if(page!=null){
-            DbFile databaseFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-            // append an update record to the log, with
-            // a before-image and after-image.
-            TransactionId dirtier = page.isDirty();
-            if (dirtier != null){
-                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
-            }
+        Page page = logPage(pid);
+        if(page!=null) writeLoggedPage(page);
+    }
+
+    /**
+     * 为脏页追加update记录（不force）并把记录的LSN记在页面上
+     * @return 需要写回的页面，不在缓冲池中或者是按行加锁的页面时返回null
+     */
+    private Page logPage(PageId pid) throws IOException {
+        Page page = partitionOf(pid).pages.get(pid);
+        //按行加锁的页面上是多个事务未提交的修改 已提交的内容在提交时已经写回
+        if(page==null||rowUndo.isRowPage(pid)) return null;
+        // append an update record to the log, with
+        // a before-image and after-image.
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null){
+            page.setPageLSN(Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page));
+        }
+        return page;
+    }
+
+    /**
+     * 写回页面，先force日志直到页面的LSN（WAL）；这条记录已经落盘时不再force
+     */
+    private void writeLoggedPage(Page page) throws IOException {
+        Database.getLogFile().forceTo(page.getPageLSN());
+        DbFile databaseFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        //写回的是最新内容 等待后台写回的旧版本不再需要写回
+        writeLock.lock();
+        try {
             databaseFile.writePage(page);
+            pendingWrites.remove(page.getId());
+        } finally {
+            writeLock.unlock();
         }
+        pageWritten(page.getId(), page.getPageLSN());
     }
 
     /** Write all pages of the specified transaction to disk.
      * 将特定事务处理过的脏页刷新到disk内
+     * 先为所有脏页追加update日志记录，只force一次日志，再逐个写回页面
+     * 开启后台写回时只写日志，页面交给写回线程，见PageWriter
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        //获取所有页面进行递归判断是否为tid的脏页
-            for(PageId pid : pages.keySet()){
-                Page page = pages.get(pid);
-                if(page.isDirty()!=null&&page.isDirty()==tid){
-                    flushPage(page.getId());
-                    // use current page contents as the before-image
-                    // for the next transaction that modifies this page.
-                    page.setBeforeImage();
+        //只需检查事务修改过的页面 提交的开销与缓冲池大小无关
+        Set<PageId> written = writtenPages(tid);
+        if(written.isEmpty()) return;
+        boolean background = pageWriter!=null;
+        //同步写回时先在提交临界区之外写日志并force，开启组提交时同时提交的事务可以共用一次force
+        List<Page> logged = new ArrayList<>();
+        if(!background){
+            long lsn = 0;
+            for(PageId pid : written){
+                Page page = partitionOf(pid).pages.get(pid);
+                if(page!=null&&!rowUndo.isRowPage(pid)&&page.isDirty()!=null&&page.isDirty()==tid){
+                    lsn = Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+                    page.setPageLSN(lsn);
+                    logged.add(page);
+                }
+            }
+            if(!logged.isEmpty()) Database.getLogFile().forceGrouped(lsn);
+        }
+        //事务的所有页面使用同一个提交时间戳，全部替换完之后快照读才能看到
+        long ts = versions.beginCommit();
+        try {
+            for(PageId pid : written){
+                Page page = partitionOf(pid).pages.get(pid);
+                if(page!=null&&rowUndo.isRowPage(pid)){
+                    commitRowPage(tid,(HeapPage)page,ts);
+                    continue;
+                }
+                if(background&&page!=null&&page.isDirty()!=null&&page.isDirty()==tid){
+                    queuePageWrite(page,ts);
                 }
             }
+            for(Page page : logged){
+                writeLock.lock();
+                try {
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                    pendingWrites.remove(page.getId());
+                } finally {
+                    writeLock.unlock();
+                }
+                pageWritten(page.getId(), page.getPageLSN());
+                retireVersion(page,ts);
+                // use current page contents as the before-image
+                // for the next transaction that modifies this page.
+                page.setBeforeImage();
+                //已经写回 标记为clean之后才能被驱逐
+                page.markDirty(false, null);
+            }
+        } finally {
+            versions.endCommit(ts);
+        }
+
+    }
+
+    /**
+     * 提交时为页面追加update日志记录（不force，由logCommit统一force），
+     * 再把页面提交后的内容放入写回队列
+     * @param page 提交事务的脏页
+     * @param ts 提交时间戳
+     */
+    private void queuePageWrite(Page page, long ts) throws IOException {
+        long lsn = Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
+        page.setPageLSN(lsn);
+        retireVersion(page,ts);
+        page.setBeforeImage();
+        page.markDirty(false, null);
+        Page version = page.getBeforeImage();
+        version.setPageLSN(lsn);
+        pendingWrites.put(page.getId(), version);
+        writeQueue.offer(page.getId());
+    }
+
+    /**
+     * Start a background thread that writes committed pages to disk. While
+     * it runs, a commit only logs its dirty pages and forces the log; the
+     * pages themselves are written later by the thread.
+     *
+     * @param intervalMillis how long the writer waits for work before checking whether it should stop
+     * @param batchSize the maximum number of pages written after one log force
+     */
+    public synchronized void startPageWriter(long intervalMillis, int batchSize) {
+        if(pageWriter!=null) return;
+        PageWriter writer = new PageWriter(this, Database.getCurrent(), Database.getCatalog(), Database.getLogFile(), intervalMillis, batchSize);
+        writer.start();
+        pageWriter = writer;
+    }
+
+    /** Start the background page writer with default settings */
+    public void startPageWriter() {
+        startPageWriter(PageWriter.DEFAULT_INTERVAL_MILLIS, PageWriter.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Stop the background page writer, if any, and write the pages it had
+     * not written yet. Commits write their pages synchronously again.
+     */
+    public synchronized void stopPageWriter() throws IOException {
+        PageWriter writer = pageWriter;
+        if(writer==null) return;
+        pageWriter = null;
+        writer.stop();
+        writePendingPages(writer.getCatalog(), writer.getLogFile(), Integer.MAX_VALUE);
+    }
+
+    /** Return true if a background page writer is running */
+    public boolean isPageWriterRunning() {
+        return pageWriter!=null;
+    }
+
+    /** Return the number of committed pages that are not on disk yet */
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * 页面的一条记录写入了日志，由LogFile在写记录时调用
+     */
+    void pageLogged(PageId pid, long lsn) {
+        dirtyPageTable.merge(pid, new long[]{lsn, lsn}, (e, n) -> new long[]{e[0], Math.max(e[1], lsn)});
+    }
+
+    /**
+     * 页面写回了LSN不超过lsn的记录所做的修改
+     * 之后又有记录时保留原来的recLSN，恢复时多重做几条记录不影响结果
+     */
+    void pageWritten(PageId pid, long lsn) {
+        dirtyPageTable.computeIfPresent(pid, (p, e) -> e[1] <= lsn ? null : e);
+    }
+
+    /**
+     * Return the dirty page table: the pages whose logged updates may not
+     * be on disk yet, each with the LSN of the first of these updates
+     * (its recLSN). Recovery redoes the log from the smallest recLSN on.
+     */
+    public Map<PageId,Long> getDirtyPageTable() {
+        Map<PageId,Long> table = new HashMap<>();
+        dirtyPageTable.forEach((pid, e) -> table.put(pid, e[0]));
+        return table;
+    }
+
+    /** Return the number of pages written by the background page writer */
+    public long getBackgroundWriteCount() {
+        return backgroundWrites.sum();
+    }
+
+    /**
+     * 等待写回队列中出现页面
+     * @return 等待期间队列不为空返回true，超时返回false
+     */
+    boolean awaitPendingWrites(long millis) throws InterruptedException {
+        PageId head = writeQueue.pollFirst(millis, TimeUnit.MILLISECONDS);
+        if(head==null) return false;
+        writeQueue.offerFirst(head);
+        return true;
+    }
+
+    /**
+     * 由调用线程同步写回所有等待写回的页面
+     */
+    void flushPendingWrites() throws IOException {
+        writePendingPages(Database.getCatalog(), Database.getLogFile(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * 写回队列中最多max个页面
+     * 先取出页面的待写回版本，force日志直到这些版本中最大的LSN，保证它们的update记录已经落盘，再按顺序写回。
+     * force时不能持有writeLock：回滚持有LogFile的对象锁调用flushPendingWrites，锁顺序只能是LogFile -> writeLock
+     *
+     * @return 实际写回的页面数
+     */
+    int writePendingPages(Catalog catalog, LogFile logFile, int max) throws IOException {
+        List<PageId> pids = new ArrayList<>();
+        writeQueue.drainTo(pids, max);
+        HashMap<PageId,Page> versions = new HashMap<>();
+        long lsn = 0;
+        for(PageId pid : pids){
+            Page version = pendingWrites.get(pid);
+            if(version!=null){
+                versions.put(pid,version);
+                lsn = Math.max(lsn,version.getPageLSN());
+            }
+        }
+        if(versions.isEmpty()) return 0;
 
+        //提交时已经force过提交记录 通常这些版本的记录都已经落盘
+        logFile.forceTo(lsn);
+        int written = 0;
+        writeLock.lock();
+        try {
+            for(PageId pid : pids){
+                Page version = versions.remove(pid);
+                //写回期间页面可能又提交了新版本（新版本已重新入队）或者已经被写回、丢弃
+                if(version==null||pendingWrites.get(pid)!=version) continue;
+                catalog.getDatabaseFile(pid.getTableId()).writePage(version);
+                pendingWrites.remove(pid,version);
+                pageWritten(pid, version.getPageLSN());
+                written++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return written;
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the given partition of the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
-     * 驱逐策略---FIFO，将最早使用的页进行驱逐
-     * 驱逐到脏页时应该将页面写入磁盘（调用flushpage函数），避免一致性问题
+     * 驱逐策略由分区的ReplacementPolicy决定，调用时需要持有分区latch
+     * 还在等待后台写回的页面不能被驱逐，否则再次读入时会读到磁盘上的旧内容
      *
      * LAB4 不应该驱逐任何脏页，页面的重新写入应该在事务提交之后。
-     * 所以驱逐页面时，需要驱逐一个clean页面，该clean页面可能以及被某个事务锁定，需要在lockmanager中解锁
+     * 所以驱逐页面时，需要驱逐一个clean页面，该clean页面可能已经被某个事务锁定，锁保留到事务结束，
+     * 页面被再次读入时仍然受这些锁保护（B+树的叶子页只由锁保护，不能因为驱逐丢掉锁）。
      * 如果全是dirty页面就抛出异常。
      *
+     * @return 是否驱逐了页面，能驱逐的页面都在等待写回时返回false
      */
-    private synchronized   void evictPage() throws DbException, IOException {
+    private boolean evictPage(BufferPartition partition) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if(pages.size()<1) throw  new DbException("BufferPool中不存在页面，无法进行驱逐");
-
-        for(PageId pageId : pages.keySet()){
-            Page page = pages.get(pageId);
-            //页面存在
-            if(page!=null){
-                //页面是脏页 写入磁盘
-                //if(page.isDirty()!=null) flushPage(page.getId());
-                //是脏页继续寻找clean的页，要记得释放该页上的锁
-                if(page.isDirty()!=null) continue;
-
-                //释放给这个页加上的所有锁
-                lockManager.unPageLock(pageId);
-                //找到clean页就驱逐
-                pages.remove(pageId);
-                //退出
-                return ;
-            }
+        //有线程持有latch的页面正在被读或者修改，不驱逐
+        Page page;
+        while(true){
+            page = partition.evict(pid -> pendingWrites.containsKey(pid)||isLatched(partition,pid));
+            if(page==null) return false;
+            //挑选之后才被latch的页面放回分区，重新挑选
+            if(page.getLatch().tryInvalidate()) break;
+            partition.add(page);
         }
+        PageId pageId = page.getId();
+        ringPages.remove(pageId);
+        prefetched.remove(pageId);
+        //clean页面的内容和磁盘上一致 保存到页帧中
+        FrameCache cache = frames;
+        if(cache!=null) cache.put(page);
+        return true;
+    }
 
-        //走到这里说明缓冲区内的页全部都是脏页 直接抛出异常
-        throw new DbException("全为脏页，无法驱逐");
+    private static boolean isLatched(BufferPartition partition, PageId pid) {
+        Page page = partition.pages.get(pid);
+        return page!=null&&page.getLatch().isLatched();
     }
 
 }
@@ -0,0 +1,45 @@
+package simpledb.storage;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 顺序扫描使用的私有缓冲环（参考PostgreSQL的BufferAccessStrategy）
+ * 大表的全表扫描如果和普通访问一样使用缓冲池，读入的页面会把B+树内部页等热点页面全部挤出去。
+ * 使用缓冲环后，扫描从磁盘读入的页面只会占用环中的几个槽位：
+ * 环满之后，最早读入的页面如果仍然只被该扫描使用过并且是clean页面，就直接从缓冲池中丢弃，
+ * 这样一次扫描最多只会在缓冲池中占用环大小个页面。
+ * 扫描命中缓冲池中已有的页面时不会占用槽位，这些页面也不会被环丢弃。
+ *
+ * 缓冲环属于单个迭代器，不需要考虑线程安全。
+ *
+ * @see BufferPool#newScanRing(int)
+ */
+public class BufferRing {
+
+    //环中保存的页面 slots[next]是下一个要被复用的槽位
+    private final PageId[] slots;
+    private int next;
+
+    public BufferRing(int size) {
+        if (size < 1) throw new IllegalArgumentException("缓冲环大小必须大于0");
+        slots = new PageId[size];
+        next = 0;
+    }
+
+    /** Return the number of slots in this ring */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * 将扫描新读入的页面放入环中
+     * @param pid 新读入的页面id
+     * @return 被复用的槽位中原来保存的页面id，环还没满时返回null
+     */
+    PageId add(PageId pid) {
+        PageId replaced = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return replaced;
+    }
+}
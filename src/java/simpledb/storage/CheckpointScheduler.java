@@ -0,0 +1,100 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 检查点调度线程
+ * 上一个检查点之后写入的日志达到maxLogBytes，或者距离上一个检查点超过interval并且写过日志时，做一次检查点。
+ * 检查点是模糊的，只记录活跃事务和脏页表，不写回页面，见LogFile#logCheckpoint()；
+ * 脏页由提交以及后台写回线程写回（见PageWriter），恢复时从脏页中最早的修改开始重做。
+ * 定期做检查点之后日志会随之截断，恢复读取的日志量由检查点的间隔决定。
+ *
+ * 手动做的检查点同样计入间隔。
+ *
+ * @see LogFile#startCheckpointScheduler(long, long)
+ */
+public class CheckpointScheduler implements Runnable {
+
+    public static final long DEFAULT_MAX_LOG_BYTES = 16L << 20;
+    public static final long DEFAULT_INTERVAL_MILLIS = 30000;
+    //两次检查日志量之间等待的时间
+    private static final long POLL_MILLIS = 20;
+
+    private final LogFile logFile;
+    //检查点要读取所属数据库的缓冲池中的脏页表
+    private final Database database;
+    private final long maxLogBytes;
+    private final long intervalNanos;
+
+    private final Thread thread;
+    private volatile boolean running;
+
+    CheckpointScheduler(LogFile logFile, Database database, long maxLogBytes, long intervalMillis) {
+        if (maxLogBytes < 1 || intervalMillis < 1) throw new IllegalArgumentException("checkpoint log size and interval must be positive");
+        this.logFile = logFile;
+        this.database = database;
+        this.maxLogBytes = maxLogBytes;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.thread = new Thread(this, "simpledb-checkpoint");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * 停止调度线程并等待它退出，正在做的检查点会做完
+     * 不打断线程：force用的FileChannel被打断时会直接关闭
+     */
+    void stop() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        Database.bind(database);
+        long checkpointLSN = logFile.getCheckpointLSN();
+        long checkpointTime = System.nanoTime();
+        while (running) {
+            try {
+                synchronized (this) {
+                    if (running) wait(POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running) break;
+            //其他线程做了检查点
+            if (logFile.getCheckpointLSN() != checkpointLSN) {
+                checkpointLSN = logFile.getCheckpointLSN();
+                checkpointTime = System.nanoTime();
+            }
+            long logged = logFile.getCurrentLSN() - checkpointLSN;
+            if (logged <= 0) continue;
+            if (logged >= maxLogBytes || System.nanoTime() - checkpointTime >= intervalNanos) {
+                try {
+                    logFile.logCheckpoint();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                checkpointLSN = logFile.getCheckpointLSN();
+                checkpointTime = System.nanoTime();
+            }
+        }
+    }
+}
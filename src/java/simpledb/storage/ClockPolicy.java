@@ -0,0 +1,127 @@
+package simpledb.storage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * @author zhp
+ * @date 2026-10-16
+ * CLOCK置换策略（二次机会算法）
+ * 所有页面组成一个环，每个页面有一个访问位。页面被访问时访问位置1，
+ * 时钟指针扫描时遇到访问位为1的页面就将其清0并跳过，遇到访问位为0的页面就驱逐。
+ * 被反复访问的页面（例如B+树的内部页、根指针页）可以一直留在缓冲池中。
+ *
+ * 环是按缓冲池容量分配的固定槽位数组，页面id到槽位的映射保存在map中，
+ * 读入、命中、移除页面都是O(1)，新页面放进被驱逐页面空出的槽位。
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    //时钟环 空槽位为null
+    private PageId[] slots;
+    //槽位上页面的访问位
+    private boolean[] referenced;
+    //页面所在的槽位
+    private final Map<PageId, Integer> slotOf;
+    //空槽位栈，栈顶为freeSlots[freeCount - 1]
+    private int[] freeSlots;
+    private int freeCount;
+    //时钟指针
+    private int hand;
+
+    public ClockPolicy() {
+        this(BufferPool.DEFAULT_PAGES);
+    }
+
+    public ClockPolicy(int capacity) {
+        slotOf = new HashMap<>();
+        allocate(capacity);
+    }
+
+    //按容量重新分配空的时钟环
+    private void allocate(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("缓冲池页数必须大于0");
+        slots = new PageId[capacity];
+        referenced = new boolean[capacity];
+        freeSlots = new int[capacity];
+        freeCount = 0;
+        pushFreeSlots(0, capacity);
+        slotOf.clear();
+        hand = 0;
+    }
+
+    //把[from, to)的槽位放入空槽位栈，编号小的槽位先被使用
+    private void pushFreeSlots(int from, int to) {
+        for (int i = to - 1; i >= from; i--) freeSlots[freeCount++] = i;
+    }
+
+    @Override
+    public synchronized void pageAdded(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced[slot] = true;
+            return;
+        }
+        //页面数超过了容量（策略没有交给BufferPartition管理时），环扩大一倍
+        if (freeCount == 0) {
+            int old = slots.length;
+            slots = Arrays.copyOf(slots, old * 2);
+            referenced = Arrays.copyOf(referenced, old * 2);
+            freeSlots = Arrays.copyOf(freeSlots, old * 2);
+            pushFreeSlots(old, old * 2);
+        }
+        int free = freeSlots[--freeCount];
+        slots[free] = pid;
+        referenced[free] = true;
+        slotOf.put(pid, free);
+    }
+
+    @Override
+    public synchronized void pageAccessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) referenced[slot] = true;
+    }
+
+    @Override
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot == null) return;
+        slots[slot] = null;
+        referenced[slot] = false;
+        freeSlots[freeCount++] = slot;
+    }
+
+    @Override
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        //最多扫描两圈：第一圈清除访问位，第二圈一定能找到访问位为0的页面
+        int steps = slots.length * 2;
+        for (int i = 0; i < steps; i++) {
+            PageId pid = slots[hand];
+            if (pid != null) {
+                if (referenced[hand]) {
+                    referenced[hand] = false;
+                } else if (evictable.test(pid)) {
+                    return pid;
+                }
+            }
+            hand = (hand + 1) % slots.length;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void reset() {
+        Arrays.fill(slots, null);
+        Arrays.fill(referenced, false);
+        freeCount = 0;
+        pushFreeSlots(0, slots.length);
+        slotOf.clear();
+        hand = 0;
+    }
+
+    @Override
+    public synchronized void reset(int capacity) {
+        allocate(capacity);
+    }
+}
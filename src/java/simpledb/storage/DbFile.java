@@ -24,6 +24,18 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Construct the specified page from bytes previously returned by its
+     * {@link Page#getPageData()}, without reading the file. Files that
+     * cannot do this return null, and the page is read from disk instead.
+     *
+     * @param id the id of the page
+     * @param data the contents of the page
+     */
+    default Page decodePage(PageId id, byte[] data) {
+        return null;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -0,0 +1,165 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 数据文件的长期打开的FileChannel
+ * 每个DbFile持有一个FileHandle，页面读写使用FileChannel的按位置读写，
+ * 不再为每次I/O打开、关闭一次文件，多个线程读同一个文件时也不会争用同一个文件指针。
+ *
+ * 同时打开的文件数有上限MAX_OPEN_FILES：所有FileHandle按最近使用的顺序登记在一起，
+ * 超过上限时关闭最久没有使用、当前没有I/O的文件，下次读写时再重新打开。
+ *
+ * FileChannel在执行I/O的线程被打断时会被关闭。其他线程的I/O因此失败时会重新打开文件再试一次，
+ * 被打断的线程自己的I/O直接抛出异常。
+ */
+public class FileHandle {
+
+    /** Upper bound on the number of data files kept open at the same time */
+    public static final int MAX_OPEN_FILES = 64;
+
+    //所有打开了文件的FileHandle 按访问顺序排列，最久没有使用的在最前面
+    private static final LinkedHashMap<FileHandle, FileHandle> opened = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final File file;
+    //未打开时为null
+    private FileChannel channel;
+    //正在使用channel的I/O数 不为0时不能关闭
+    private int users;
+
+    public FileHandle(File file) {
+        this.file = file;
+    }
+
+    /** Return the number of data files that are currently open */
+    public static int openFiles() {
+        synchronized (opened) {
+            return opened.size();
+        }
+    }
+
+    private FileChannel acquire() throws IOException {
+        FileChannel ch;
+        synchronized (this) {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            }
+            users++;
+            ch = channel;
+        }
+        synchronized (opened) {
+            opened.put(this, this);
+            //关闭最久没有使用的空闲文件 正在I/O的文件暂时跳过
+            Iterator<FileHandle> it = opened.keySet().iterator();
+            while (opened.size() > MAX_OPEN_FILES && it.hasNext()) {
+                FileHandle eldest = it.next();
+                if (eldest != this && eldest.closeIfIdle()) it.remove();
+            }
+        }
+        return ch;
+    }
+
+    private synchronized void release() {
+        users--;
+    }
+
+    private synchronized boolean closeIfIdle() {
+        if (users > 0) return false;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+        return true;
+    }
+
+    //channel已经被关闭 下次I/O重新打开
+    private synchronized void invalidate(FileChannel ch) {
+        if (channel == ch) channel = null;
+    }
+
+    private interface ChannelIO {
+        int apply(FileChannel ch) throws IOException;
+    }
+
+    private int run(ChannelIO io) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            FileChannel ch = acquire();
+            try {
+                return io.apply(ch);
+            } catch (ClosedChannelException e) {
+                invalidate(ch);
+                if (e instanceof ClosedByInterruptException || attempt > 0) throw e;
+            } finally {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Read data.length bytes of the file starting at pos. Bytes past the end
+     * of the file are left as they are.
+     *
+     * @return the number of bytes read
+     */
+    public int read(byte[] data, long pos) throws IOException {
+        return run(ch -> {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, pos + buf.position()) < 0) break;
+            }
+            return buf.position();
+        });
+    }
+
+    /**
+     * Write all of data to the file starting at pos, growing the file if needed.
+     */
+    public void write(byte[] data, long pos) throws IOException {
+        run(ch -> {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                ch.write(buf, pos + buf.position());
+            }
+            return data.length;
+        });
+    }
+
+    /**
+     * Map size bytes of the file starting at pos read-only. The mapping stays
+     * valid after the file is closed; size must not reach past the end of
+     * the file.
+     */
+    public MappedByteBuffer map(long pos, long size) throws IOException {
+        MappedByteBuffer[] mapped = new MappedByteBuffer[1];
+        run(ch -> {
+            mapped[0] = ch.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            return 0;
+        });
+        return mapped[0];
+    }
+
+    /**
+     * Close the file. It is opened again by the next read or write.
+     */
+    public void close() {
+        synchronized (opened) {
+            if (closeIfIdle()) opened.remove(this);
+        }
+    }
+}
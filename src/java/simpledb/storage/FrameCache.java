@@ -0,0 +1,170 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 堆外页帧缓存：缓冲池之下的第二级缓存
+ * 被驱逐的clean页面以原始字节的形式保存到堆外的页帧中，页帧的总大小由字节预算决定。
+ * 再次访问时直接从页帧中解码，省去一次磁盘读取。
+ *
+ * 页帧缓存只节省磁盘读取，不节省堆内存：缓冲池仍然按页数（PAGES_NUM）限制，
+ * 缓冲池中的每个页面仍然是解码后的对象（HeapPage的Tuple数组、before image的完整拷贝等），
+ * 驻留页面占用的堆内存和GC开销与不开启页帧缓存时相同；从页帧中取回的页面同样会被完整解码。
+ *
+ * 页帧按固定大小从若干个direct ByteBuffer（slab）中划分，不受GC管理。
+ * 页面被重新读入缓冲池时会从页帧中取出，同一页面不会同时出现在缓冲池和页帧中。
+ * 页帧满了之后按先进先出的顺序覆盖最早放入的页面。
+ *
+ * 页帧以（表id，页号）区分页面，同一位置上不同类型的BTree页面共用一个页帧。
+ * 所有操作都持有内部的锁，持有该锁时不会再获取其他锁。
+ *
+ * @see BufferPool#setOffHeapBudget(long)
+ */
+class FrameCache {
+
+    //单个slab最大1GB
+    static final int MAX_SLAB_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int framesPerSlab;
+    private final ByteBuffer[] slabs;
+    //页面位置 -> 页帧
+    private final HashMap<Long, Integer> frameOf;
+    //页帧中保存的页面 空帧为null
+    private final PageId[] pageOf;
+    //页帧中页面数据的实际长度（BTree根指针页比普通页面小）
+    private final int[] lengths;
+    //空闲页帧
+    private final ArrayDeque<Integer> free;
+    //没有空闲页帧时下一个被覆盖的页帧
+    private int hand;
+    private final ReentrantLock lock;
+
+    /**
+     * @param budgetBytes 页帧总共占用的堆外内存
+     * @param frameSize 每个页帧的大小，即缓冲池的页面大小
+     */
+    FrameCache(long budgetBytes, int frameSize) {
+        long numFrames = budgetBytes / frameSize;
+        if (numFrames < 1) throw new IllegalArgumentException("页帧预算小于一个页面");
+        if (numFrames > Integer.MAX_VALUE) throw new IllegalArgumentException("页帧预算过大");
+        this.frameSize = frameSize;
+        this.framesPerSlab = Math.max(1, MAX_SLAB_BYTES / frameSize);
+        int frames = (int) numFrames;
+        this.slabs = new ByteBuffer[(frames + framesPerSlab - 1) / framesPerSlab];
+        for (int i = 0; i < slabs.length; i++) {
+            int framesInSlab = Math.min(framesPerSlab, frames - i * framesPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(framesInSlab * frameSize);
+        }
+        this.frameOf = new HashMap<>();
+        this.pageOf = new PageId[frames];
+        this.lengths = new int[frames];
+        this.free = new ArrayDeque<>(frames);
+        for (int i = 0; i < frames; i++) {
+            free.add(i);
+        }
+        this.hand = 0;
+        this.lock = new ReentrantLock();
+    }
+
+    /** 页帧数量 */
+    int numFrames() {
+        return pageOf.length;
+    }
+
+    /** 保存了页面的页帧数量 */
+    int size() {
+        lock.lock();
+        try {
+            return frameOf.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long position(PageId pid) {
+        return ((long) pid.getTableId() << 32) | (pid.getPageNumber() & 0xffffffffL);
+    }
+
+    /**
+     * 页帧在slab中的位置，调用时需要持有锁
+     */
+    private ByteBuffer frame(int frame) {
+        ByteBuffer slab = slabs[frame / framesPerSlab];
+        slab.clear();
+        slab.position((frame % framesPerSlab) * frameSize);
+        return slab;
+    }
+
+    /**
+     * 把被驱逐的clean页面保存到页帧中
+     * @param page 被驱逐的页面，内容需要和磁盘上一致
+     */
+    void put(Page page) {
+        byte[] data = page.getPageData();
+        if (data.length > frameSize) return;
+        long pos = position(page.getId());
+        lock.lock();
+        try {
+            Integer frame = frameOf.get(pos);
+            if (frame == null) {
+                frame = free.poll();
+                if (frame == null) {
+                    //覆盖最早放入的页面
+                    frame = hand;
+                    hand = (hand + 1) % pageOf.length;
+                    frameOf.remove(position(pageOf[frame]));
+                }
+                frameOf.put(pos, frame);
+            }
+            pageOf[frame] = page.getId();
+            lengths[frame] = data.length;
+            frame(frame).put(data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出页面的数据并释放页帧
+     * @return 页面数据，页帧中没有该页面时返回null
+     */
+    byte[] take(PageId pid) {
+        lock.lock();
+        try {
+            Integer frame = frameOf.remove(position(pid));
+            if (frame == null) return null;
+            PageId cached = pageOf[frame];
+            pageOf[frame] = null;
+            free.add(frame);
+            //同一位置上保存的是其他类型的页面 已经过期
+            if (!cached.equals(pid)) return null;
+            byte[] data = new byte[lengths[frame]];
+            frame(frame).get(data);
+            return data;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃页帧中与pid位置相同的页面
+     */
+    void invalidate(PageId pid) {
+        lock.lock();
+        try {
+            Integer frame = frameOf.remove(position(pid));
+            if (frame != null) {
+                pageOf[frame] = null;
+                free.add(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 组提交线程
+ * 开启后，logCommit在LogFile的对象锁内只追加提交记录，然后在锁外排队等待日志落盘；
+ * 该线程每次取出一批排队的提交（最多batchSize个，第一个到达之后最多再等maxDelay），
+ * force一次日志后唤醒这一批提交。同时提交的N个事务只需要一次force。
+ *
+ * 排队发生在提交记录写入之后，因此取出队列之后开始的force一定覆盖了这一批的提交记录。
+ *
+ * @see LogFile#startGroupCommit(int, long)
+ */
+public class GroupCommit implements Runnable {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final long DEFAULT_MAX_DELAY_MICROS = 0;
+    //队列为空时最多等待多久再检查一次是否需要停止
+    private static final long POLL_MILLIS = 20;
+
+    private final LogFile logFile;
+    //每次force最多唤醒的提交数
+    private final int batchSize;
+    //一批中第一个提交到达之后最多再等多久凑齐一批(ns) 0表示只带上已经在排队的提交
+    private final long maxDelayNanos;
+    private final BlockingQueue<CompletableFuture<Void>> waiting = new LinkedBlockingQueue<>();
+
+    private final Thread thread;
+    private volatile boolean running;
+
+    GroupCommit(LogFile logFile, int batchSize, long maxDelayMicros) {
+        if (batchSize < 1) throw new IllegalArgumentException("batch size must be positive");
+        this.logFile = logFile;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+        this.thread = new Thread(this, "simpledb-group-commit");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * 停止组提交线程并等待它退出，之后由调用者force仍在排队的提交
+     * 不打断线程：force用的FileChannel被打断时会直接关闭
+     */
+    void stop() throws IOException {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        forceWaiting();
+    }
+
+    /**
+     * 等待调用者已经写入的日志记录落盘
+     * 线程已经停止时由调用者自己force
+     */
+    void await() throws IOException {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        waiting.add(durable);
+        if (!running) forceWaiting();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    durable.get();
+                    return;
+                } catch (InterruptedException e) {
+                    //提交记录已经写入 必须等到它落盘才能返回
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    //取出所有排队的提交并force一次
+    private void forceWaiting() throws IOException {
+        List<CompletableFuture<Void>> batch = new ArrayList<>();
+        waiting.drainTo(batch);
+        if (!batch.isEmpty()) force(batch);
+    }
+
+    private void force(List<CompletableFuture<Void>> batch) throws IOException {
+        try {
+            logFile.force();
+        } catch (IOException e) {
+            for (CompletableFuture<Void> f : batch) f.completeExceptionally(e);
+            throw e;
+        }
+        logFile.groupForced(batch.size());
+        for (CompletableFuture<Void> f : batch) f.complete(null);
+    }
+
+    //取出下一批提交 队列为空时等待POLL_MILLIS后返回空的一批
+    private void collect(List<CompletableFuture<Void>> batch) throws InterruptedException {
+        CompletableFuture<Void> first = waiting.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) return;
+        batch.add(first);
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            CompletableFuture<Void> next = remaining > 0
+                    ? waiting.poll(remaining, TimeUnit.NANOSECONDS) : waiting.poll();
+            if (next == null) return;
+            batch.add(next);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            List<CompletableFuture<Void>> batch = new ArrayList<>();
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                //已经取出的提交照常force
+            }
+            if (batch.isEmpty()) continue;
+            try {
+                force(batch);
+            } catch (IOException e) {
+                //这一批的提交已经收到异常
+                e.printStackTrace();
+            }
+        }
+    }
+}
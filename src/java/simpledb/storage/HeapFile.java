@@ -3,12 +3,15 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
+import simpledb.common.LockWait;
 import simpledb.common.Permissions;
+import simpledb.transaction.LockNotAvailableException;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -28,6 +31,12 @@ public class HeapFile implements DbFile {
     private TupleDesc tupleDesc;
     //代表文件中保存的页数
     private int pageNum;
+    //文件的FileChannel 所有页面读写共用
+    private final FileHandle handle;
+    //内存映射读取页面 未开启时为null
+    private volatile MappedFile mapped;
+    //按行加锁 见setRowLocking
+    private volatile boolean rowLocking;
     //记录文件是否第一打开
     //private boolean firstOpen;
 
@@ -43,6 +52,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         file = f;
         tupleDesc = td;
+        handle = new FileHandle(f);
         //文件页数大小等于 文件大小与页尺寸之比
         pageNum = (int)file.length()/BufferPool.getPageSize();
        // firstOpen =true;
@@ -82,6 +92,57 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Read pages through a read-only memory mapping of the file instead of
+     * copying them out of the file. Pages are parsed straight from the mapped
+     * region; writes still go through the file. The mapping is extended in
+     * segments as the file grows.
+     *
+     * @param enabled whether pages of this table are read through the mapping
+     */
+    public void setMemoryMapped(boolean enabled) {
+        mapped = enabled ? new MappedFile(file, handle, BufferPool.getPageSize()) : null;
+    }
+
+    /** Return whether pages of this table are read through a memory mapping */
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Lock single tuples instead of whole pages when tuples of this table are
+     * inserted, deleted or scanned. Pages only take intention locks, so
+     * transactions that change different tuples of the same page no longer
+     * wait for each other; the page itself is latched only while it is being
+     * modified. Scans lock each tuple they read until the transaction ends,
+     * as page locks are kept, so a transaction that scans twice sees the
+     * same tuples; transactions that asked for read committed release each
+     * tuple's lock once it was read (see Transaction#setReadCommitted). A
+     * delete fails with a TransactionAbortedException if the tuple changed
+     * since it was read.
+     *
+     * @param enabled whether tuples of this table are locked one at a time
+     */
+    public void setRowLocking(boolean enabled) {
+        rowLocking = enabled;
+    }
+
+    /** Return whether tuples of this table are locked one at a time */
+    public boolean isRowLocking() {
+        return rowLocking;
+    }
+
+    //从内存映射中读出页面 页面不在映射范围内时返回null
+    private Page readMappedPage(MappedFile m, PageId pid) throws IOException {
+        //页尺寸改变之后之前的映射不再可用
+        if (m.pageSize() != BufferPool.getPageSize()) {
+            m = new MappedFile(file, handle, BufferPool.getPageSize());
+            mapped = m;
+        }
+        ByteBuffer data = m.page(pid.getPageNumber());
+        return data == null ? null : new HeapPage((HeapPageId) pid, data);
+    }
+
     /**参考别人的 对文件读取不是很懂
      * Read the specified page from disk.
      *
@@ -91,24 +152,40 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         // some code goes here
         Page page = null;
+        MappedFile m = mapped;
+        if (m != null) {
+            try {
+                page = readMappedPage(m, pid);
+                if (page != null) return page;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         byte data[] =new byte[BufferPool.getPageSize()];
 
-        //随机访问file文件并读出
-        try (RandomAccessFile raf = new RandomAccessFile(getFile(), "r")) {
+        //按位置读出file文件中的页面
+        try {
             //根据要读去的页面号 获取在文件中的位置
-            int pos = pid.getPageNumber()*BufferPool.getPageSize();
-            //设置指针位置
-            raf.seek(pos);
-            raf.read(data,0,data.length);
+            long pos = (long) pid.getPageNumber()*BufferPool.getPageSize();
+            handle.read(data,pos);
             page = new HeapPage((HeapPageId) pid,data);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
         return page;
     }
 
+    // see DbFile.java for javadocs
+    @Override
+    public Page decodePage(PageId pid, byte[] data) {
+        try {
+            return new HeapPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     // see DbFile.java for javadocs
     //将page写入磁盘中
     public void writePage(Page page) throws IOException {
@@ -121,11 +198,10 @@ public class HeapFile implements DbFile {
         //1.先获取要写入磁盘的数据
         byte[] pageData = page.getPageData();
         //2.获取要写入的位置
-        try( RandomAccessFile raf = new RandomAccessFile(getFile(), "rw")){
+        try {
             //根据页号查找位置
-            int pos = page.getId().getPageNumber()*BufferPool.getPageSize();
-            raf.seek(pos);
-            raf.write(pageData);
+            long pos = (long) page.getId().getPageNumber()*BufferPool.getPageSize();
+            handle.write(pageData,pos);
             //如果是第一次打开，则第一次往文件内添加页不应该增加页数 应为在初始化时，页数已经设置为1  这段代码有无都无所谓。。。。。  我傻了
 //            if(!firstOpen){
 //                pageNum++;
@@ -166,6 +242,7 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if(rowLocking) return insertRow(tid, t);
 
         //返回受到影响的页面
         List<Page> affectedPage = new ArrayList<>();
@@ -175,12 +252,12 @@ public class HeapFile implements DbFile {
             //获取每页的页id
             HeapPageId heapPageId = new HeapPageId(this.getId(), i);
             //根据页id从BufferPool中取出对应的页面
-            HeapPage page = (HeapPage)BufferPool.getPage(tid, heapPageId, Permissions.READ_WRITE);
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
 
             //如果当前页面还存在非空的slot 则说明当前页面可以存入tuple
             if(page.getNumEmptySlots()!=0){
 
-                page.insertTuple(t);
+                insertLatched(page, t);
 
                 page.markDirty(true, tid);
                 affectedPage.add(page);
@@ -202,8 +279,8 @@ public class HeapFile implements DbFile {
             //写入磁盘
             writePage(heapPage);
             //从BufferPool中读出
-            HeapPage page = (HeapPage)BufferPool.getPage(tid, heapPageId, Permissions.READ_WRITE);
-            page.insertTuple(t);
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
+            insertLatched(page, t);
             page.markDirty(true, tid);
             affectedPage.add(page);
         }
@@ -211,6 +288,82 @@ public class HeapFile implements DbFile {
         return affectedPage;
     }
 
+    //在页面的排他latch下插入元组 页锁保证事务之间的隔离，latch保证修改期间没有线程读到修改了一半的页面
+    private static void insertLatched(HeapPage page, Tuple t) throws DbException {
+        page.getLatch().exclusive();
+        try {
+            page.insertTuple(t);
+        } finally {
+            page.getLatch().releaseExclusive();
+        }
+    }
+
+    /**
+     * 按行加锁的插入：在有空slot的页面中选一个能够不等待地加上X锁的空slot插入
+     * 被其他事务删除、还没有提交的slot仍然被删除者锁着，不会被复用
+     */
+    private List<Page> insertRow(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        for(int i=0;;i++){
+            if(i>=numPages()) appendEmptyPage(i);
+            HeapPageId heapPageId = new HeapPageId(getId(), i);
+            //先只读地检查页面是否还有空slot，满的页面不需要成为写者
+            HeapPage page = (HeapPage) pool.getRowPage(tid, heapPageId, Permissions.READ_ONLY);
+            if(page.getNumEmptySlots()==0) continue;
+            page = (HeapPage) pool.getRowPage(tid, heapPageId, Permissions.READ_WRITE);
+            page.getLatch().exclusive();
+            try {
+                for(int slot=0;slot<page.numSlots;slot++){
+                    if(page.isSlotUsed(slot)) continue;
+                    if(!pool.lockManager.tryRowLock(tid, new RecordId(heapPageId, slot), Permissions.READ_WRITE)) continue;
+                    page.insertTuple(t, slot);
+                    pool.rowChanged(tid, page, slot, null);
+                    List<Page> affectedPage = new ArrayList<>();
+                    affectedPage.add(page);
+                    return affectedPage;
+                }
+                //检查之后页面被填满，或者空slot都被其他事务锁住，不再作为页面的写者
+                pool.rowPageUnused(tid, page);
+            } finally {
+                page.getLatch().releaseExclusive();
+            }
+        }
+    }
+
+    //文件只有pageNo页时在末尾追加一个空页面 并发的插入只追加一次
+    private synchronized void appendEmptyPage(int pageNo) throws IOException {
+        if(numPages()>pageNo) return;
+        writePage(new HeapPage(new HeapPageId(getId(), pageNo), HeapPage.createEmptyPageData()));
+    }
+
+    /**
+     * 按行加锁的删除：先获取元组上的X锁，再在页面的latch下删除
+     * 元组在读出之后被其他已提交的事务删除或替换时中止，避免丢失更新
+     */
+    private ArrayList<Page> deleteRow(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if(rid==null||rid.getPageId().getTableId()!=getId()||rid.getPageId().getPageNumber()>=numPages()){
+            throw new DbException("不存在要删除的元组，无法完成删除操作");
+        }
+        BufferPool pool = Database.getBufferPool();
+        pool.lockManager.acquireRowLock(tid, rid, Permissions.READ_WRITE);
+        HeapPage page = (HeapPage) pool.getRowPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        page.getLatch().exclusive();
+        try {
+            Tuple current = page.getTuple(rid.getTupleNumber());
+            if(current==null||!current.equals(t)) throw new TransactionAbortedException();
+            page.deleteTuple(current);
+            pool.rowChanged(tid, page, rid.getTupleNumber(), current);
+        } finally {
+            page.getLatch().releaseExclusive();
+        }
+        ArrayList<Page> affectedPage = new ArrayList<>();
+        affectedPage.add(page);
+        return affectedPage;
+    }
+
     /**
      * 按照实验讲义所给的提示，调用页面必须通过BufferPoold的getPage()方法，否则后序实验会出错
      * @param tid The transaction performing the update
@@ -225,6 +378,7 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
+        if(rowLocking) return deleteRow(tid, t);
 
         //收到印影响的页
         ArrayList<Page> affetcedPage = new ArrayList<>();
@@ -236,8 +390,13 @@ public class HeapFile implements DbFile {
         for(int i=0;i<this.pageNum;i++) {
             if(i==pageId.getPageNumber()){
                 //根据页id从BufferPool中取出对应的页面
-                HeapPage page = (HeapPage) BufferPool.getPage(tid, pageId, Permissions.READ_WRITE);
-                page.deleteTuple(t);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+                page.getLatch().exclusive();
+                try {
+                    page.deleteTuple(t);
+                } finally {
+                    page.getLatch().releaseExclusive();
+                }
                 affetcedPage.add(page);
 
             }
@@ -262,10 +421,28 @@ public class HeapFile implements DbFile {
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
         //这里试一下在返回表迭代器前，将BufferPool中的所有页面写回磁盘，保证，修改期间
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, Permissions.READ_ONLY, LockWait.WAIT);
 
     }
 
+    /**
+     * Returns an iterator over the tuples of this file that locks what it
+     * reads with the given permissions. Pages, or tuples if the table uses
+     * row locking, that another transaction holds a conflicting lock on are
+     * waited for, skipped or make the scan fail, as chosen by wait. Scanning
+     * with READ_WRITE and SKIP_LOCKED lets several transactions take tuples
+     * off a queue table without waiting for each other: each keeps the
+     * tuples it saw locked until it ends, and the others skip them.
+     *
+     * @param tid the transaction scanning the file
+     * @param perm READ_ONLY to lock tuples as a plain scan does, READ_WRITE
+     *        to lock them for a later update or delete
+     * @param wait what to do with pages or tuples locked by other transactions
+     */
+    public DbFileIterator iterator(TransactionId tid, Permissions perm, LockWait wait) {
+        return new HeapFileIterator(tid, perm, wait);
+    }
+
 
     /**
      * 参考别人的代码
@@ -278,20 +455,112 @@ public class HeapFile implements DbFile {
         private int pageNo;
         //事务id
         TransactionId tid;
-
-        public HeapFileIterator(TransactionId tid){
+        //大表扫描使用的缓冲环，小表为null
+        private BufferRing ring;
+        //顺序扫描的预读，缓冲池未开启预读时为null
+        private ReadAhead readAhead;
+        //对读到的页面或元组加的锁 以及锁被其他事务持有时的处理方式
+        private final Permissions perm;
+        private final LockWait wait;
+        //按行加锁时当前页面还没有读的槽位 每次hasNext只对下一个元组加锁
+        private HeapPageId rowPageId;
+        private Iterator<Integer> rowSlots;
+
+        public HeapFileIterator(TransactionId tid, Permissions perm, LockWait wait){
             this.tid = tid;
+            this.perm = perm;
+            this.wait = wait;
         }
 
         private Iterator<Tuple> getIterator(HeapPageId hpid) throws TransactionAbortedException, DbException {
+            //快照读事务不加锁 读快照中已提交的版本
+            Long snapshot = Database.getBufferPool().getSnapshot(tid);
+            if(snapshot!=null) return ((HeapPage) Database.getBufferPool().getSnapshotPage(hpid, snapshot)).iterator();
+            if(rowLocking) return rowIterator(hpid);
             // 不能直接使用HeapFile的readPage方法，而是通过BufferPool来获得page，理由见readPage()方法的Javadoc
-            HeapPage page =(HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_ONLY);
+            HeapPage page;
+            if(perm==Permissions.READ_ONLY&&wait==LockWait.WAIT){
+                page = (HeapPage) Database.getBufferPool().getPage(tid, hpid, Permissions.READ_ONLY, ring);
+            }else{
+                //被其他事务锁住的页面在SKIP LOCKED时整页跳过
+                page = (HeapPage) Database.getBufferPool().getPage(tid, hpid, perm, wait);
+                if(page==null) return Collections.emptyIterator();
+            }
+            if(readAhead!=null) readAhead.access(page);
             return page.iterator();
         }
 
+        /**
+         * 按行加锁时读出页面中已提交的元组
+         * 每个元组加上S锁读出，锁和页锁一样保留到事务结束；读已提交的事务读完之后立即释放
+         * （事务自己已经持有锁的除外，见Transaction#setReadCommitted）。
+         * 其他事务正在修改的元组要等修改者结束才能读到；被其他事务删除、还没有提交的元组也要等待，
+         * 删除者中止时它还会回到页面中
+         * 以READ_WRITE扫描时元组上加X锁并保留到事务结束；NOWAIT、SKIP LOCKED时不等待被锁住的元组
+         * 元组逐个加锁读出，扫描提前关闭时后面的元组不会被锁住
+         */
+        private Iterator<Tuple> rowIterator(HeapPageId hpid) throws TransactionAbortedException, DbException {
+            BufferPool pool = Database.getBufferPool();
+            HeapPage page = (HeapPage) pool.getRowPage(tid, hpid, Permissions.READ_ONLY);
+            if(readAhead!=null) readAhead.access(page);
+            Set<Integer> slots = new TreeSet<>();
+            page.getLatch().shared();
+            try {
+                for(int slot=0;slot<page.numSlots;slot++){
+                    if(page.isSlotUsed(slot)) slots.add(slot);
+                }
+                slots.addAll(pool.uncommittedSlots(tid, hpid));
+            } finally {
+                page.getLatch().releaseShared();
+            }
+            rowPageId = hpid;
+            rowSlots = slots.iterator();
+            return nextRow();
+        }
+
+        //读出当前页面中下一个加上锁的元组 没有时返回空迭代器
+        private Iterator<Tuple> nextRow() throws TransactionAbortedException, DbException {
+            BufferPool pool = Database.getBufferPool();
+            HeapPageId hpid = rowPageId;
+            while(rowSlots.hasNext()){
+                int slot = rowSlots.next();
+                RecordId rid = new RecordId(hpid, slot);
+                boolean held = pool.lockManager.holdsRowLock(tid, rid, perm);
+                if(!held){
+                    if(wait==LockWait.WAIT){
+                        pool.lockManager.acquireRowLock(tid, rid, perm);
+                    }else if(!pool.lockManager.tryRowLock(tid, rid, perm)){
+                        if(wait==LockWait.NOWAIT) throw new LockNotAvailableException();
+                        continue;
+                    }
+                }
+                //等待期间页面可能被驱逐后重新读入
+                HeapPage page = (HeapPage) pool.getRowPage(tid, hpid, Permissions.READ_ONLY);
+                Tuple tuple;
+                page.getLatch().shared();
+                try {
+                    tuple = page.getTuple(slot);
+                } finally {
+                    page.getLatch().releaseShared();
+                }
+                if(!held&&perm==Permissions.READ_ONLY&&pool.lockManager.isReadCommitted(tid)) pool.lockManager.releaseRowLock(tid, rid);
+                if(tuple!=null) return Collections.singletonList(tuple).iterator();
+            }
+            return Collections.emptyIterator();
+        }
+
+        //顺序扫描时page之后的页面 已经是最后一页时返回null
+        private PageId nextPage(Page page) {
+            int next = page.getId().getPageNumber()+1;
+            return next<numPages() ? new HeapPageId(getId(), next) : null;
+        }
+
         @Override
         public void open() throws DbException, TransactionAbortedException {
             this.pageNo=0;
+            //大表通过缓冲环扫描，避免把缓冲池中的热点页面挤出去
+            this.ring = Database.getBufferPool().newScanRing(numPages());
+            this.readAhead = Database.getBufferPool().newReadAhead(this::nextPage);
             //getId（）返回该HeapFile的唯一标识符 并传入要读取的页
             HeapPageId hpid = new HeapPageId(getId(), pageNo);
             this.iterator = getIterator(hpid);
@@ -310,6 +579,11 @@ public class HeapFile implements DbFile {
             if(iterator.hasNext()){
                 return true;
             }
+            //按行加锁时继续读当前页面的下一个元组
+            if(rowLocking&&rowSlots!=null){
+                iterator = nextRow();
+                if(iterator.hasNext()) return true;
+            }
 
             //iterator是整个文件的迭代器 所以当前上述条件都不满足时 需要将该迭代器更新 让他去迭代下一个页面的元组
             //如果当前迭代器迭代到的页面小于总页数
@@ -355,6 +629,9 @@ public class HeapFile implements DbFile {
         public void close() {
             pageNo=0;
             iterator=null;
+            rowSlots=null;
+            ring=null;
+            readAhead=null;
         }
     }
 
@@ -8,6 +8,7 @@ import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionId;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.io.*;
 
@@ -34,8 +35,14 @@ public class HeapPage implements Page {
     //调用该页进行活动的事务id
     private TransactionId tid;
 
+    //before image 为null时页面自上次设置before image之后没有被修改过，before image就是当前内容，
+    //第一次修改之前才生成拷贝，只读的页面（例如从内存映射中解码的页面）不需要额外的拷贝
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
+    //页面内容的latch 见PageLatch
+    private final PageLatch latch = new PageLatch();
+    //最后一次修改的日志记录的LSN 只在内存中
+    private volatile long pageLSN;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -54,11 +61,26 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Create a HeapPage directly from a region of a buffer, such as a
+     * memory-mapped data file, without copying it into a byte array first.
+     * The page is parsed from the buffer's position up to its limit; the
+     * buffer itself is not modified and is not referenced afterwards.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, new DataInputStream(new ByteBufferInputStream(data.duplicate())));
+    }
+
+    private HeapPage(HeapPageId id, DataInputStream dis) throws IOException {
 
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
@@ -74,8 +96,6 @@ public class HeapPage implements Page {
             e.printStackTrace();
         }
         dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -108,12 +128,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,beforeImageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -125,10 +140,46 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
         }
     }
 
+    //before image的原始内容 before image被替换时数组本身不会被修改
+    byte[] beforeImageData() {
+        synchronized(oldDataLock)
+        {
+        return oldData==null ? getPageData() : oldData;
+        }
+    }
+
+    //页面第一次被修改之前保存before image 所有修改都经过markSlotUsed
+    private void captureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if(oldData==null) oldData = getPageData();
+        }
+    }
+
+    //以data作为before image 行锁页面提交时使用提交的内容，页面上还有其他事务未提交的修改
+    void setBeforeImage(byte[] data) {
+        synchronized(oldDataLock)
+        {
+        oldData = data;
+        }
+    }
+
+    public PageLatch getLatch() {
+        return latch;
+    }
+
+    public long getPageLSN() {
+        return pageLSN;
+    }
+
+    public void setPageLSN(long lsn) {
+        pageLSN = lsn;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -309,6 +360,34 @@ public class HeapPage implements Page {
 
     }
 
+    /**
+     * 把元组插入指定的空slot 按行加锁时插入的位置由调用者选择，见HeapFile
+     * @throws DbException slot已经被使用或者元组类型不符
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if(isSlotUsed(slot)) throw new DbException("slot已经被使用，无法插入新的元组");
+        if(!t.getTupleDesc().equals(td)) throw new DbException("插入元组类型不符");
+        restoreTuple(slot, t);
+    }
+
+    /** 返回slot中的元组，slot为空时返回null */
+    Tuple getTuple(int slot) {
+        return isSlotUsed(slot) ? tuples[slot] : null;
+    }
+
+    /** 撤销插入：清空slot */
+    void clearSlot(int slot) {
+        markSlotUsed(slot, false);
+        tuples[slot] = null;
+    }
+
+    /** 撤销删除：把元组放回原来的slot */
+    void restoreTuple(int slot, Tuple t) {
+        markSlotUsed(slot, true);
+        tuples[slot] = t;
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
     /**获取第一个为空的元组位置
      * @return
      */
@@ -403,6 +482,7 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        captureBeforeImage();
         //老样子 获取该元组在header中的第几个字节的第几位
         int indexOfAll = i/8;
        int indexOfByte =i%8;
@@ -465,4 +545,39 @@ public class HeapPage implements Page {
             return tuples[index++];
         }
     }
+
+    //按顺序读出ByteBuffer中的字节 供DataInputStream解析映射区域中的页面
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
 }
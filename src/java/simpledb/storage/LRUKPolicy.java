@@ -0,0 +1,92 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * @author zhp
+ * @date 2026-10-16
+ * LRU-K置换策略
+ * 对每个页面记录最近K次访问的时间，驱逐时选择"倒数第K次访问"最早的页面（后向K距离最大）。
+ * 访问次数不足K次的页面后向K距离视为无穷大，优先被驱逐，它们之间再按最近一次访问时间做LRU。
+ * 这样只被扫描访问过一次的页面不会挤掉被反复访问的热点页面。
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    //逻辑时钟，每次访问加1
+    private long clock;
+    //页面最近K次的访问时间，history[0]为最近一次访问
+    private final Map<PageId, long[]> histories;
+
+    public LRUKPolicy() {
+        this(DEFAULT_K);
+    }
+
+    public LRUKPolicy(int k) {
+        if (k < 1) throw new IllegalArgumentException("K必须大于0");
+        this.k = k;
+        this.clock = 0;
+        this.histories = new HashMap<>();
+    }
+
+    @Override
+    public synchronized void pageAdded(PageId pid) {
+        record(pid);
+    }
+
+    @Override
+    public synchronized void pageAccessed(PageId pid) {
+        record(pid);
+    }
+
+    /**
+     * 记录一次访问 将历史访问时间后移一位
+     * @param pid
+     */
+    private void record(PageId pid) {
+        long[] history = histories.get(pid);
+        if (history == null) {
+            //0表示不存在该次访问
+            history = new long[k];
+            histories.put(pid, history);
+        }
+        System.arraycopy(history, 0, history, 1, k - 1);
+        history[0] = ++clock;
+    }
+
+    @Override
+    public synchronized void pageRemoved(PageId pid) {
+        histories.remove(pid);
+    }
+
+    @Override
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> entry : histories.entrySet()) {
+            long[] history = entry.getValue();
+            long kth = history[k - 1];
+            long last = history[0];
+            //先比较倒数第K次访问时间，相同（都不足K次时均为0）再比较最近一次访问时间
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (evictable.test(entry.getKey())) {
+                    victim = entry.getKey();
+                    victimKth = kth;
+                    victimLast = last;
+                }
+            }
+        }
+        return victim;
+    }
+
+    @Override
+    public synchronized void reset() {
+        histories.clear();
+        clock = 0;
+    }
+}
@@ -1,12 +1,16 @@
 package simpledb.storage;
 
 import simpledb.common.Permissions;
+import simpledb.transaction.LockNotAvailableException;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author zhp
@@ -15,154 +19,497 @@ import java.util.concurrent.ConcurrentLinkedDeque;
  * 对每个页保存持有该页的锁的事务以及锁类型的信息，因为可能有多个事务持有该页所以使用一个list结构保存
  *      --这里用一个锁状态来保持LockStat来保存
  * 对每个等待持有某个已经被加上排他锁的页的事务进行保存
+ * 每个页面有一个先来先服务的等待队列，锁释放时由释放者按队列顺序授予锁并直接唤醒等待的线程，
+ * 连续的读锁请求一起授予，升级锁的请求优先于普通请求
+ * 锁表按页面的哈希值划分为PARTITIONS个分区，每个分区有自己的监视器，不同分区上的加锁、解锁互不阻塞；
+ * 另外按事务记录它持有锁的页面，提交或中止时释放锁只需要访问这些页面，不需要遍历整个锁表
  *
+ * 多粒度锁：页面之上还有表一级的锁（见LockMode），加页锁之前先在表上加意向锁。
+ * 表和页面都作为加锁的资源保存在同一个锁表中，共用等待队列和死锁检测。
+ * 事务在一张表上持有的页锁超过escalationThreshold个时尝试把它们升级为表上的S或X锁，
+ * 成功后释放被表锁覆盖的页锁，之后访问这张表的页面不再加页锁。
+ *
+ * 行锁：开启行锁的HeapFile在页面上只加意向锁，在元组（RecordId）上加S、X锁，
+ * 修改页面时由页面的latch（PageLatch）保护，见HeapFile#setRowLocking。
+ * 行锁不参与锁升级。
+ *
+ * 锁等待超时：事务可以设置等待锁的最长时间（没有设置时使用默认值，默认一直等待），
+ * 超时后放弃排队并抛出LockNotAvailableException，由调用者中止事务。
+ * 不等待的请求（NOWAIT、SKIP LOCKED）使用grantLock、tryRowLock，见LockWait。
+ *
+ * 统计：除了死锁、锁升级和超时的计数，排队等待过的请求按页面和表记录等待次数和时间（见LockStatistics），
+ * getWaitsForGraph给出当前的等待图，这些信息也可以通过JMX读取，见LockManagerMonitor。
  *
  */
 public class LockManager {
 
-    //锁表 被加了锁的页表
-    private Map<PageId, List<LockStat>> lockTable;
-    //等待锁释放的事务
-    private Map<TransactionId,PageId> waitTable;
+    //锁表的分区数
+    static final int PARTITIONS = 16;
+    //排队的事务每隔多久重新做一次死锁检测
+    static final long DEADLOCK_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    /** Default number of page locks on one table after which a transaction's locks are escalated */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 5000;
+
+    //锁表 被加了锁的表、页面和元组 按哈希分区
+    private final Partition[] partitions;
+    //事务 -> 它持有的锁
+    private final Map<TransactionId, HeldLocks> heldLocks = new ConcurrentHashMap<>();
+    //等待锁释放的事务 -> 它等待的表或页面
+    private final Map<TransactionId,Object> waitTable = new ConcurrentHashMap<>();
+    //被选为死锁牺牲者、还没有中止的事务
+    private final Set<TransactionId> victims = ConcurrentHashMap.newKeySet();
+    //同一时间只有一个线程做死锁检测 检测时逐个获取分区的监视器
+    private final Object detector = new Object();
+    //一张表上持有多少个页锁之后升级为表锁
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    //发现的死锁数以及为此中止的事务数
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder deadlockAborts = new LongAdder();
+    //锁升级的次数
+    private final LongAdder escalations = new LongAdder();
+    //事务 -> 等待锁的最长时间(ns) 没有设置的事务使用defaultLockTimeout
+    private final Map<TransactionId, Long> lockTimeouts = new ConcurrentHashMap<>();
+    //默认的锁等待超时(ns) 负数表示一直等待
+    private volatile long defaultLockTimeout = -1;
+    //读已提交的事务 扫描按行加锁的表时读完元组就释放S锁
+    private final Set<TransactionId> readCommitted = ConcurrentHashMap.newKeySet();
+    //等待锁超时的次数
+    private final LongAdder timeouts = new LongAdder();
+    //锁等待、锁加强和最近死锁的统计
+    private final LockStatistics statistics = new LockStatistics();
+    private volatile long statisticsSince = System.nanoTime();
+
+    //锁表的一个分区 其中的数据只在持有分区监视器时访问
+    private static class Partition {
+        //表或页面上的锁
+        final Map<Object, List<LockStat>> lockTable = new HashMap<>();
+        //每个表或页面上排队等待加锁的请求 先来先服务，升级锁的请求排在最前面
+        final Map<Object, LinkedList<Waiter>> waitQueues = new HashMap<>();
+    }
 
-    public LockManager() {
-        //使用ConcurrentHashMap避免ConcurrentModificationException
-        this.lockTable = new ConcurrentHashMap<>();
-        this.waitTable = new ConcurrentHashMap<>();
+    //表锁在锁表中的键
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
     }
 
+    //一个事务持有锁的表和页面
+    private static class HeldLocks {
+        final Set<Object> resources = ConcurrentHashMap.newKeySet();
+        //每张表上持有锁的页面数
+        final Map<Integer, Integer> pagesPerTable = new ConcurrentHashMap<>();
 
-    public boolean grantLock(Permissions perm,PageId pid,TransactionId tid){
-        if(perm==Permissions.READ_ONLY){
-           return grantSlock(pid,tid);
-        }else{
-            return grantXlock(pid,tid);
+        void add(Object key) {
+            if (resources.add(key) && key instanceof PageId) {
+                pagesPerTable.merge(((PageId) key).getTableId(), 1, Integer::sum);
+            }
+        }
+
+        void remove(Object key) {
+            if (resources.remove(key) && key instanceof PageId) {
+                pagesPerTable.computeIfPresent(((PageId) key).getTableId(), (t, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+    }
+
+    public LockManager() {
+        partitions = new Partition[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions[i] = new Partition();
         }
     }
+
+    private Partition partitionOf(Object key) {
+        return partitions[Math.floorMod(key.hashCode(), PARTITIONS)];
+    }
+
+    /** Set the number of page locks a transaction may hold on one table before they are escalated */
+    public void setEscalationThreshold(int pages) {
+        if (pages < 1) throw new IllegalArgumentException("escalation threshold must be positive");
+        escalationThreshold = pages;
+    }
+
+    /** Return the number of page locks a transaction may hold on one table before they are escalated */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
     /**
-     * 获取页面读锁
-     * Before a transaction can read an object, it must have a shared lock on it.
-     * Multiple transactions can have a shared lock on an object.
-     * @param pid
-     * @param tid
-     * @Param permissions
-     * @return
+     * Set how long the transaction waits for a lock before giving up with a
+     * LockNotAvailableException. The setting lasts until the transaction
+     * releases its locks.
+     *
+     * @param tid the transaction
+     * @param millis the longest wait in milliseconds, 0 to never wait, or a
+     *        negative number to wait as long as it takes
      */
-    public synchronized boolean grantSlock(PageId pid, TransactionId tid){
-        //1.在锁表中查找页面存在与否
-        List<LockStat> lockStats = lockTable.get(pid);
-        //2.存在则读取其锁信息再进行判断
-        if(lockStats!=null&&lockStats.size()!=0){
-            //2.1锁信息列表中只有一个锁
-            if(lockStats.size()==1){
-                LockStat lockStat = lockStats.get(0);
-                //判断唯一的锁是否属于自己是就返回true，
-               if(lockStat.getTransactionId()==tid){
-                   //属于自己并且是读锁就直接返回true
-                   if(lockStat.getPermissions()==Permissions.READ_ONLY){
-                       return true;
-                   }else{
-                       //属于自己但是是排他锁，那就将读锁加入
-                      return lock(Permissions.READ_ONLY, tid, pid);
-                   }
-               }else{//不是就判断是读锁还是排他锁
-                   if(lockStat.getPermissions()==Permissions.READ_ONLY){
-                       return lock(Permissions.READ_ONLY, tid, pid);
-                   }else{
-                       //是其他事务的排他锁就加入等待表
-                       return wait(tid,pid);
-                   }
-               }
-            }
-            //2.2锁信息列表有多个锁，读取每个锁信息
-            else{
-                //是否包含排他锁
-                for(LockStat lockStat : lockStats){
-                    //包含 判断是不是当前事务的锁 是就直接true 不是将当前事务加入等待
-                    if(lockStat.getPermissions()==Permissions.READ_WRITE){
-                        if(lockStat.getTransactionId()==tid){
-                            return true;
-                        }else{
-                            return wait(tid,pid);
-                        }
-                    }else{
-                        //不包含   出现当前事务的读锁 直接返回true 没出现当前事务的锁 将当前事务加入
-                        if(lockStat.getTransactionId()==tid){
-                            return true;
-                        }
-                    }
+    public void setLockTimeout(TransactionId tid, long millis) {
+        lockTimeouts.put(tid, millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Set the lock timeout of transactions that don't set their own, see
+     * {@link #setLockTimeout(TransactionId, long)}. By default they wait as
+     * long as it takes.
+     */
+    public void setDefaultLockTimeout(long millis) {
+        defaultLockTimeout = millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /** Return the lock timeout of the transaction in milliseconds, or -1 if it waits as long as it takes */
+    public long getLockTimeout(TransactionId tid) {
+        long nanos = lockTimeouts.getOrDefault(tid, defaultLockTimeout);
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Let the transaction read at the read committed isolation level:
+     * scans of tables with row locking release each tuple's S lock as soon
+     * as the tuple was read instead of keeping it until the transaction
+     * ends. Scanning twice may then return different tuples. The setting
+     * lasts until the transaction releases its locks.
+     *
+     * @param tid the transaction
+     */
+    public void setReadCommitted(TransactionId tid) {
+        readCommitted.add(tid);
+    }
+
+    /** Return true if the transaction releases the S row locks of its scans early */
+    public boolean isReadCommitted(TransactionId tid) {
+        return readCommitted.contains(tid);
+    }
+
+
+    /**
+     * 获取页面上的锁，拿不到时在页面的等待队列中排队并阻塞，
+     * 直到持有者释放锁时由释放锁的线程直接授予并唤醒。
+     * 排队期间定期做一次死锁检测，被选为牺牲者时抛出异常。
+     * 加页锁之前先在页面所在的表上加意向锁，已经持有覆盖该请求的表锁时不再加页锁。
+     * @param tid 申请锁的事务
+     * @param pid 要加锁的页面
+     * @param perm 锁类型
+     * @throws TransactionAbortedException tid被选为死锁的牺牲者
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        TableKey table = new TableKey(pid.getTableId());
+        LockMode mode = LockMode.of(perm);
+        if (holds(tid, table, mode)) return;
+        acquire(tid, table, LockMode.intentionOf(perm));
+        acquire(tid, (Object) pid, mode);
+        escalate(tid, table, mode);
+    }
+
+    /**
+     * 获取表上的锁，拿不到时排队阻塞，和页锁一样参与死锁检测
+     * @param tid 申请锁的事务
+     * @param tableId 表的id
+     * @param mode 锁类型
+     * @throws TransactionAbortedException tid被选为死锁的牺牲者
+     */
+    public void acquireTableLock(TransactionId tid, int tableId, LockMode mode) throws TransactionAbortedException {
+        acquire(tid, new TableKey(tableId), mode);
+    }
+
+    /**
+     * 获取元组上的行锁，拿不到时排队阻塞，参与死锁检测
+     * 行锁之前先在表和页面上加意向锁，页面上的意向锁之间相互兼容，
+     * 修改同一页面中不同元组的事务不再互相等待；已经持有覆盖该请求的表锁或页锁时不再加行锁。
+     * @param tid 申请锁的事务
+     * @param rid 要加锁的元组
+     * @param perm 锁类型
+     * @throws TransactionAbortedException tid被选为死锁的牺牲者
+     */
+    public void acquireRowLock(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        LockMode mode = LockMode.of(perm);
+        if (holds(tid, new TableKey(pid.getTableId()), mode) || holds(tid, pid, mode)) return;
+        acquireIntention(tid, pid, perm);
+        acquire(tid, rid, mode);
+    }
+
+    /**
+     * 尝试获取元组上的行锁，不阻塞，规则同grantLock
+     * @return 是否拿到了锁
+     */
+    public boolean tryRowLock(TransactionId tid, RecordId rid, Permissions perm) {
+        PageId pid = rid.getPageId();
+        TableKey table = new TableKey(pid.getTableId());
+        LockMode mode = LockMode.of(perm);
+        if (holds(tid, table, mode) || holds(tid, pid, mode)) return true;
+        LockMode intention = LockMode.intentionOf(perm);
+        return tryLock(tid, table, intention) && tryLock(tid, pid, intention) && tryLock(tid, rid, mode);
+    }
+
+    /**
+     * 在表和页面上获取意向锁 按行加锁的访问通过它获取页面，之后只对要访问的元组加行锁
+     * 已经持有覆盖该请求的表锁时不再加锁
+     * @throws TransactionAbortedException tid被选为死锁的牺牲者
+     */
+    public void acquireIntention(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        TableKey table = new TableKey(pid.getTableId());
+        if (holds(tid, table, LockMode.of(perm))) return;
+        LockMode intention = LockMode.intentionOf(perm);
+        acquire(tid, table, intention);
+        acquire(tid, (Object) pid, intention);
+    }
+
+    /** Return true if the transaction may access the tuple with the given permissions */
+    public boolean holdsRowLock(TransactionId tid, RecordId rid, Permissions perm) {
+        PageId pid = rid.getPageId();
+        LockMode mode = LockMode.of(perm);
+        return holds(tid, new TableKey(pid.getTableId()), mode) || holds(tid, pid, mode) || holds(tid, rid, mode);
+    }
+
+    /**
+     * 提前释放tid在元组上的行锁 只用于读已提交的事务扫描读完元组之后，见setReadCommitted
+     * 表和页面上的意向锁保留到事务结束
+     */
+    public void releaseRowLock(TransactionId tid, RecordId rid) {
+        Partition part = partitionOf(rid);
+        synchronized (part) {
+            List<LockStat> lockStats = part.lockTable.get(rid);
+            if (lockStats == null) return;
+            lockStats.removeIf(ls -> ls.getTransactionId().equals(tid));
+            if (lockStats.isEmpty()) part.lockTable.remove(rid);
+            forget(tid, rid);
+            grantWaiters(part, rid);
+        }
+    }
+
+    private void acquire(TransactionId tid, Object key, LockMode mode) throws TransactionAbortedException {
+        Partition part = partitionOf(key);
+        Waiter waiter;
+        synchronized (part) {
+            if (tryLock(tid, key, mode)) return;
+            waiter = enqueue(part, tid, key, mode);
+        }
+        long timeout = lockTimeouts.getOrDefault(tid, defaultLockTimeout);
+        long start = System.nanoTime();
+        long deadline = start + timeout;
+        try {
+            awaitGrant(tid, waiter, timeout, deadline);
+        } finally {
+            recordWait(key, System.nanoTime() - start);
+        }
+    }
+
+    //等待排队的请求被授予 超时或被选为死锁牺牲者时抛出异常
+    private void awaitGrant(TransactionId tid, Waiter waiter, long timeout, long deadline) throws TransactionAbortedException {
+        //死锁检测要访问其他分区 不能在持有分区监视器时进行
+        deadlockDetect(tid);
+        while (!waiter.granted) {
+            //事务在排队时已经结束 例如被其他线程中止
+            if (waiter.cancelled) throw new TransactionAbortedException();
+            long wait = DEADLOCK_CHECK_NANOS;
+            if (timeout >= 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeOut(tid, waiter);
+                    return;
                 }
-                //读完所有的锁都没返回 说明既不存在排他锁，也不存在当前事务的读锁
-                return lock(Permissions.READ_ONLY, tid, pid);
+                wait = Math.min(wait, remaining);
             }
-
+            LockSupport.parkNanos(this, wait);
+            //和原来的sleep重试一样忽略中断 否则带着中断标记的线程会一直空转
+            Thread.interrupted();
+            if (!waiter.granted) deadlockDetect(tid);
         }
-        //3.不存在则直接将目前页面加入锁表
-        else{
-            return lock(Permissions.READ_ONLY, tid, pid);
+    }
+
+    //把一次等待记到等待的页面和表上 等待元组时记到元组所在的页面上
+    private void recordWait(Object key, long nanos) {
+        if (key instanceof TableKey) {
+            statistics.recordWait(((TableKey) key).tableId, null, nanos);
+        } else {
+            PageId pid = key instanceof RecordId ? ((RecordId) key).getPageId() : (PageId) key;
+            statistics.recordWait(pid.getTableId(), pid, nanos);
         }
+    }
 
+    //等待超时 放弃排队；退出队列之前锁刚好被授予时正常返回
+    private void timeOut(TransactionId tid, Waiter waiter) throws TransactionAbortedException {
+        dequeue(tid);
+        if (waiter.granted) return;
+        timeouts.increment();
+        throw new LockNotAvailableException();
     }
 
-    /**获取页面写锁
-     * Before a transaction can write an object, it must have an exclusive lock on it.
-     * Only one transaction may have an exclusive lock on an object.
-     * If transaction t is the only transaction holding a shared lock on an object o,
-     * t may upgrade its lock on o to an exclusive lock.
-     * @param pid
-     * @param tid
-     * @return
+    /**
+     * 尝试获取页面上的锁，不阻塞
+     * 已经持有足够的锁时直接成功；否则只有在与其他持有者的锁兼容、并且没有事务排在前面时才加锁，
+     * 已经持有读锁的事务升级为排他锁时不需要排队。页锁之前同样先尝试加表上的意向锁，
+     * 加锁成功后和acquire一样检查是否需要锁升级。
+     * @return 是否拿到了锁
      */
-    public synchronized boolean grantXlock(PageId pid,TransactionId tid){
-        //获取锁表中目标页信息
-        List<LockStat> lockStats = lockTable.get(pid);
-
-        //目标页信息为空或者为0(因为先前可能存在锁被删除了，所以锁状态不为空但为0)直接加排他锁
-        if(lockStats==null||lockStats.size()==0){
-           return lock(Permissions.READ_WRITE, tid, pid);
-        }
-
-        //目标页信息非空且不为0，则进行判断
-       //只有一个锁
-        if(lockStats.size()==1){
-            LockStat lockStat = lockStats.get(0);
-            if(lockStat.getTransactionId()==tid){
-                if(lockStat.getPermissions()==Permissions.READ_WRITE){
-                    //是自己的排他锁直接返回
-                    return true;
-                }else{
-                    //是自己的读锁就加排他锁
-                    return  lock(Permissions.READ_WRITE, tid, pid);
-                }
+    public boolean grantLock(Permissions perm,PageId pid,TransactionId tid){
+        TableKey table = new TableKey(pid.getTableId());
+        LockMode mode = LockMode.of(perm);
+        if (holds(tid, table, mode)) return true;
+        if (!tryLock(tid, table, LockMode.intentionOf(perm)) || !tryLock(tid, pid, mode)) return false;
+        escalate(tid, table, mode);
+        return true;
+    }
+
+    //不阻塞地在key上加mode锁
+    private boolean tryLock(TransactionId tid, Object key, LockMode mode) {
+        Partition part = partitionOf(key);
+        synchronized (part) {
+            if(holdsLock(part,tid,key,mode)) return true;
+            //先来的事务还在排队时不能插队
+            LinkedList<Waiter> queue = part.waitQueues.get(key);
+            if(!holdsAny(part,tid,key)&&queue!=null&&!queue.isEmpty()) return false;
+            if(!compatible(part,tid,key,mode)) return false;
+            addLock(part,tid,key,mode);
+            return true;
+        }
+    }
+
+    //tid在key上已经持有的锁是否覆盖mode
+    private static boolean holdsLock(Partition part, TransactionId tid, Object key, LockMode mode) {
+        List<LockStat> lockStats = part.lockTable.get(key);
+        if (lockStats == null) return false;
+        boolean s = false, ix = false;
+        for (LockStat lockStat : lockStats) {
+            if (!lockStat.getTransactionId().equals(tid)) continue;
+            if (lockStat.getMode().covers(mode)) return true;
+            s |= lockStat.getMode() == LockMode.S;
+            ix |= lockStat.getMode() == LockMode.IX;
+        }
+        //分别加上的S锁和IX锁合起来相当于SIX锁
+        return s && ix && LockMode.SIX.covers(mode);
+    }
+
+    //tid在key上是否持有任意锁
+    private static boolean holdsAny(Partition part, TransactionId tid, Object key) {
+        List<LockStat> lockStats = part.lockTable.get(key);
+        if (lockStats == null) return false;
+        for (LockStat lockStat : lockStats) {
+            if (lockStat.getTransactionId().equals(tid)) return true;
+        }
+        return false;
+    }
+
+    private boolean holds(TransactionId tid, Object key, LockMode mode) {
+        Partition part = partitionOf(key);
+        synchronized (part) {
+            return holdsLock(part, tid, key, mode);
+        }
+    }
+
+    //tid申请的mode锁是否与key上其他事务持有的锁兼容
+    private static boolean compatible(Partition part, TransactionId tid, Object key, LockMode mode) {
+        List<LockStat> lockStats = part.lockTable.get(key);
+        if (lockStats == null) return true;
+        for (LockStat lockStat : lockStats) {
+            if (!lockStat.getTransactionId().equals(tid) && !mode.compatibleWith(lockStat.getMode())) {
+                return false;
             }
         }
+        return true;
+    }
 
-        //两个锁
-        /*在测试时，发现申请写锁时，可能存在申请资源的事务在该资源上有同个事务的多个读锁
-         这种情况下对读锁的次数进行统计，若读锁出现的次数和等同于锁状态中的所有锁总数，
-         表示可以加写锁
-         */
-        if(lockStats.size()>1){
-            int count =0;
-            for(LockStat lockStat : lockStats){
-                //包含自己的排他锁直接返回true
-                if(lockStat.getTransactionId()==tid){
-                    if(lockStat.getPermissions()==Permissions.READ_WRITE){
-                         return true;
-                    }else{//此处代码是在实验5的练习1中添加的
-                        count++;
-                    }
-                 }
+    /**
+     * 将申请锁失败的事务加入等待队列
+     * 普通请求排在队尾，升级锁的请求排在其他升级请求之后、所有普通请求之前
+     */
+    private Waiter enqueue(Partition part, TransactionId tid, Object key, LockMode mode) {
+        Waiter waiter = new Waiter(tid, mode, holdsAny(part, tid, key));
+        LinkedList<Waiter> queue = part.waitQueues.computeIfAbsent(key, k -> new LinkedList<>());
+        if (waiter.upgrade) {
+            int i = 0;
+            while (i < queue.size() && queue.get(i).upgrade) i++;
+            queue.add(i, waiter);
+        } else {
+            queue.addLast(waiter);
+        }
+        waitTable.put(tid, key);
+        return waiter;
+    }
+
+    /**
+     * 按队列顺序把锁授予等待者并唤醒它们
+     * 连续的兼容请求一起授予，遇到第一个拿不到锁的等待者就停止，它后面的等待者不能插队
+     */
+    private void grantWaiters(Partition part, Object key) {
+        LinkedList<Waiter> queue = part.waitQueues.get(key);
+        if (queue == null) return;
+        while (!queue.isEmpty()) {
+            Waiter head = queue.getFirst();
+            if (!holdsLock(part, head.tid, key, head.mode)) {
+                if (!compatible(part, head.tid, key, head.mode)) break;
+                addLock(part, head.tid, key, head.mode);
             }
-            if(count==lockStats.size()){
-                //符合条件 加写锁
-                return  lock(Permissions.READ_WRITE, tid, pid);
+            queue.removeFirst();
+            waitTable.remove(head.tid, key);
+            head.granted = true;
+            LockSupport.unpark(head.thread);
+        }
+        if (queue.isEmpty()) part.waitQueues.remove(key);
+    }
+
+    //把事务从它正在等待的队列中移除 排在它后面的等待者可能因此拿到锁
+    private void dequeue(TransactionId tid) {
+        Object key = waitTable.get(tid);
+        if (key == null) return;
+        Partition part = partitionOf(key);
+        synchronized (part) {
+            waitTable.remove(tid, key);
+            LinkedList<Waiter> queue = part.waitQueues.get(key);
+            if (queue == null) return;
+            for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); ) {
+                Waiter waiter = it.next();
+                if (waiter.tid.equals(tid)) {
+                    it.remove();
+                    waiter.cancelled = true;
+                    LockSupport.unpark(waiter.thread);
+                }
             }
+            grantWaiters(part, key);
         }
+    }
 
-        //剩下的所有情况都应该使当前事务进入等待队列
-        return wait(tid,pid);
+    /**
+     * 锁升级：tid在表上持有的页锁超过阈值时，尝试不阻塞地获取表上的S锁（读）或X锁（写），
+     * 成功后释放被表锁覆盖的页锁。拿不到表锁时保持页锁，之后再加页锁时再次尝试。
+     */
+    private void escalate(TransactionId tid, TableKey table, LockMode mode) {
+        HeldLocks held = heldLocks.get(tid);
+        if (held == null || held.pagesPerTable.getOrDefault(table.tableId, 0) <= escalationThreshold) return;
+        LockMode target = mode == LockMode.X ? LockMode.X : LockMode.S;
+        if (!tryLock(tid, table, target)) return;
+        escalations.increment();
+        for (Object key : new ArrayList<>(held.resources)) {
+            if (key instanceof PageId && ((PageId) key).getTableId() == table.tableId) {
+                releaseCovered(tid, (PageId) key, target);
+            }
+        }
+    }
 
+    //释放tid在页面上被表锁target覆盖的页锁
+    private void releaseCovered(TransactionId tid, PageId pid, LockMode target) {
+        Partition part = partitionOf(pid);
+        synchronized (part) {
+            List<LockStat> lockStats = part.lockTable.get(pid);
+            if (lockStats == null) return;
+            lockStats.removeIf(ls -> ls.getTransactionId().equals(tid) && target.covers(ls.getMode()));
+            if (lockStats.isEmpty()) part.lockTable.remove(pid);
+            if (!holdsAny(part, tid, pid)) forget(tid, pid);
+            grantWaiters(part, pid);
+        }
     }
 
     /**
@@ -172,31 +519,36 @@ public class LockManager {
      * @param pid
      * @return
      */
-    public synchronized boolean lock(Permissions permissions,TransactionId tid,PageId pid){
-        //获取页表的锁状态信息
-        List<LockStat> lockStats = lockTable.get(pid);
-        //判断是否为空
-        if (lockStats == null) {
-            lockStats = new ArrayList<>();
-        }
-        //添加当前锁状态
-        lockStats.add(new LockStat(tid, permissions));
-        //补充到锁表中
-        lockTable.put(pid, lockStats);
-        //移除等待表中的同一等待事务
-        waitTable.remove(tid);
-        return true;
+    public boolean lock(Permissions permissions,TransactionId tid,PageId pid){
+        Partition part = partitionOf(pid);
+        synchronized (part) {
+            addLock(part, tid, pid, LockMode.of(permissions));
+            return true;
+        }
     }
 
-    /**
-     * wait操作 将等待页面加入等待页表
-     * @param tid
-     * @param pid
-     * @return
-     */
-    public synchronized boolean wait(TransactionId tid,PageId pid){
-        waitTable.put(tid,pid);
-        return false;
+    //在key上记录tid的mode锁 调用时持有key所在分区的监视器
+    private void addLock(Partition part, TransactionId tid, Object key, LockMode mode) {
+        if (holdsAny(part, tid, key)) statistics.recordUpgrade();
+        //获取锁状态信息 添加当前锁状态
+        part.lockTable.computeIfAbsent(key, k -> new ArrayList<>()).add(new LockStat(tid, mode));
+        //记录到事务持有的锁中
+        heldLocks.compute(tid, (k, held) -> {
+            if (held == null) held = new HeldLocks();
+            held.add(key);
+            return held;
+        });
+        //移除等待表中的同一等待事务 已经拿到锁的事务不再是牺牲者
+        waitTable.remove(tid, key);
+        victims.remove(tid);
+    }
+
+    //tid在key上已经没有锁 从它持有的锁中去掉
+    private void forget(TransactionId tid, Object key) {
+        heldLocks.computeIfPresent(tid, (k, held) -> {
+            held.remove(key);
+            return held.resources.isEmpty() ? null : held;
+        });
     }
 
     /**
@@ -205,194 +557,356 @@ public class LockManager {
      * @param pid
      * @return
      */
-    public synchronized boolean unlock(TransactionId tid,PageId pid){
-        //获取目标页的锁信息
-        List<LockStat> lockStats =(ArrayList<LockStat>) lockTable.get(pid);
-        //为空或不存在锁 无锁可以释放 直接返回false
-        if(lockStats==null||lockStats.size()==0) return false;
-
-        //若不为空说明当前页表中存在某些事务的锁信息 调用函数寻找
-        LockStat lockStat = getLockStat(tid, pid);
-        //未找到了要删除的锁信息
-        if(lockStat==null){
-           return false;
-        }
-        //找到要删除的锁
-        lockStats.remove(lockStat);
-        //重新将锁信息写入
-        lockTable.put(pid, lockStats);
-        return true;
+    public boolean unlock(TransactionId tid,PageId pid){
+        Partition part = partitionOf(pid);
+        synchronized (part) {
+            //获取目标页的锁信息
+            List<LockStat> lockStats = part.lockTable.get(pid);
+            //为空或不存在锁 无锁可以释放 直接返回false
+            if(lockStats==null||lockStats.size()==0) return false;
+
+            //若不为空说明当前页表中存在某些事务的锁信息 调用函数寻找
+            LockStat lockStat = getLockStat(tid, pid);
+            //未找到了要删除的锁信息
+            if(lockStat==null){
+               return false;
+            }
+            //找到要删除的锁
+            lockStats.remove(lockStat);
+            //页上已经没有锁时移除该页 否则锁表会保留所有加过锁的页
+            if(lockStats.isEmpty()){
+                part.lockTable.remove(pid);
+            }
+            if(!holdsAny(part,tid,pid)) forget(tid,pid);
+            //唤醒排队的事务
+            grantWaiters(part,pid);
+            return true;
+        }
     }
 
     /**
-     * 释放特定事务的所有锁
+     * 释放特定事务的所有锁 包括表锁
+     * 只访问事务持有锁的表和页面，每个页面只获取它所在分区的监视器
      * @param tid
      * @return
      */
-    public synchronized boolean unTransactionIdlock(TransactionId tid){
-        ArrayList<PageId> pids = getAllTranscationStat(tid);
-        for(PageId pageId : pids){
-            unlock(tid, pageId);
+    public boolean unTransactionIdlock(TransactionId tid){
+        HeldLocks held = heldLocks.remove(tid);
+        if (held != null) {
+            for (Object key : held.resources) {
+                Partition part = partitionOf(key);
+                synchronized (part) {
+                    List<LockStat> lockStats = part.lockTable.get(key);
+                    if (lockStats == null) continue;
+                    lockStats.removeIf(ls -> ls.getTransactionId().equals(tid));
+                    if (lockStats.isEmpty()) part.lockTable.remove(key);
+                    grantWaiters(part, key);
+                }
+            }
         }
+        dequeue(tid);
+        victims.remove(tid);
+        lockTimeouts.remove(tid);
+        readCommitted.remove(tid);
         return true;
     }
 
     /**
      * 释放页上的所有锁
      */
-    public synchronized boolean unPageLock(PageId pageId){
-        if(lockTable.get(pageId)!=null){
-            lockTable.remove(pageId);
+    public boolean unPageLock(PageId pageId){
+        Partition part = partitionOf(pageId);
+        synchronized (part) {
+            List<LockStat> lockStats = part.lockTable.remove(pageId);
+            if(lockStats==null) return false;
+            for (LockStat lockStat : lockStats) {
+                forget(lockStat.getTransactionId(), pageId);
+            }
+            grantWaiters(part, pageId);
             return true;
         }
-        return false;
     }
 
     /**
-     * 获取锁表中特定事务的所有锁信息
+     * 获取具体页中释放存在具体事务的锁状态
      * @param tid
+     * @param pid
      * @return
      */
-    private synchronized ArrayList<PageId> getAllTranscationStat(TransactionId tid) {
-        ArrayList<PageId> pids  = new ArrayList<>();
-        for (Map.Entry<PageId, List<LockStat>> entry : lockTable.entrySet()) {
-            for (LockStat ls : entry.getValue()) {
-                if (ls.getTransactionId().equals(tid)) {
-                    pids.add(entry.getKey());
+    public LockStat getLockStat(TransactionId tid,PageId pid){
+        Partition part = partitionOf(pid);
+        synchronized (part) {
+            List<LockStat> lockStats = part.lockTable.get(pid);
+            if(lockStats==null) return null;
+            for(LockStat lockStat : lockStats){
+                if(lockStat.getTransactionId().equals(tid)){
+                    return lockStat;
                 }
             }
+            return null;
         }
-        return pids;
     }
 
     /**
-     * 获取具体页中释放存在具体事务的锁状态
+     * 判断页面上是否包含特定事务的锁 持有覆盖页面读的表锁也算
      * @param tid
      * @param pid
      * @return
      */
-    public synchronized LockStat getLockStat(TransactionId tid,PageId pid){
-        List<LockStat> lockStats = lockTable.get(pid);
-        for(LockStat lockStat : lockStats){
-            if(lockStat.getTransactionId().equals(tid)){
-                return lockStat;
-            }
+    public boolean holdlock(TransactionId tid,PageId pid){
+        Partition part = partitionOf(pid);
+        synchronized (part) {
+            if (holdsAny(part, tid, pid)) return true;
         }
-        return null;
+        return holds(tid, new TableKey(pid.getTableId()), LockMode.S);
+    }
+
+    /** Return true if the transaction holds a lock on the table that covers the given mode */
+    public boolean holdsTableLock(TransactionId tid, int tableId, LockMode mode) {
+        return holds(tid, new TableKey(tableId), mode);
+    }
+
+    /** Return the number of tables and pages the transaction holds locks on */
+    public int locksHeld(TransactionId tid) {
+        HeldLocks held = heldLocks.get(tid);
+        return held == null ? 0 : held.resources.size();
     }
 
     /**
-     * 判断页面上是否包含特定事务的锁
-     * @param tid
-     * @param pid
-     * @return
+     * 死锁检测:在等待图中寻找环
+     * 等待图的边由等待队列得到：排队的事务指向表或页面上与它的请求冲突的其他持有者，
+     * 以及排在它前面、与它的请求冲突的等待者。
+     * 事务开始排队时以及排队期间定期调用一次，从申请者出发寻找回到申请者的环，
+     * 找到时只中止环中最年轻（事务id最大）的事务，其余事务继续等待。
+     * 被选中的事务不是申请者本身时先记为牺牲者，由它自己在下一次重试时中止，
+     * 牺牲者不再参与之后的环检测，避免同一个环被重复处理。
+     * 调用时不能持有任何分区的监视器。
+     * @param tid 申请锁失败、正在等待的事务
+     * @throws TransactionAbortedException tid被选为死锁的牺牲者
      */
-    public synchronized boolean holdlock(TransactionId tid,PageId pid){
-        List<LockStat> lockStats = lockTable.get(pid);
-        if(lockStats==null||lockStats.size()==0) return false;
-        for(LockStat lockStat : lockStats){
-            if(lockStat.getTransactionId()==tid){
-                return true;
+    public void deadlockDetect(TransactionId tid) throws TransactionAbortedException {
+        synchronized (detector) {
+            //检测期间已经拿到锁的事务不再等待
+            if (waiterOf(tid) == null) {
+                victims.remove(tid);
+                return;
+            }
+            if (victims.remove(tid)) abortVictim(tid);
+
+            List<TransactionId> cycle = findCycle(tid);
+            if (cycle == null) return;
+            deadlocks.increment();
+            TransactionId victim = tid;
+            for (TransactionId t : cycle) {
+                if (t.getId() > victim.getId()) victim = t;
             }
+            statistics.recordDeadlock(victim, cycle, describe(waitTable.get(victim)));
+            if (victim.equals(tid)) abortVictim(tid);
+            victims.add(victim);
+            //唤醒牺牲者 让它尽快中止
+            Waiter waiter = waiterOf(victim);
+            if (waiter != null) LockSupport.unpark(waiter.thread);
         }
-        return false;
     }
 
-    /**
-     * 死锁检测:环形检测
-     * @param tid
-     * @param pid
-     * @return
-     * 死锁发生的原因是：
-     * 申请事务申请的资源的持有者正在直接或间接地等待申请者所持有的资
-     *
-    * */
-    public synchronized boolean deadlockDetect(TransactionId tid,PageId pid){
-        //申请者所需资源的持有者
-        List<LockStat> holders = lockTable.get(pid);
-        //持有者不存在或者为0 说明申请者可以直接申请 不存在死锁情况
-        if(holders==null||holders.size()==0){
-            return false;
-        }
-
-        //获取申请者所持有的资源 用于判断持有者是否直接或间接申请申请者的资源
-        ArrayList<PageId> applicantPages = getAllTranscationStat(tid);
-
-        //开始寻找是否存在环
-        //对每个持有者进行查找
-        for(LockStat holder : holders){
-            TransactionId transactionId = holder.getTransactionId();
-            //去掉T1，因为虽然上图没画出这种情况，但T1可能同时也在其他Page上有读锁，这会影响判断结果
-            if (!transactionId.equals(tid)) {
-                boolean isWaitting = isWaitting(holder,applicantPages,tid);
-                if(isWaitting) return true;
-            }
+    private void abortVictim(TransactionId tid) throws TransactionAbortedException {
+        dequeue(tid);
+        deadlockAborts.increment();
+        throw new TransactionAbortedException();
+    }
 
+    //tid正在排队、还没有拿到锁的请求
+    private Waiter waiterOf(TransactionId tid) {
+        Object key = waitTable.get(tid);
+        if (key == null) return null;
+        Partition part = partitionOf(key);
+        synchronized (part) {
+            LinkedList<Waiter> queue = part.waitQueues.get(key);
+            if (queue == null) return null;
+            for (Waiter waiter : queue) {
+                if (waiter.tid.equals(tid)) return waiter;
+            }
+            return null;
         }
+    }
 
+    //从start出发沿等待图深度优先搜索 返回回到start的路径上的事务 不存在环时返回null
+    private List<TransactionId> findCycle(TransactionId start) {
+        List<TransactionId> path = new ArrayList<>();
+        return findCycle(start, start, path, new HashSet<>()) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId tid, TransactionId start, List<TransactionId> path, Set<TransactionId> visited) {
+        visited.add(tid);
+        path.add(tid);
+        for (TransactionId holder : waitsFor(tid)) {
+            if (holder.equals(start)) return true;
+            if (!visited.contains(holder) && findCycle(holder, start, path, visited)) return true;
+        }
+        path.remove(path.size() - 1);
         return false;
     }
 
+    //tid正在等待的事务 即它等待的表或页面上与它冲突的持有者和排在它前面的等待者
+    private List<TransactionId> waitsFor(TransactionId tid) {
+        List<TransactionId> blockers = new ArrayList<>();
+        Object key = waitTable.get(tid);
+        if (key == null || victims.contains(tid)) return blockers;
+        Partition part = partitionOf(key);
+        synchronized (part) {
+            LinkedList<Waiter> queue = part.waitQueues.get(key);
+            Waiter waiter = null;
+            if (queue != null) {
+                for (Waiter w : queue) {
+                    if (w.tid.equals(tid)) {
+                        waiter = w;
+                        break;
+                    }
+                }
+            }
+            if (waiter == null) return blockers;
+            List<LockStat> lockStats = part.lockTable.get(key);
+            if (lockStats != null) {
+                for (LockStat lockStat : lockStats) {
+                    if (!lockStat.getTransactionId().equals(tid) && !waiter.mode.compatibleWith(lockStat.getMode())) {
+                        blockers.add(lockStat.getTransactionId());
+                    }
+                }
+            }
+            for (Waiter ahead : queue) {
+                if (ahead == waiter) break;
+                if (!ahead.tid.equals(tid) && !waiter.mode.compatibleWith(ahead.mode)) blockers.add(ahead.tid);
+            }
+        }
+        return blockers;
+    }
+
     /**
-     *在持有者中寻找是否存在正在等待申请者持有的资源（直接或间接）
-     * @param holder
-     * @param applicantPages
-     * @param tid
-     * @return
+     * Return the current waits-for graph: each transaction waiting for a lock
+     * mapped to the holders and earlier waiters it waits for.
      */
-    private boolean isWaitting(LockStat holder, ArrayList<PageId> applicantPages, TransactionId tid) {
-        //首先判断当前持有者是否有正在等待的锁申请
-        TransactionId holderTransactionId = holder.getTransactionId();
-        PageId pageId = waitTable.get(holderTransactionId);
-        //不存在等待的资源
-        if(pageId==null){
-            return false;
-        }
-
-        //存在等待的资源 就对申请者持有的资源继续迭代 查看是否存在直接等待申请者的资源
-        for(PageId applicantpage : applicantPages){
-            //持有者正在等待申请者持有的资源 说明存在死锁
-            if(applicantpage.equals(pageId)){
-                return true;
-            }
+    public Map<TransactionId, List<TransactionId>> getWaitsForGraph() {
+        Map<TransactionId, List<TransactionId>> graph = new HashMap<>();
+        for (TransactionId tid : waitTable.keySet()) {
+            List<TransactionId> blockers = waitsFor(tid);
+            if (!blockers.isEmpty()) graph.put(tid, blockers);
         }
+        return graph;
+    }
 
-        //来到这里 说明不存在直接申请持有者资源的死锁状态，但可能存在间接的
-        List<LockStat> lockStats = lockTable.get(pageId);
-        //对当前的持有者进行递归的判断
-        //如果waitingPage的拥有者们(去掉toRemove)中的某一个正在等待pids中的某一个，说明是tid间接在等待
-        if(lockStats==null||lockStats.size()==0) return false;
-        for(LockStat lockStat : lockStats){
-            TransactionId transactionId = lockStat.getTransactionId();
-            if(!transactionId.equals(tid)){
-                boolean waitting = isWaitting(lockStat, applicantPages, tid);
-                if(waitting){
-                    return true;
-                }
-            }
+    /** Return the lock the transaction is waiting for, described as by the statistics, or null */
+    public String getWaitingFor(TransactionId tid) {
+        Object key = waitTable.get(tid);
+        return key == null ? null : describe(key);
+    }
+
+    //锁表中的键以及统计中的页面、表号的可读描述
+    static String describe(Object key) {
+        if (key == null) return null;
+        if (key instanceof TableKey) return "table " + ((TableKey) key).tableId;
+        if (key instanceof Integer) return "table " + key;
+        if (key instanceof RecordId) {
+            RecordId rid = (RecordId) key;
+            return describe(rid.getPageId()) + " slot " + rid.getTupleNumber();
+        }
+        if (key instanceof PageId) {
+            PageId pid = (PageId) key;
+            return "table " + pid.getTableId() + " page " + pid.getPageNumber();
         }
+        return key.toString();
+    }
 
-        return false;
+    /**
+     * Return the lock wait statistics: wait counts and times per page and
+     * table, the wait time histogram, lock upgrades and recent deadlocks.
+     * They are reset with the other counters by {@link #resetStatistics()}.
+     */
+    public LockStatistics getStatistics() {
+        return statistics;
+    }
+
+    /** Return the number of deadlocks found since statistics were last reset */
+    public long getDeadlockCount() {
+        return deadlocks.sum();
+    }
+
+    /** Return the number of transactions aborted to break deadlocks since statistics were last reset */
+    public long getDeadlockAbortCount() {
+        return deadlockAborts.sum();
+    }
+
+    /** Return the number of deadlocks found per second since statistics were last reset */
+    public double getDeadlocksPerSecond() {
+        return perSecond(deadlocks.sum());
     }
 
+    /** Return the number of deadlock aborts per second since statistics were last reset */
+    public double getDeadlockAbortsPerSecond() {
+        return perSecond(deadlockAborts.sum());
+    }
+
+    private double perSecond(long count) {
+        double seconds = (System.nanoTime() - statisticsSince) / 1e9;
+        return seconds > 0 ? count / seconds : 0;
+    }
+
+    /** Return the number of lock escalations since statistics were last reset */
+    public long getEscalationCount() {
+        return escalations.sum();
+    }
+
+    /** Return the number of lock requests that gave up waiting since statistics were last reset */
+    public long getLockTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    /** Reset the deadlock, escalation and lock timeout counters and the lock wait statistics */
+    public void resetStatistics() {
+        statistics.reset();
+        deadlocks.reset();
+        deadlockAborts.reset();
+        escalations.reset();
+        timeouts.reset();
+        statisticsSince = System.nanoTime();
+    }
+
+
+    //在页面上排队等待加锁的请求
+    private static class Waiter {
+        final TransactionId tid;
+        final LockMode mode;
+        //已经持有锁 申请升级为更强的锁
+        final boolean upgrade;
+        final Thread thread = Thread.currentThread();
+        //由释放锁的线程在授予锁之后设置
+        volatile boolean granted;
+        //事务结束时请求被移出队列
+        volatile boolean cancelled;
+
+        Waiter(TransactionId tid, LockMode mode, boolean upgrade) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
 
     //锁状态类
-    private class LockStat{
+    private static class LockStat{
         TransactionId transactionId;
-        //区分读锁和排他锁
-        Permissions permissions;
+        //锁类型 页面上只有S、X两种
+        LockMode mode;
 
-        public LockStat(TransactionId id,Permissions p){
+        public LockStat(TransactionId id,LockMode mode){
             this.transactionId = id;
-            this.permissions=p;
+            this.mode=mode;
         }
 
         public TransactionId getTransactionId() {
             return transactionId;
         }
 
-        public Permissions getPermissions() {
-            return permissions;
+        public LockMode getMode() {
+            return mode;
         }
 
         @Override
@@ -401,12 +915,12 @@ public class LockManager {
             if (o == null || getClass() != o.getClass()) return false;
             LockStat lockStat = (LockStat) o;
             return Objects.equals(transactionId, lockStat.transactionId) &&
-                    permissions == lockStat.permissions;
+                    mode == lockStat.mode;
         }
 
         @Override
         public int hashCode() {
-            return Objects.hash(transactionId, permissions);
+            return Objects.hash(transactionId, mode);
         }
     }
 
@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+/**
+ * Lock manager statistics exposed through JMX, see {@link LockManagerMonitor}.
+ * Times are in milliseconds; resources and transactions are described as
+ * strings so that any JMX console can show them.
+ */
+public interface LockManagerMXBean {
+
+    /** Return the number of lock requests that had to wait */
+    long getLockWaitCount();
+
+    /** Return the total time lock requests spent waiting */
+    long getLockWaitMillis();
+
+    /** Return the upper bounds of the wait time histogram buckets, in microseconds */
+    long[] getWaitHistogramBoundsMicros();
+
+    /** Return the number of waits per histogram bucket, followed by the number of longer waits */
+    long[] getWaitHistogram();
+
+    /** Return the number of times a transaction strengthened a lock it already held */
+    long getUpgradeCount();
+
+    long getEscalationCount();
+
+    long getDeadlockCount();
+
+    long getDeadlockAbortCount();
+
+    long getLockTimeoutCount();
+
+    /** Return the number of transactions waiting for a lock right now */
+    int getWaitingTransactionCount();
+
+    /** Return the most contended pages, most waits first */
+    String[] getHotPages();
+
+    /** Return the most contended tables, most waits first */
+    String[] getHotTables();
+
+    /** Return one line per waiting transaction: the lock it waits for and the transactions it waits on */
+    String[] getWaitsForGraph();
+
+    /** Return the most recent deadlocks, oldest first */
+    String[] getRecentDeadlocks();
+
+    /** Reset all counters and the deadlock log */
+    void resetStatistics();
+}
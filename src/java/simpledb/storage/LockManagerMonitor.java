@@ -0,0 +1,141 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.transaction.TransactionId;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 通过JMX读取锁管理器的统计
+ * 每次读取都转到Database当前缓冲池的锁管理器，Database.reset或者resetBufferPool之后不需要重新注册。
+ */
+public class LockManagerMonitor implements LockManagerMXBean {
+
+    /** Name the monitor is registered under */
+    public static final String OBJECT_NAME = "simpledb:type=LockManager";
+    /** Number of pages and tables listed by the hot page and hot table reports */
+    public static final int HOT_RESOURCES = 20;
+
+    /**
+     * Register the monitor with the platform MBean server unless it is
+     * registered already.
+     */
+    public static void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(new LockManagerMonitor(), name);
+        } catch (InstanceAlreadyExistsException e) {
+            //另一个线程刚刚注册
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static LockManager locks() {
+        return Database.getBufferPool().lockManager;
+    }
+
+    private static LockStatistics statistics() {
+        return locks().getStatistics();
+    }
+
+    @Override
+    public long getLockWaitCount() {
+        return statistics().getWaitCount();
+    }
+
+    @Override
+    public long getLockWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(statistics().getWaitNanos());
+    }
+
+    @Override
+    public long[] getWaitHistogramBoundsMicros() {
+        return LockStatistics.WAIT_BUCKET_MICROS.clone();
+    }
+
+    @Override
+    public long[] getWaitHistogram() {
+        return statistics().getWaitHistogram();
+    }
+
+    @Override
+    public long getUpgradeCount() {
+        return statistics().getUpgradeCount();
+    }
+
+    @Override
+    public long getEscalationCount() {
+        return locks().getEscalationCount();
+    }
+
+    @Override
+    public long getDeadlockCount() {
+        return locks().getDeadlockCount();
+    }
+
+    @Override
+    public long getDeadlockAbortCount() {
+        return locks().getDeadlockAbortCount();
+    }
+
+    @Override
+    public long getLockTimeoutCount() {
+        return locks().getLockTimeoutCount();
+    }
+
+    @Override
+    public int getWaitingTransactionCount() {
+        return locks().getWaitsForGraph().size();
+    }
+
+    @Override
+    public String[] getHotPages() {
+        return toStrings(statistics().getHotPages(HOT_RESOURCES));
+    }
+
+    @Override
+    public String[] getHotTables() {
+        return toStrings(statistics().getHotTables(HOT_RESOURCES));
+    }
+
+    @Override
+    public String[] getWaitsForGraph() {
+        LockManager locks = locks();
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<TransactionId, List<TransactionId>> e : locks.getWaitsForGraph().entrySet()) {
+            StringBuilder sb = new StringBuilder("tx ").append(e.getKey().getId())
+                    .append(" waiting for ").append(locks.getWaitingFor(e.getKey())).append(" blocked by");
+            for (TransactionId blocker : e.getValue()) sb.append(" tx ").append(blocker.getId());
+            lines.add(sb.toString());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getRecentDeadlocks() {
+        return toStrings(statistics().getRecentDeadlocks());
+    }
+
+    @Override
+    public void resetStatistics() {
+        locks().resetStatistics();
+    }
+
+    private static String[] toStrings(List<?> items) {
+        String[] result = new String[items.size()];
+        for (int i = 0; i < result.length; i++) result[i] = items.get(i).toString();
+        return result;
+    }
+}
@@ -0,0 +1,63 @@
+package simpledb.storage;
+
+import simpledb.common.Permissions;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 多粒度锁的锁类型
+ * 页面上只加S、X锁；表上可以加意向锁IS、IX，以及S、SIX（S加IX）、X锁。
+ * 事务在页面上加S锁之前要先持有表上的IS锁，加X锁之前要先持有表上的IX锁，
+ * 持有表上的S锁时读表中的页面、持有表上的X锁时读写表中的页面都不需要再加页锁。
+ *
+ * 兼容矩阵：
+ *        IS  IX  S   SIX X
+ *   IS   y   y   y   y   n
+ *   IX   y   y   n   n   n
+ *   S    y   n   y   n   n
+ *   SIX  y   n   n   n   n
+ *   X    n   n   n   n   n
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ {true,  true,  true,  true,  false},
+            /* IX  */ {true,  true,  false, false, false},
+            /* S   */ {true,  false, true,  false, false},
+            /* SIX */ {true,  false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /** Return true if two transactions may hold this mode and other at the same time */
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** Return true if holding this mode grants everything other grants */
+    public boolean covers(LockMode other) {
+        switch (this) {
+            case X:
+                return true;
+            case SIX:
+                return other != X;
+            case S:
+                return other == S || other == IS;
+            case IX:
+                return other == IX || other == IS;
+            default:
+                return other == IS;
+        }
+    }
+
+    /** Return the page lock mode used for the given permissions */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? S : X;
+    }
+
+    /** Return the table intention mode taken before a page lock with the given permissions */
+    public static LockMode intentionOf(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? IS : IX;
+    }
+}
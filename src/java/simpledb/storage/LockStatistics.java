@@ -0,0 +1,249 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 锁管理器的等待统计
+ * 只统计真正排队等待过的请求：直接拿到锁的请求不计入，因此不会拖慢没有冲突的加锁。
+ * 等待按页面和表分别累计（元组上的等待算在元组所在的页面上），等待时间计入直方图；
+ * 另外保留最近几次死锁的记录。
+ */
+public class LockStatistics {
+
+    /**
+     * Upper bounds of the wait time histogram buckets in microseconds; the
+     * last bucket of the histogram counts the waits longer than all of them.
+     */
+    public static final long[] WAIT_BUCKET_MICROS = {100, 1000, 10000, 100000, 1000000};
+    /** Number of deadlocks kept in the recent deadlock log */
+    public static final int RECENT_DEADLOCKS = 32;
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder[] histogram = new LongAdder[WAIT_BUCKET_MICROS.length + 1];
+    //事务加强自己已经持有的锁的次数 例如S升级为X
+    private final LongAdder upgrades = new LongAdder();
+    //页面、表 -> 在上面的等待
+    private final Map<PageId, Counter> pages = new ConcurrentHashMap<>();
+    private final Map<Integer, Counter> tables = new ConcurrentHashMap<>();
+    //最近的死锁 最老的在队头
+    private final Deque<Deadlock> deadlocks = new ArrayDeque<>();
+
+    LockStatistics() {
+        for (int i = 0; i < histogram.length; i++) histogram[i] = new LongAdder();
+    }
+
+    //一个页面或表上的等待次数和等待时间
+    private static class Counter {
+        final LongAdder waits = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void add(long wait) {
+            waits.increment();
+            nanos.add(wait);
+            maxNanos.accumulate(wait);
+        }
+    }
+
+    /**
+     * 记录一次等待
+     * @param tableId 等待的锁所在的表
+     * @param pid 等待的页面或元组所在的页面，等待表锁时为null
+     * @param nanos 从排队到拿到锁、超时或中止的时间
+     */
+    void recordWait(int tableId, PageId pid, long nanos) {
+        waits.increment();
+        waitNanos.add(nanos);
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 0;
+        while (bucket < WAIT_BUCKET_MICROS.length && micros >= WAIT_BUCKET_MICROS[bucket]) bucket++;
+        histogram[bucket].increment();
+        tables.computeIfAbsent(tableId, t -> new Counter()).add(nanos);
+        if (pid != null) pages.computeIfAbsent(pid, p -> new Counter()).add(nanos);
+    }
+
+    void recordUpgrade() {
+        upgrades.increment();
+    }
+
+    void recordDeadlock(TransactionId victim, List<TransactionId> cycle, String resource) {
+        Deadlock deadlock = new Deadlock(System.currentTimeMillis(), victim, cycle, resource);
+        synchronized (deadlocks) {
+            if (deadlocks.size() == RECENT_DEADLOCKS) deadlocks.removeFirst();
+            deadlocks.addLast(deadlock);
+        }
+    }
+
+    /** Return the number of lock requests that had to wait */
+    public long getWaitCount() {
+        return waits.sum();
+    }
+
+    /** Return the total time lock requests spent waiting, in nanoseconds */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * Return the number of waits in each bucket of {@link #WAIT_BUCKET_MICROS},
+     * followed by the number of longer waits.
+     */
+    public long[] getWaitHistogram() {
+        long[] counts = new long[histogram.length];
+        for (int i = 0; i < counts.length; i++) counts[i] = histogram[i].sum();
+        return counts;
+    }
+
+    /** Return the number of times a transaction strengthened a lock it already held */
+    public long getUpgradeCount() {
+        return upgrades.sum();
+    }
+
+    /** Return the pages waited on most often, at most n of them, most contended first */
+    public List<Contention<PageId>> getHotPages(int n) {
+        return hottest(pages, n);
+    }
+
+    /** Return the tables waited on most often, at most n of them, most contended first */
+    public List<Contention<Integer>> getHotTables(int n) {
+        return hottest(tables, n);
+    }
+
+    private static <K> List<Contention<K>> hottest(Map<K, Counter> counters, int n) {
+        //先取快照再排序 排序期间计数还在变化
+        List<Contention<K>> result = new ArrayList<>();
+        for (Map.Entry<K, Counter> e : counters.entrySet()) {
+            Counter c = e.getValue();
+            result.add(new Contention<>(e.getKey(), c.waits.sum(), c.nanos.sum(), c.maxNanos.get()));
+        }
+        result.sort(Comparator.comparingLong((Contention<K> c) -> c.getWaits())
+                .thenComparingLong(Contention::getWaitNanos).reversed());
+        return result.size() > n ? new ArrayList<>(result.subList(0, n)) : result;
+    }
+
+    /** Return the most recent deadlocks, oldest first */
+    public List<Deadlock> getRecentDeadlocks() {
+        synchronized (deadlocks) {
+            return Collections.unmodifiableList(new ArrayList<>(deadlocks));
+        }
+    }
+
+    void reset() {
+        waits.reset();
+        waitNanos.reset();
+        for (LongAdder bucket : histogram) bucket.reset();
+        upgrades.reset();
+        pages.clear();
+        tables.clear();
+        synchronized (deadlocks) {
+            deadlocks.clear();
+        }
+    }
+
+    /**
+     * Lock waits on one page or table.
+     * @param <K> PageId for pages, the table id for tables
+     */
+    public static class Contention<K> {
+        private final K resource;
+        private final long waits;
+        private final long waitNanos;
+        private final long maxWaitNanos;
+
+        Contention(K resource, long waits, long waitNanos, long maxWaitNanos) {
+            this.resource = resource;
+            this.waits = waits;
+            this.waitNanos = waitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public K getResource() {
+            return resource;
+        }
+
+        /** Return the number of lock requests that waited on the resource */
+        public long getWaits() {
+            return waits;
+        }
+
+        /** Return the total time spent waiting on the resource, in nanoseconds */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        /** Return the longest single wait on the resource, in nanoseconds */
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return LockManager.describe(resource) + ": " + waits + " waits, "
+                    + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms total, "
+                    + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms max";
+        }
+    }
+
+    /**
+     * A deadlock found by the lock manager: the transactions of the cycle and
+     * the one aborted to break it.
+     */
+    public static class Deadlock {
+        private final long timeMillis;
+        private final TransactionId victim;
+        private final List<TransactionId> cycle;
+        private final String resource;
+
+        Deadlock(long timeMillis, TransactionId victim, List<TransactionId> cycle, String resource) {
+            this.timeMillis = timeMillis;
+            this.victim = victim;
+            this.cycle = Collections.unmodifiableList(new ArrayList<>(cycle));
+            this.resource = resource;
+        }
+
+        /** Return when the deadlock was found, as System.currentTimeMillis() */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public TransactionId getVictim() {
+            return victim;
+        }
+
+        /** Return the transactions of the cycle, each waiting for the next and the last for the first */
+        public List<TransactionId> getCycle() {
+            return cycle;
+        }
+
+        /** Return a description of the lock the victim was waiting for */
+        public String getResource() {
+            return resource;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(new Date(timeMillis)).append(": aborted tx ").append(victim.getId())
+                    .append(" waiting for ").append(resource).append(", cycle");
+            for (TransactionId tid : cycle) sb.append(" tx ").append(tid.getId()).append(" ->");
+            sb.append(" tx ").append(cycle.get(0).getId());
+            return sb.toString();
+        }
+    }
+}
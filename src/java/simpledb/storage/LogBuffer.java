@@ -0,0 +1,82 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 日志缓冲区
+ * 日志记录先追加到内存中的direct ByteBuffer，缓冲区满、force或者需要读日志文件时才一次写入文件，
+ * 不再每写一个字段就调用一次RandomAccessFile（每次都是一个系统调用）。
+ *
+ * 缓冲区中的内容总是紧接在文件中已写入的内容之后：position是缓冲区第一个字节在文件中的位置，
+ * 写入使用带位置的FileChannel.write，与读日志时RandomAccessFile的文件指针无关。
+ * 由LogFile的对象锁保护。
+ */
+class LogBuffer extends OutputStream {
+
+    /** Default capacity of the log buffer in bytes */
+    static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final ByteBuffer buffer;
+    //写入文件的目标 日志文件被替换（截断）时随之更换
+    private FileChannel channel;
+    //缓冲区第一个字节在文件中的位置
+    private long position;
+
+    LogBuffer(int capacity) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * 从文件的position位置开始追加
+     * 缓冲区中不能有未写入的内容
+     */
+    void reset(FileChannel channel, long position) {
+        if (buffer.position() != 0) throw new IllegalStateException("log buffer not drained");
+        this.channel = channel;
+        this.position = position;
+    }
+
+    //日志末尾在文件中的位置 包括还在缓冲区中的内容
+    long end() {
+        return position + buffer.position();
+    }
+
+    //缓冲区中还没有写入文件的字节数
+    int size() {
+        return buffer.position();
+    }
+
+    /**
+     * 把缓冲区中的内容写入文件（不force）
+     */
+    void drain() throws IOException {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) drain();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) drain();
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+}
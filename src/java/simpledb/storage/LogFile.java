@@ -10,6 +10,9 @@ import javax.swing.text.Keymap;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -54,11 +57,15 @@ records are variable length.
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
+<li> The log sequence number (LSN) of a record is its position in the
+log.  Truncating the log doesn't change the LSNs of the records kept,
+see LogFile.getCurrentLSN().
+
  the position in the log file where the record began.
  <li> Each log record ends with a long integer file offset representing
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -67,18 +74,44 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>DELTA records hold only the byte ranges of a page that an update
+changed, with their contents before and after the update.  The first
+update of a page after a checkpoint is logged as an UPDATE record, the
+later ones as DELTA records, see LogFile.setDeltaLogging().  A
+transaction that logs a page it already logged before logs it as an
+UPDATE record again, so that the ranges of every DELTA record cover all
+bytes changed since the previous record of the page.
+
+<li> CLR (compensation log) records are written when an update is
+rolled back.  They hold the long integer offset of the next record of
+the transaction to undo (-1 if there is none) and the bytes the undo
+changed, in the format of a DELTA record.  CLRs are redone but never
+undone, so rolling back again after a crash picks up where the last
+rollback stopped.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction id
+and a long integer first record offset for each active transaction;
+then an integer count of dirty pages, as well as a page id and the long
+integer offset of the first record that dirtied the page (its recLSN)
+for each page whose logged updates may not be on disk yet, see
+BufferPool.getDirtyPageTable().
+
+<li> Recovery follows ARIES: an analysis pass from the last checkpoint
+finds the transactions that didn't finish and the dirty pages, the redo
+pass repeats every logged update from the smallest recLSN on, and the
+undo pass rolls the unfinished transactions back, writing CLRs, see
+LogFile.recover().
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    //force不持有对象锁 替换、关闭日志文件时同时持有forceLock
+    private volatile RandomAccessFile raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -86,17 +119,66 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    //CLR中没有需要撤销的记录了
+    static final long NO_UNDO_NEXT = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    //追加的记录先写入缓冲区 读日志文件之前先把缓冲区写入文件
+    private final LogBuffer buffer = new LogBuffer(LogBuffer.DEFAULT_CAPACITY);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    //LSN = lsnBase + 记录在文件中的位置 lsnBase是截断时从文件开头删掉的字节数
+    private long lsnBase = 0; //protected by this
+    //LSN小于它的记录都已经落盘
+    private volatile long flushedLSN = LONG_SIZE; //written under forceLock
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** Number of recent commits whose latency is kept for the percentiles */
+    public static final int LATENCY_SAMPLES = 10000;
+
+    //force日志与替换、关闭日志文件互斥 锁顺序为 对象锁 -> forceLock
+    private final Object forceLock = new Object();
+    //开启组提交时的提交线程
+    private volatile GroupCommit groupCommit;
+    //force的次数、提交数以及组提交force的批数
+    private final LongAdder forces = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder groupForces = new LongAdder();
+    private final LongAdder groupCommits = new LongAdder();
+    //最近LATENCY_SAMPLES次提交的耗时(ns) 循环覆盖
+    private final long[] commitLatencies = new long[LATENCY_SAMPLES];
+    private long latencySamples; //protected by commitLatencies
+
+    //只记录修改过的字节 关闭时每次都记录整页的before/after image
+    private boolean deltaLogging = true; //protected by this
+    //上一个检查点之后已经记录过的页面 -> 最后一条记录的事务
+    //其他事务之后的修改只记录增量，同一事务再次记录时before image不是页面上一条记录之后的内容，要记录整页
+    //页面被丢弃之后可能不经过日志直接写入磁盘（例如B+树重新分配空闲页），下一条记录也要记录整页
+    private final Map<PageId,Long> lastWriters = new ConcurrentHashMap<>();
+    //写入的更新记录（UPDATE和DELTA）的字节数与记录数
+    private final LongAdder updateBytes = new LongAdder();
+    private final LongAdder updateRecords = new LongAdder();
+    private final LongAdder deltaRecords = new LongAdder();
+    //回滚写入的CLR数
+    private final LongAdder compensationRecords = new LongAdder();
+
+    //检查点之间互斥 不与写日志互斥
+    private final Object checkpointLock = new Object();
+    //最后一个检查点记录之后的LSN 调度线程据此计算检查点之后写入的日志量
+    private volatile long checkpointLSN = LONG_SIZE;
+    //写入的检查点数
+    private final LongAdder checkpoints = new LongAdder();
+    //开启检查点调度时的调度线程
+    private volatile CheckpointScheduler checkpointScheduler;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -135,7 +217,8 @@ public class LogFile {
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            buffer.reset(raf.getChannel(), raf.getFilePointer());
+            currentOffset = buffer.end();
         }
     }
 
@@ -162,10 +245,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = buffer.end();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -174,34 +257,264 @@ public class LogFile {
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        With group commit running, the record is forced together with
+        those of other transactions committing at the same time, see
+        {@link #startGroupCommit(int, long)}.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long start = System.nanoTime();
+        GroupCommit group;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = buffer.end();
+            tidToFirstLogRecord.remove(tid.getId());
+            group = groupCommit;
+            //没有开启组提交时在对象锁内force
+            if (group == null) force();
+        }
+        //在对象锁外等待 其他事务可以在force期间继续写提交记录
+        if (group != null) group.await();
+        commits.increment();
+        recordCommitLatency(System.nanoTime() - start);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Start forcing commit records in groups: a background thread forces
+     * the log once for up to batchSize commits waiting at the same time,
+     * after waiting at most maxDelayMicros for the batch to fill up. Does
+     * nothing if group commit is already running.
+     *
+     * @param batchSize the most commits made durable by one force
+     * @param maxDelayMicros how long the first commit of a batch may wait
+     *        for more; 0 forces right away whatever commits are waiting
+     */
+    public synchronized void startGroupCommit(int batchSize, long maxDelayMicros) {
+        if (groupCommit != null) return;
+        GroupCommit group = new GroupCommit(this, batchSize, maxDelayMicros);
+        group.start();
+        groupCommit = group;
+    }
+
+    /** Start group commit with the default batch size and delay */
+    public void startGroupCommit() {
+        startGroupCommit(GroupCommit.DEFAULT_BATCH_SIZE, GroupCommit.DEFAULT_MAX_DELAY_MICROS);
+    }
+
+    /**
+     * Stop group commit, forcing the commits still waiting. Each commit
+     * forces the log by itself again.
+     */
+    public void stopGroupCommit() throws IOException {
+        GroupCommit group;
+        synchronized (this) {
+            group = groupCommit;
+            groupCommit = null;
+        }
+        if (group != null) group.stop();
+    }
+
+    /**
+     * Force the log to disk. With group commit running, the force is shared
+     * with the commits waiting at the same time.
+     */
+    public void forceGrouped() throws IOException {
+        GroupCommit group = groupCommit;
+        if (group == null) force();
+        else group.await();
+    }
+
+    /**
+     * Force the log up to the record with the given LSN, sharing the force
+     * with concurrent commits if group commit is running. Does nothing if
+     * that record is on disk already.
+     */
+    public void forceGrouped(long lsn) throws IOException {
+        if (lsn < flushedLSN) return;
+        forceGrouped();
+    }
+
+    /** Return true if commits are forced in groups */
+    public boolean isGroupCommitRunning() {
+        return groupCommit != null;
+    }
+
+    /**
+     * Start taking checkpoints in a background thread: one whenever
+     * maxLogBytes of log were written since the last checkpoint, or when
+     * intervalMillis passed since it and anything was logged. Does nothing
+     * if the scheduler is already running.
+     *
+     * @param maxLogBytes how much log is written between two checkpoints
+     *        at most, which bounds the log read by recovery
+     * @param intervalMillis the longest time between two checkpoints
+     * @see #logCheckpoint()
+     */
+    public synchronized void startCheckpointScheduler(long maxLogBytes, long intervalMillis) {
+        if (checkpointScheduler != null) return;
+        CheckpointScheduler scheduler = new CheckpointScheduler(this, Database.getCurrent(), maxLogBytes, intervalMillis);
+        scheduler.start();
+        checkpointScheduler = scheduler;
+    }
+
+    /** Start the checkpoint scheduler with the default log size and interval */
+    public void startCheckpointScheduler() {
+        startCheckpointScheduler(CheckpointScheduler.DEFAULT_MAX_LOG_BYTES, CheckpointScheduler.DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Stop the checkpoint scheduler, waiting for a checkpoint it is taking
+     * to finish.
+     */
+    public void stopCheckpointScheduler() {
+        CheckpointScheduler scheduler;
+        synchronized (this) {
+            scheduler = checkpointScheduler;
+            checkpointScheduler = null;
+        }
+        //调度线程做检查点时要拿对象锁 必须在对象锁外等它停止
+        if (scheduler != null) scheduler.stop();
+    }
+
+    /** Return true if checkpoints are taken in the background */
+    public boolean isCheckpointSchedulerRunning() {
+        return checkpointScheduler != null;
+    }
+
+    /** Return the number of checkpoints taken */
+    public long getCheckpointCount() {
+        return checkpoints.sum();
+    }
+
+    /** Return the LSN right after the last checkpoint record */
+    public long getCheckpointLSN() {
+        return checkpointLSN;
+    }
+
+    //组提交线程force一次 使batch个等待者（提交以及提交时写回页面之前的force）落盘
+    void groupForced(int batch) {
+        groupForces.increment();
+        groupCommits.add(batch);
+    }
+
+    private void recordCommitLatency(long nanos) {
+        synchronized (commitLatencies) {
+            commitLatencies[(int) (latencySamples++ % LATENCY_SAMPLES)] = nanos;
+        }
+    }
+
+    /** Return the number of times the log was forced to disk */
+    public long getForceCount() {
+        return forces.sum();
+    }
+
+    /** Return the number of commit records logged */
+    public long getCommitCount() {
+        return commits.sum();
+    }
+
+    /** Return the number of forces done by group commit */
+    public long getGroupForceCount() {
+        return groupForces.sum();
+    }
+
+    /**
+     * Return the average number of requests made durable by one group commit
+     * force; both commits and the force before a commit writes its pages count.
+     */
+    public double getAverageGroupSize() {
+        long n = groupForces.sum();
+        return n == 0 ? 0 : (double) groupCommits.sum() / n;
+    }
+
+    /**
+     * Return the given percentile of the latency of the last
+     * {@link #LATENCY_SAMPLES} commits, from writing the commit record until
+     * it was on disk, in microseconds; 0 if there were no commits.
+     *
+     * @param percentile between 0 and 100, e.g. 99 for the 99th percentile
+     */
+    public long getCommitLatencyMicros(double percentile) {
+        long[] samples;
+        synchronized (commitLatencies) {
+            samples = Arrays.copyOf(commitLatencies, (int) Math.min(latencySamples, LATENCY_SAMPLES));
+        }
+        if (samples.length == 0) return 0;
+        Arrays.sort(samples);
+        int i = (int) Math.ceil(percentile / 100 * samples.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(samples[Math.max(0, Math.min(i, samples.length - 1))]);
+    }
+
+    /** Return the number of bytes of UPDATE and DELTA records written */
+    public long getUpdateBytes() {
+        return updateBytes.sum();
+    }
+
+    /** Return the number of UPDATE and DELTA records written */
+    public long getUpdateRecordCount() {
+        return updateRecords.sum();
+    }
+
+    /** Return the number of DELTA records written */
+    public long getDeltaRecordCount() {
+        return deltaRecords.sum();
+    }
+
+    /** Return the number of CLRs written while rolling back updates */
+    public long getCompensationRecordCount() {
+        return compensationRecords.sum();
+    }
+
+    /**
+     * Log page updates as DELTA records holding only the changed bytes, or,
+     * if off, always as UPDATE records holding the full before and after
+     * images. On by default.
+     */
+    public synchronized void setDeltaLogging(boolean on) {
+        deltaLogging = on;
+    }
+
+    /** Reset the force, commit, update record and checkpoint counters and the commit latencies */
+    public void resetStatistics() {
+        forces.reset();
+        commits.reset();
+        groupForces.reset();
+        groupCommits.reset();
+        updateBytes.reset();
+        updateRecords.reset();
+        deltaRecords.reset();
+        compensationRecords.reset();
+        checkpoints.reset();
+        synchronized (commitLatencies) {
+            latencySamples = 0;
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
         (with provided         before and after images.)
+        With delta logging on, only the first update of the page after
+        the last checkpoint is logged with full images; later updates by
+        other transactions are logged as DELTA records holding the bytes
+        that differ between before and after.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return The LSN of the record; the log must be forced up to it
+        before the page is written, see {@link #forceTo(long)}
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -211,21 +524,68 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageDelta delta = null;
+        //before image是页面最后提交的内容 只有页面的上一条记录是其他事务写的时才等于上一条记录之后的内容
+        Long lastWriter = lastWriters.get(after.getId());
+        if (deltaLogging && lastWriter != null && lastWriter != tid.getId()) {
+            delta = PageDelta.diff(before, after);
+            //修改了大部分页面时增量不比整页小
+            if (delta != null && delta.getDataSize() >= 2 * after.getPageData().length) delta = null;
+        }
+        long start = currentOffset;
+        if (delta != null) {
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            delta.write(out);
+            deltaRecords.increment();
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        lastWriters.put(after.getId(), tid.getId());
+        out.writeLong(currentOffset);
+        currentOffset = buffer.end();
+        updateRecords.increment();
+        updateBytes.add(currentOffset - start);
+        //在对象锁内加入脏页表 检查点不会漏掉已经写入日志的页面
+        Database.getBufferPool().pageLogged(after.getId(), lsnBase + start);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsnBase + start;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    /**
+     * 页面从缓冲池中被丢弃，之后可能不经过日志写入磁盘，下一次修改记录整页
+     */
+    void pageDiscarded(PageId pid) {
+        lastWriters.remove(pid);
+    }
 
+    /**
+     * 写一条CLR
+     * @param tid 回滚的事务
+     * @param undoNext 事务下一条需要撤销的记录的位置，没有时为NO_UNDO_NEXT
+     * @param delta 撤销对页面的修改
+     */
+    private void logCompensation(long tid, long undoNext, PageDelta delta) throws IOException {
+        preAppend();
+        long start = currentOffset;
+        out.writeInt(CLR_RECORD);
+        out.writeLong(tid);
+        out.writeLong(undoNext);
+        delta.write(out);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.end();
+        //CLR按页面当前的内容计算 之后其他事务的修改仍然可以只记录增量
+        lastWriters.put(delta.getId(), tid);
+        compensationRecords.increment();
+        Database.getBufferPool().pageLogged(delta.getId(), lsnBase + start);
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         //page data is:
         // page class name
         // id class name
@@ -235,15 +595,10 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        writePageId(raf, p.getId());
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
@@ -251,43 +606,68 @@ public class LogFile {
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageId pid = readPageId(raf);
+
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
+
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        return newPage(pageClassName, pid, pageData);
+    }
+
+    //页面id的类名、参数个数以及参数
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
 
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object[] idArgs = new Object[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = in.readInt();
+        }
         try {
             Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
 
+    //用页面类的(页面id, byte[])构造函数创建页面
+    static Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
             Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            //页面类可能有多个构造函数 选择(页面id, byte[])的那个
+            Constructor<?> pageConst = pageConsts[0];
+            for (Constructor<?> c : pageConsts) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[0].isAssignableFrom(pid.getClass()) && params[1] == byte[].class) {
+                    pageConst = c;
+                    break;
+                }
+            }
+            return (Page)pageConst.newInstance(pageArgs);
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -302,150 +682,250 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.end();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        The checkpoint is fuzzy: it records the active transactions and
+        the dirty page table without writing any pages, and holds the
+        log's monitor only while appending the record, so transactions
+        keep running while it is taken. Recovery redoes the log from the
+        first update of a page in the dirty page table on, see
+        {@link BufferPool#getDirtyPageTable()}. Dirty pages get to disk
+        through commits and the background page writer.
+        @see #startCheckpointScheduler(long, long)
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        //同时只做一个检查点 文件开头的指针按检查点的顺序更新
+        synchronized (checkpointLock) {
+            long startCpLSN;
+            long endCpLSN;
+            //不需要缓冲池的监视器：脏页表的页面在写日志时加入、写回之后移除，读取它不需要其他锁
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset = currentOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                out.writeInt(CHECKPOINT_RECORD);
+                out.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
+                out.writeInt(keys.size());
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
+                    out.writeLong(key);
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                    out.writeLong(tidToFirstLogRecord.get(key));
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                //write the dirty page table, with recLSNs as offsets in the current file
+                Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+                out.writeInt(dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                    writePageId(out, e.getKey());
+                    out.writeLong(Math.max(e.getValue() - lsnBase, LONG_SIZE));
+                }
+
+                out.writeLong(startCpOffset);
+                currentOffset = buffer.end();
+                startCpLSN = lsnBase + startCpOffset;
+                endCpLSN = lsnBase + currentOffset;
+                //之后每个页面第一次修改时重新记录整页
+                lastWriters.clear();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
-        }
 
-        logTruncate();
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            //force时不持有对象锁 其他事务可以继续写日志
+            forceTo(startCpLSN);
+            synchronized (this) {
+                raf.seek(0);
+                raf.writeLong(startCpLSN - lsnBase);
+            }
+            checkpointLSN = endCpLSN;
+            checkpoints.increment();
+
+            logTruncate();
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        consumption.  The records kept are copied to a new file while
+        other threads keep appending to the log; only the records
+        appended during the copy are copied while holding the log's
+        monitor, right before the new file replaces the old one. */
+    public void logTruncate() throws IOException {
+        //截断期间不能有新的检查点改写文件开头的指针
+        synchronized (checkpointLock) {
+            long cpLoc;
+            long minLogRecord;
+            long copyEnd;
+            synchronized (this) {
+                preAppend();
+                buffer.drain();
+                raf.seek(0);
+                cpLoc = raf.readLong();
 
-        long minLogRecord = cpLoc;
+                minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+                if (cpLoc != -1L) {
+                    raf.seek(cpLoc);
+                    int cpType = raf.readInt();
+                    @SuppressWarnings("unused")
+                    long cpTid = raf.readLong();
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+                    if (cpType != CHECKPOINT_RECORD) {
+                        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    }
 
-            int numOutstanding = raf.readInt();
+                    //活跃事务的第一条记录以及脏页的recLSN之后的记录都要保留
+                    Map<Long, Long> transactions = new HashMap<>();
+                    Map<PageId, Long> dirtyPages = new HashMap<>();
+                    readCheckpoint(raf, transactions, dirtyPages);
+                    for (long firstLogRecord : transactions.values()) {
+                        if (firstLogRecord < minLogRecord) {
+                            minLogRecord = firstLogRecord;
+                        }
+                    }
+                    for (long recLSN : dirtyPages.values()) {
+                        if (recLSN < minLogRecord) {
+                            minLogRecord = recLSN;
+                        }
+                    }
+                }
+                copyEnd = currentOffset;
+            }
+            //没有可以截掉的记录
+            if (minLogRecord <= LONG_SIZE) return;
+
+            // we can truncate everything before minLogRecord
+            File newFile = new File("logtmp" + System.currentTimeMillis());
+            RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
+            logNew.seek(0);
+            logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+            //复制的BEGIN记录在新文件中的位置
+            Map<Long, Long> begins = new HashMap<>();
+
+            //用单独的文件指针读旧文件 不影响持有对象锁读日志的回滚
+            RandomAccessFile reader = new RandomAccessFile(logFile, "r");
+            try {
+                copyRecords(reader, minLogRecord, copyEnd, logNew, minLogRecord, begins);
+                logNew.getChannel().force(true);
+
+                synchronized (this) {
+                    //复制期间追加的记录
+                    buffer.drain();
+                    if (currentOffset > copyEnd) {
+                        copyRecords(reader, copyEnd, currentOffset, logNew, minLogRecord, begins);
+                        //替换之前先让新文件落盘 已经force过的记录不能因为截断丢失
+                        logNew.getChannel().force(true);
+                    }
+                    logNew.close();
+                    reader.close();
+
+                    Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+
+                    synchronized (forceLock) {
+                        raf.close();
+                        logFile.delete();
+                        newFile.renameTo(logFile);
+                        raf = new RandomAccessFile(logFile, "rw");
+                        raf.seek(raf.length());
+                        newFile.delete();
+                    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+                    //复制期间结束的事务不再放回去
+                    for (Map.Entry<Long, Long> e : begins.entrySet()) {
+                        tidToFirstLogRecord.replace(e.getKey(), e.getValue());
+                    }
+                    //保留下来的记录在文件中前移了 LSN不变
+                    lsnBase += minLogRecord - LONG_SIZE;
+                    buffer.reset(raf.getChannel(), raf.getFilePointer());
+                    currentOffset = buffer.end();
+                    //新文件替换前已经force 其中的记录都已经落盘
+                    synchronized (forceLock) {
+                        flushedLSN = Math.max(flushedLSN, lsnBase + currentOffset);
+                    }
                 }
+            } finally {
+                logNew.close();
+                reader.close();
             }
+            //print();
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+    /**
+     * 把旧文件中[start, end)之间的记录复制到新文件的末尾
+     * 截断之后记录在文件中的位置变了，要改写记录中的位置
+     * @param minLogRecord 新文件从旧文件的这个位置开始
+     * @param begins 复制的BEGIN记录的事务 -> 在新文件中的位置
+     */
+    private void copyRecords(RandomAccessFile from, long start, long end, RandomAccessFile logNew, long minLogRecord, Map<Long, Long> begins) throws IOException {
+        from.seek(start);
 
         //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+        while (from.getFilePointer() < end) {
+            int type = from.readInt();
+            long record_tid = from.readLong();
+            long newStart = logNew.getFilePointer();
 
-                Debug.log("NEW START = " + newStart);
+            Debug.log("NEW START = " + newStart);
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+            logNew.writeInt(type);
+            logNew.writeLong(record_tid);
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+            switch (type) {
+            case UPDATE_RECORD:
+                Page before = readPageData(from);
+                Page after = readPageData(from);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+                writePageData(logNew, before);
+                writePageData(logNew, after);
+                break;
+            case DELTA_RECORD:
+                PageDelta.read(from).write(logNew);
+                break;
+            case CLR_RECORD:
+                long undoNext = from.readLong();
+                //截掉的记录属于已经结束的事务 不会再被撤销
+                logNew.writeLong(undoNext < minLogRecord ? NO_UNDO_NEXT : (undoNext - minLogRecord) + LONG_SIZE);
+                PageDelta.read(from).write(logNew);
+                break;
+            case CHECKPOINT_RECORD:
+                int numXactions = from.readInt();
+                logNew.writeInt(numXactions);
+                while (numXactions-- > 0) {
+                    long xid = from.readLong();
+                    long xoffset = from.readLong();
+                    logNew.writeLong(xid);
+                    logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
+                int numPages = from.readInt();
+                logNew.writeInt(numPages);
+                while (numPages-- > 0) {
+                    writePageId(logNew, readPageId(from));
+                    logNew.writeLong((from.readLong() - minLogRecord) + LONG_SIZE);
+                }
+                break;
+            case BEGIN_RECORD:
+                begins.put(record_tid, newStart);
                 break;
             }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+            //all xactions finish with a pointer
+            logNew.writeLong(newStart);
+            from.readLong();
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -458,130 +938,142 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
+        rollback(tid.getId());
+    }
+
+    public void rollback(Long tid)
+            throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
                 // some code goes here
-                //仿照logTruncate函数
                 /*
-                本应该从tid第一次出现的位置读取所有tid事务的更新记录，进行逆序重做的操作
-                  但是update操作时是对整个页面进行更新，所有这里采用简化的方式，直接读取
-                  事务tid第一次更新的页面操作，将数据直接恢复倒最初状态，不去一步一步回滚。
-                  但是回滚之后，需要直接退出。
+                  从事务的第一条记录开始找出它的UPDATE和DELTA记录，再按LSN从大到小逐条撤销，
+                  每撤销一条写一条CLR；之前回滚到一半时写的CLR说明哪些记录已经撤销过了
                 */
-                //1.找到事务tid所在得到位置
-                //2.开始读取文件，对不同记录分别处理
-                //4读到updateRecord，正式回滚文件，在抛弃缓冲中的该页，并且删除tidTofirstRecord记录
-                //
-
-                //1.
-                Long offset = tidToFirstLogRecord.get(tid.getId());
-                if(offset!=null)
-                    raf.seek(offset);
-                boolean isRollBack = false;
+                Long offset = tidToFirstLogRecord.get(tid);
+                if (offset == null) return;
+                //后台写回的页面可能还没有写到磁盘上 撤销从日志记录的内容开始
+                Database.getBufferPool().flushPendingWrites();
+                buffer.drain();
+                List<Long> undoList = new ArrayList<>();
+                raf.seek(offset);
 
                 while (true) {
                     try {
-                        //2.
+                        long start = raf.getFilePointer();
                         int type = raf.readInt();
                         long record_tid = raf.readLong();
-                        //3.
                         switch (type) {
                             case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                if(tid.getId()==record_tid){
-                                    Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-                                    Database.getBufferPool().discardPage(before.getId());
-                                    tidToFirstLogRecord.remove(tid);
-                                    isRollBack = true;
-                                }
+                                readPageData(raf);
+                                readPageData(raf);
+                                if (tid == record_tid) undoList.add(start);
+                                break;
+                            case DELTA_RECORD:
+                                PageDelta.read(raf);
+                                if (tid == record_tid) undoList.add(start);
+                                break;
+                            case CLR_RECORD:
+                                long undoNext = raf.readLong();
+                                PageDelta.read(raf);
+                                if (tid == record_tid) undoList.removeIf(o -> o > undoNext);
                                 break;
                             case CHECKPOINT_RECORD:
-                                int numXactions = raf.readInt();
-                                while (numXactions-- > 0) {
-                                    long xid = raf.readLong();
-                                    long xoffset = raf.readLong();
-                                }
+                                readCheckpoint(raf, new HashMap<>(), new HashMap<>());
                                 break;
                         }
 
                         raf.readLong();
-
-                        if(isRollBack){
-                            break;
-                        }
                     } catch (EOFException e) {
                         break;
                     }
                 }
 
+                undo(Collections.singletonMap(tid, undoList), new HashMap<>());
             }
         }
     }
 
-    public void rollback(Long tid)
-            throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
-                //仿照logTruncate函数
-                /*
-                本应该从tid第一次出现的位置读取所有tid事务的更新记录，进行逆序重做的操作
-                  但是update操作时是对整个页面进行更新，所有这里采用简化的方式，直接读取
-                  事务tid第一次更新的页面操作，将数据直接恢复倒最初状态，不去一步一步回滚。
-                  但是回滚之后，需要直接退出。
-                */
-                //1.找到事务tid所在得到位置
-                //2.开始读取文件，对不同记录分别处理
-                //4读到updateRecord，正式回滚文件，在抛弃缓冲中的该页，并且删除tidTofirstRecord记录
-                //
-
-                //1.
-                Long offset = tidToFirstLogRecord.get(tid);
-                if(offset!=null)
-                    raf.seek(offset);
-                boolean isRollBack = false;
-
-                while (true) {
-                    try {
-                        //2.
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-                        //3.
-                        switch (type) {
-                            case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                if(tid==record_tid){
-                                    Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-                                    Database.getBufferPool().discardPage(before.getId());
-                                    tidToFirstLogRecord.remove(tid);
-                                    isRollBack = true;
-                                }
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int numXactions = raf.readInt();
-                                while (numXactions-- > 0) {
-                                    long xid = raf.readLong();
-                                    long xoffset = raf.readLong();
-                                }
-                                break;
-                        }
+    /**
+     * 按LSN从大到小撤销事务的更新记录：在页面当前的内容上恢复记录修改前的内容，
+     * 并写一条CLR记下这次撤销以及事务下一条要撤销的记录。最后force日志，写回撤销后的页面
+     *
+     * @param undoLists 事务 -> 还没有撤销的UPDATE和DELTA记录的位置，从小到大
+     * @param pages 页面当前的内容，不在其中的页面从磁盘读；撤销完写回其中所有的页面
+     */
+    private void undo(Map<Long, List<Long>> undoLists, Map<PageId, Page> pages) throws IOException {
+        //多个事务的记录交错时也要整体逆序撤销
+        TreeMap<Long, Long> records = new TreeMap<>();
+        for (Map.Entry<Long, List<Long>> e : undoLists.entrySet()) {
+            for (long offset : e.getValue()) records.put(offset, e.getKey());
+        }
+        for (Map.Entry<Long, Long> record : records.descendingMap().entrySet()) {
+            long tid = record.getValue();
+            List<Long> undoList = undoLists.get(tid);
+            undoList.remove(undoList.size() - 1);
+            long undoNext = undoList.isEmpty() ? NO_UNDO_NEXT : undoList.get(undoList.size() - 1);
+
+            raf.seek(record.getKey());
+            int type = raf.readInt();
+            raf.readLong();
+            Page current;
+            Page undone;
+            if (type == UPDATE_RECORD) {
+                undone = readPageData(raf);
+                current = currentPage(pages, undone.getId());
+            } else {
+                PageDelta delta = PageDelta.read(raf);
+                current = currentPage(pages, delta.getId());
+                undone = delta.undo(current);
+            }
+            PageDelta compensation = PageDelta.diff(current, undone);
+            if (compensation == null) throw new IOException("page size of " + current.getId() + " doesn't match the log record");
+            logCompensation(tid, undoNext, compensation);
+            pages.put(undone.getId(), undone);
+        }
+        writePages(pages);
+    }
 
-                        raf.readLong();
+    //页面在pages中的内容，没有时从磁盘读
+    private static Page currentPage(Map<PageId, Page> pages, PageId pid) throws IOException {
+        Page page = pages.get(pid);
+        if (page == null) {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            pages.put(pid, page);
+        }
+        return page;
+    }
 
-                        if(isRollBack){
-                            break;
-                        }
-                    } catch (EOFException e) {
-                        raf.seek(currentOffset);
-                        break;
-                    }
-                }
+    /**
+     * force日志之后写回页面（WAL），缓冲池中的旧内容作废
+     */
+    private void writePages(Map<PageId, Page> pages) throws IOException {
+        if (pages.isEmpty()) return;
+        force();
+        long lsn = lsnBase + currentOffset;
+        for (Page page : pages.values()) {
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            Database.getBufferPool().discardPage(page.getId());
+            Database.getBufferPool().pageWritten(page.getId(), lsn);
+        }
+    }
 
-            }
+    /**
+     * 读检查点记录中类型和事务id之后的内容（不包括结尾的起始位置）
+     * @param transactions 活跃事务 -> 第一条记录的位置
+     * @param dirtyPages 脏页 -> recLSN（文件中的位置）
+     */
+    private static void readCheckpoint(DataInput in, Map<Long, Long> transactions, Map<PageId, Long> dirtyPages) throws IOException {
+        int numXactions = in.readInt();
+        while (numXactions-- > 0) {
+            long tid = in.readLong();
+            transactions.put(tid, in.readLong());
+        }
+        int numPages = in.readInt();
+        while (numPages-- > 0) {
+            PageId pid = readPageId(in);
+            dirtyPages.put(pid, in.readLong());
         }
     }
 
@@ -589,10 +1081,20 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            //组提交线程force时要拿对象锁 必须在对象锁外等它停止
+            stopGroupCommit();
+            stopCheckpointScheduler();
+            //检查点不写回页面 先写回所有页面，重启时不需要重做
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                buffer.drain();
+                synchronized (forceLock) {
+                    raf.close();
+                }
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -601,141 +1103,158 @@ public class LogFile {
 
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
-        updates of uncommitted transactions are not installed
-     算法实现参考：操作系统概论第六版-16.4.2
+        updates of uncommitted transactions are not installed.
+        Recovery has three passes, as in ARIES: analysis reads the
+        transaction table and the dirty page table of the last checkpoint
+        and brings them up to date with the records after it; redo
+        repeats every update of the dirty pages from their recLSN on,
+        including those of transactions that didn't finish; undo rolls
+        these transactions back with CLRs and logs their abort.
+        Recovery reads the log from the last checkpoint, or from the
+        first record of a transaction active at that checkpoint, so its
+        time depends on the checkpoint interval rather than on the
+        length of the log.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                //1.找到最后一个检查点，获取该检查点时的活跃事务id，并用集合L保存
-                //2.重做阶段：开始从保存点向下查找每条记录，对每条更新记录进行redo操作。
-                //          若出现新的事务，加入集合。若出现事务的abort和commit记录，将该事务移出L
-                //3.扫描完成，进入撤销阶段
-                //4.撤销阶段：总日志末尾反向移动，每碰到日志中的一个事务update记录，就执行undo操作
-                //          并加入一条abort记录，并从L中移除该事务
-                //5.不断重复，直到集合L为空
+                //页面上不保存LSN，无法判断一条记录是否已经在磁盘上。
+                //UPDATE记录整页、DELTA和CLR记录修改的字节，都是写入固定的内容，
+                //从recLSN开始按顺序重做的结果与磁盘上已经写入了哪些修改无关
 
                 // The first long integer of the file represents the offset of the
                 //last written checkpoint, or -1 if there are no checkpoints
-                //1.
-                print();
                 raf.seek(0);
                 long lastCheckPoint = raf.readLong();
-                //所有需要undo操作的页面
-                Map<Long, Long> tid2offset = new HashMap<>();
-                //某一事务操作的页面集合
-                Map<Long, List<PageId>> tid2pages = new HashMap<>();
-                //页面id对应的页面
-                Map<PageId, Page> pages = new HashMap<>();
-
-                //获取活跃的事务
-                if (lastCheckPoint != -1) {
-                    //定位倒checkpoint所在位置
+                //没有结束的事务 -> 还要撤销的记录的位置
+                Map<Long, List<Long>> transactions = new HashMap<>();
+                //脏页 -> recLSN
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+
+                //1.分析：从检查点中活跃事务最早的记录开始扫描
+                long start = LONG_SIZE;
+                if (lastCheckPoint != NO_CHECKPOINT_ID) {
                     raf.seek(lastCheckPoint);
-                    //获取checkpoint记录信息
-                    int type = raf.readInt();//类型
-                    if (type == CHECKPOINT_RECORD) {
-                        raf.readLong();//事务id
-                        int nums = raf.readInt();
-                        for (int i = 0; i < nums; i++) {
-                            Long tid = raf.readLong();
-                            Long offset = raf.readLong();
-                            tid2offset.put(tid, offset);
-                        }
+                    if (raf.readInt() != CHECKPOINT_RECORD) {
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
                     }
                     raf.readLong();
+                    Map<Long, Long> active = new HashMap<>();
+                    readCheckpoint(raf, active, dirtyPages);
+                    start = lastCheckPoint;
+                    for (long first : active.values()) start = Math.min(start, first);
                 }
-                //为已存在的活跃事务初始化一个页集合
-                Set<Long> longs = tid2offset.keySet();
-                for (Long tid : longs) {
-                    //需要该集合在rollback函数与rocver进行建立连接，在重做阶段找到要撤销的事务，将其与偏移量加在一起，为rollback使用。
-                    tidToFirstLogRecord.put(tid,tid2offset.get(tid));
-                    tid2pages.put(tid, new ArrayList<>());
-                }
-
-
-
-                //2.
+                raf.seek(start);
                 while (true) {
                     try {
+                        long offset = raf.getFilePointer();
                         int type = raf.readInt();
                         long record_tid = raf.readLong();
+                        List<Long> undoList = transactions.get(record_tid);
+                        PageId pid = null;
 
                         switch (type) {
-                            //更新就保存页面，直到遇见commit和abort再进行处理
-                            case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                raf.readLong();
-                                //只保存after页面 等到遇到commit时再正式更新
-                                tid2pages.get(record_tid).add(after.getId());
-                                pages.put(after.getId(), after);
-                                break;
-
                             case BEGIN_RECORD:
-                                //出现begin，将该事务加入
-                                long offset = raf.readLong();
-                                tidToFirstLogRecord.put(record_tid,offset);
-                                tid2offset.put(record_tid,offset);
-                                tid2pages.put(record_tid,new ArrayList<>());
+                                transactions.put(record_tid, new ArrayList<>());
                                 break;
-
+                            case COMMIT_RECORD:
                             case ABORT_RECORD:
-                                //出现终止 剔除tid2offset中的对应事务
-                                tidToFirstLogRecord.remove(record_tid);
-                                ArrayList<PageId> pageArrayList = (ArrayList<PageId>) tid2pages.get(record_tid);
-                                tid2pages.remove(record_tid);
-                                for (PageId pageId : pageArrayList) {
-                                    pages.remove(pageId);
-                                }
-                                raf.readLong();
+                                //终止记录在回滚完成之后才写
+                                transactions.remove(record_tid);
                                 break;
-
-                            case COMMIT_RECORD:
-                                //将tid2offset中的事务提交
-                                ArrayList<PageId> pagelist = (ArrayList<PageId>) tid2pages.get(record_tid);
-                                for (PageId pageId : pagelist) {
-                                    Page page = pages.get(pageId);
-                                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                                    page.setBeforeImage();
-                                }
-                                tidToFirstLogRecord.remove(record_tid);
-                                tid2pages.remove(record_tid);
-                                raf.readLong();
+                            case UPDATE_RECORD:
+                                readPageData(raf);
+                                pid = readPageData(raf).getId();
+                                if (undoList != null) undoList.add(offset);
+                                break;
+                            case DELTA_RECORD:
+                                pid = PageDelta.read(raf).getId();
+                                if (undoList != null) undoList.add(offset);
+                                break;
+                            case CLR_RECORD:
+                                long undoNext = raf.readLong();
+                                pid = PageDelta.read(raf).getId();
+                                //CLR之前回滚过的记录不再撤销
+                                if (undoList != null) undoList.removeIf(o -> o > undoNext);
+                                break;
+                            case CHECKPOINT_RECORD:
+                                readCheckpoint(raf, new HashMap<>(), new HashMap<>());
                                 break;
                         }
+                        //检查点之前修改的页面由检查点的脏页表给出
+                        if (pid != null && offset >= lastCheckPoint) dirtyPages.putIfAbsent(pid, offset);
+                        raf.readLong();
                     } catch (EOFException e) {
                         break;
                     }
                 }
 
+                //2.重做：从最小的recLSN开始重做脏页的修改
+                Map<PageId, Page> pages = new HashMap<>();
+                if (!dirtyPages.isEmpty()) {
+                    raf.seek(Collections.min(dirtyPages.values()));
+                    while (true) {
+                        try {
+                            long offset = raf.getFilePointer();
+                            int type = raf.readInt();
+                            raf.readLong();
+
+                            switch (type) {
+                                case UPDATE_RECORD:
+                                    readPageData(raf);
+                                    Page after = readPageData(raf);
+                                    if (needsRedo(dirtyPages, after.getId(), offset)) pages.put(after.getId(), after);
+                                    break;
+                                case CLR_RECORD:
+                                case DELTA_RECORD:
+                                    //CLR在页面变化之前多一个undoNext
+                                    if (type == CLR_RECORD) raf.readLong();
+                                    PageDelta delta = PageDelta.read(raf);
+                                    if (needsRedo(dirtyPages, delta.getId(), offset)) {
+                                        pages.put(delta.getId(), delta.redo(currentPage(pages, delta.getId())));
+                                    }
+                                    break;
+                                case CHECKPOINT_RECORD:
+                                    readCheckpoint(raf, new HashMap<>(), new HashMap<>());
+                                    break;
+                            }
+                            raf.readLong();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                    }
+                }
 
-
-            //4.撤销阶段
-
-            currentOffset = raf.getFilePointer();
-            //获取需要进行撤销操作的事务的记录位置，方便重做后写入abort信息
-            for (Long tid : tid2offset.keySet()) {
-                raf.seek(currentOffset);
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid);
-                raf.writeLong(currentOffset);
-                //开始回滚
+                //3.撤销：之后的记录追加在文件末尾 文件中已有的记录都已经落盘
+                buffer.reset(raf.getChannel(), raf.length());
+                currentOffset = buffer.end();
+                flushedLSN = lsnBase + currentOffset;
+                //撤销完所有没有结束的事务并写回重做、撤销过的页面之后，再记录这些事务终止
+                undo(transactions, pages);
+                for (Long tid : transactions.keySet()) {
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = buffer.end();
+                    tidToFirstLogRecord.remove(tid);
+                }
                 force();
-                rollback(tid);
-                //将abort记录设置在文件末尾
-                currentOffset = raf.length(); }
             }
-            raf.writeLong(currentOffset);
-            print();
         }
     }
 
+    //记录在页面的recLSN之后时需要重做
+    private static boolean needsRedo(Map<PageId, Long> dirtyPages, PageId pid, long offset) {
+        Long recLSN = dirtyPages.get(pid);
+        return recLSN != null && offset >= recLSN;
+    }
+
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
+        buffer.drain();
         long curOffset = raf.getFilePointer();
 
         raf.seek(0);
@@ -775,6 +1294,15 @@ public class LogFile {
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                     }
+                    int numPages = raf.readInt();
+                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numPages);
+
+                    while (numPages-- > 0) {
+                        long pageStart = raf.getFilePointer();
+                        PageId pid = readPageId(raf);
+                        System.out.println(pageStart + ": DIRTY PAGE: table id " + pid.getTableId() + " page number " + pid.getPageNumber());
+                        System.out.println(raf.getFilePointer() + ": RECLSN: " + raf.readLong());
+                    }
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
@@ -797,6 +1325,33 @@ public class LogFile {
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+
+                    long deltaStart = raf.getFilePointer();
+                    PageDelta delta = PageDelta.read(raf);
+
+                    System.out.println(deltaStart + ": table id " + delta.getId().getTableId());
+                    System.out.println(deltaStart + ": page number " + delta.getId().getPageNumber());
+                    System.out.println(deltaStart + " TO " + raf.getFilePointer() + ": " + delta.getRangeCount() + " changed ranges");
+
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
+                    break;
+                case CLR_RECORD:
+                    System.out.println(" (CLR)");
+                    System.out.println(raf.getFilePointer() + ": UNDO NEXT: " + raf.readLong());
+
+                    long clrStart = raf.getFilePointer();
+                    PageDelta compensation = PageDelta.read(raf);
+
+                    System.out.println(clrStart + ": table id " + compensation.getId().getTableId());
+                    System.out.println(clrStart + ": page number " + compensation.getId().getPageNumber());
+                    System.out.println(clrStart + " TO " + raf.getFilePointer() + ": " + compensation.getRangeCount() + " changed ranges");
+
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
                     break;
                 }
 
@@ -810,8 +1365,44 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public  synchronized void  force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Force the log to disk. Holds the log's monitor only while writing
+     * out the log buffer, so other threads can keep appending records
+     * while the force runs.
+     */
+    public void force() throws IOException {
+        long end;
+        synchronized (this) {
+            buffer.drain();
+            end = lsnBase + buffer.end();
+        }
+        synchronized (forceLock) {
+            raf.getChannel().force(true);
+            if (end > flushedLSN) flushedLSN = end;
+        }
+        forces.increment();
+    }
+
+    /**
+     * Force the log to disk up to the record with the given LSN. Does
+     * nothing if that record is on disk already, e.g. because a later
+     * commit forced it.
+     *
+     * @param lsn the LSN of a record, or 0 for pages that were never logged
+     */
+    public void forceTo(long lsn) throws IOException {
+        if (lsn < flushedLSN) return;
+        force();
+    }
+
+    /** Return the LSN the next record will get */
+    public synchronized long getCurrentLSN() {
+        return lsnBase + (currentOffset < 0 ? LONG_SIZE : currentOffset);
+    }
+
+    /** Return the LSN up to which the log is on disk; all records with smaller LSNs are */
+    public long getFlushedLSN() {
+        return flushedLSN;
     }
 
 }
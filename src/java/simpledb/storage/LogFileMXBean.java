@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+/**
+ * Log statistics exposed through JMX, see {@link LogFileMonitor}.
+ */
+public interface LogFileMXBean {
+
+    /** Return the number of times the log was forced to disk */
+    long getForceCount();
+
+    /** Return the number of commit records logged */
+    long getCommitCount();
+
+    boolean isGroupCommitRunning();
+
+    /** Return the number of forces done by group commit */
+    long getGroupForceCount();
+
+    /** Return the average number of commits and page flushes made durable by one group commit force */
+    double getAverageGroupSize();
+
+    /** Return the median commit latency in microseconds */
+    long getCommitLatencyP50Micros();
+
+    /** Return the 95th percentile of the commit latency in microseconds */
+    long getCommitLatencyP95Micros();
+
+    /** Return the 99th percentile of the commit latency in microseconds */
+    long getCommitLatencyP99Micros();
+
+    /** Return the number of bytes of page update records written */
+    long getUpdateBytes();
+
+    /** Return the number of page update records written */
+    long getUpdateRecordCount();
+
+    /** Return the number of page updates logged as deltas rather than full images */
+    long getDeltaRecordCount();
+
+    /** Return the number of compensation log records written by rollbacks */
+    long getCompensationRecordCount();
+
+    boolean isCheckpointSchedulerRunning();
+
+    /** Return the number of checkpoints taken */
+    long getCheckpointCount();
+
+    /** Reset the counters and the commit latencies */
+    void resetStatistics();
+}
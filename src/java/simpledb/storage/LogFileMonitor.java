@@ -0,0 +1,116 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 通过JMX读取日志的force次数和提交延迟
+ * 和LockManagerMonitor一样每次读取都转到Database当前的日志。
+ */
+public class LogFileMonitor implements LogFileMXBean {
+
+    /** Name the monitor is registered under */
+    public static final String OBJECT_NAME = "simpledb:type=LogFile";
+
+    /**
+     * Register the monitor with the platform MBean server unless it is
+     * registered already.
+     */
+    public static void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(new LogFileMonitor(), name);
+        } catch (InstanceAlreadyExistsException e) {
+            //另一个线程刚刚注册
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static LogFile log() {
+        return Database.getLogFile();
+    }
+
+    @Override
+    public long getForceCount() {
+        return log().getForceCount();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return log().getCommitCount();
+    }
+
+    @Override
+    public boolean isGroupCommitRunning() {
+        return log().isGroupCommitRunning();
+    }
+
+    @Override
+    public long getGroupForceCount() {
+        return log().getGroupForceCount();
+    }
+
+    @Override
+    public double getAverageGroupSize() {
+        return log().getAverageGroupSize();
+    }
+
+    @Override
+    public long getUpdateBytes() {
+        return log().getUpdateBytes();
+    }
+
+    @Override
+    public long getUpdateRecordCount() {
+        return log().getUpdateRecordCount();
+    }
+
+    @Override
+    public long getDeltaRecordCount() {
+        return log().getDeltaRecordCount();
+    }
+
+    @Override
+    public long getCompensationRecordCount() {
+        return log().getCompensationRecordCount();
+    }
+
+    @Override
+    public boolean isCheckpointSchedulerRunning() {
+        return log().isCheckpointSchedulerRunning();
+    }
+
+    @Override
+    public long getCheckpointCount() {
+        return log().getCheckpointCount();
+    }
+
+    @Override
+    public long getCommitLatencyP50Micros() {
+        return log().getCommitLatencyMicros(50);
+    }
+
+    @Override
+    public long getCommitLatencyP95Micros() {
+        return log().getCommitLatencyMicros(95);
+    }
+
+    @Override
+    public long getCommitLatencyP99Micros() {
+        return log().getCommitLatencyMicros(99);
+    }
+
+    @Override
+    public void resetStatistics() {
+        log().resetStatistics();
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 以只读内存映射的方式读取数据文件中的页面
+ * 文件按SEGMENT_PAGES个页面划分成若干段，每段在第一次访问时映射，页面不会跨段。
+ * 映射时只映射文件当前长度以内的部分，文件变长（insertTuple追加了新页面）之后
+ * 访问到映射范围外的页面时重新映射所在的段。
+ *
+ * 页面的写入仍然通过FileHandle完成，写入的内容经由操作系统的页缓存对映射可见。
+ */
+class MappedFile {
+
+    //每段包含的页面数
+    static final int SEGMENT_PAGES = 4096;
+
+    private final File file;
+    private final FileHandle handle;
+    private final int pageSize;
+    //段号 -> 该段的映射
+    private final ConcurrentHashMap<Integer, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+
+    MappedFile(File file, FileHandle handle, int pageSize) {
+        this.file = file;
+        this.handle = handle;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * 返回页面pageNo在映射区域中的视图
+     * @return 长度为一页的只读缓冲区，页面不在文件中时返回null
+     */
+    ByteBuffer page(int pageNo) throws IOException {
+        int segment = pageNo / SEGMENT_PAGES;
+        int offset = (pageNo % SEGMENT_PAGES) * pageSize;
+        MappedByteBuffer mapped = segments.get(segment);
+        if (mapped == null || mapped.capacity() < offset + pageSize) {
+            mapped = remap(segment);
+            if (mapped == null || mapped.capacity() < offset + pageSize) return null;
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.limit(offset + pageSize).position(offset);
+        return view.slice();
+    }
+
+    //按文件当前长度重新映射段segment
+    private MappedByteBuffer remap(int segment) throws IOException {
+        long start = (long) segment * SEGMENT_PAGES * pageSize;
+        long length = Math.min(file.length() - start, (long) SEGMENT_PAGES * pageSize);
+        if (length <= 0) return null;
+        MappedByteBuffer mapped = handle.map(start, length);
+        segments.put(segment, mapped);
+        return mapped;
+    }
+
+    int pageSize() {
+        return pageSize;
+    }
+
+    /** Return the number of segments currently mapped */
+    int mappedSegments() {
+        return segments.size();
+    }
+}
@@ -58,4 +58,25 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the latch guarding the in-memory contents of this page. The
+     * latch is held only while the page is being read or modified and is
+     * independent of the transactional locks held on the page.
+     *
+     * @see PageLatch
+     */
+    PageLatch getLatch();
+
+    /**
+     * Return the LSN of the last log record of an update of this page, or 0
+     * if this page was not logged. The buffer pool forces the log up to this
+     * LSN before writing the page, see {@link LogFile#forceTo(long)}.
+     */
+    long getPageLSN();
+
+    /**
+     * Set the LSN of the log record of the last update of this page
+     */
+    void setPageLSN(long lsn);
 }
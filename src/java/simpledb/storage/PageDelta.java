@@ -0,0 +1,160 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 页面的增量修改
+ * 比较页面的before image和after image，只保存发生变化的字节段以及它们修改前后的内容。
+ * 插入或删除一个元组只改动页头的一个字节和元组所在的槽，记录只有几十个字节，
+ * 而整页的before/after image各有一个页面大小。
+ *
+ * redo把修改后的内容写到修改前的页面上，undo把修改前的内容写回修改后的页面。
+ */
+class PageDelta {
+
+    //两段修改之间相同的字节不超过这个数时合并为一段
+    //每多一段要多记offset和length两个int，而合并进来的字节要记修改前后两份
+    private static final int MERGE_GAP = 4;
+
+    private final PageId pid;
+    private final String pageClassName;
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, String pageClassName, int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.pageClassName = pageClassName;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * 比较同一页面的两个版本
+     * @return 两个版本之间的修改，页面大小不同时返回null
+     */
+    static PageDelta diff(Page beforePage, Page afterPage) {
+        byte[] b = beforePage.getPageData();
+        byte[] a = afterPage.getPageData();
+        if (a.length != b.length) return null;
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            for (int j = end; j < a.length && j - end < MERGE_GAP; j++) {
+                if (a[j] != b[j]) end = j + 1;
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int start = ranges.get(r)[0];
+            int length = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            before[r] = new byte[length];
+            after[r] = new byte[length];
+            System.arraycopy(b, start, before[r], 0, length);
+            System.arraycopy(a, start, after[r], 0, length);
+        }
+        return new PageDelta(afterPage.getId(), afterPage.getClass().getName(), a.length, offsets, before, after);
+    }
+
+    PageId getId() {
+        return pid;
+    }
+
+    int getRangeCount() {
+        return offsets.length;
+    }
+
+    //修改前后的内容共有多少字节 加上每段的offset和length
+    int getDataSize() {
+        int size = 0;
+        for (byte[] range : after) size += 2 * LogFile.INT_SIZE + 2 * range.length;
+        return size;
+    }
+
+    /**
+     * 格式：
+     * 页面类名
+     * 页面id类名 页面id参数个数 页面id参数
+     * 页面大小
+     * 段数
+     * 每段的offset length 修改前的内容 修改后的内容
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(pageClassName);
+        LogFile.writePageId(out, pid);
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = LogFile.readPageId(in);
+        int pageSize = in.readInt();
+        int count = in.readInt();
+        int[] offsets = new int[count];
+        byte[][] before = new byte[count][];
+        byte[][] after = new byte[count][];
+        for (int r = 0; r < count; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            after[r] = new byte[length];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, pageClassName, pageSize, offsets, before, after);
+    }
+
+    /**
+     * 重做修改
+     * @param base 修改前的页面
+     * @return 修改后的页面
+     */
+    Page redo(Page base) throws IOException {
+        return apply(base, after);
+    }
+
+    /**
+     * 撤销修改
+     * @param base 包含这次修改的页面
+     * @return 撤销了这次修改的页面，这次修改没有改动的字节保持base中的内容
+     */
+    Page undo(Page base) throws IOException {
+        return apply(base, before);
+    }
+
+    private Page apply(Page base, byte[][] ranges) throws IOException {
+        byte[] data = base.getPageData().clone();
+        if (data.length != pageSize) throw new IOException("page size " + data.length + " doesn't match the log record");
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(ranges[r], 0, data, offsets[r], ranges[r].length);
+        }
+        return LogFile.newPage(pageClassName, pid, data);
+    }
+}
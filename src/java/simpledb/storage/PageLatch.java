@@ -0,0 +1,91 @@
+package simpledb.storage;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 页面的读写latch
+ * latch只保护页面在内存中的物理一致性，在修改页面内容（插入、删除元组，分裂、合并页面）
+ * 期间持有，操作结束就释放；事务之间的隔离仍然由LockManager中的锁负责，锁要持有到事务结束。
+ *
+ * 使用规则：
+ *   1.访问页面时先拿锁再拿latch，持有latch期间可以继续申请锁，但不能再申请没有锁保护的页面的latch
+ *     （B+树遍历时的latch crabbing例外，见BTreeFile）；
+ *   2.读内容时加共享latch，修改内容时加排他latch，同一线程可以重入；
+ *   3.latch不参与死锁检测，不能跨越事务的提交或中止持有；
+ *   4.不持有锁访问页面时（B+树的内部页），拿到latch之后要检查isValid，页面对象已经离开缓冲池时重新获取。
+ */
+public class PageLatch {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //页面对象被驱逐或者被替换之后置为false 之后拿到latch的线程要重新从缓冲池获取页面
+    private volatile boolean valid = true;
+
+    /** Acquire the latch in shared mode, waiting while another thread holds it exclusively */
+    public void shared() {
+        lock.readLock().lock();
+    }
+
+    /** Acquire the latch in shared mode if no other thread holds it exclusively */
+    public boolean tryShared() {
+        return lock.readLock().tryLock();
+    }
+
+    public void releaseShared() {
+        lock.readLock().unlock();
+    }
+
+    /** Acquire the latch in exclusive mode, waiting while any other thread holds it */
+    public void exclusive() {
+        lock.writeLock().lock();
+    }
+
+    /** Acquire the latch in exclusive mode if no other thread holds it */
+    public boolean tryExclusive() {
+        return lock.writeLock().tryLock();
+    }
+
+    public void releaseExclusive() {
+        lock.writeLock().unlock();
+    }
+
+    /** Return true if the calling thread holds the latch exclusively */
+    public boolean isHeldExclusively() {
+        return lock.isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * Mark the page object as no longer the one cached in the buffer pool.
+     * Threads already holding the latch finish with the old contents; callers
+     * that must wait for them hold the latch exclusively while invalidating.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Mark the page object as no longer cached if no thread holds the latch.
+     * @return false if the latch is held and the page was left valid
+     */
+    public boolean tryInvalidate() {
+        if (!lock.writeLock().tryLock()) return false;
+        valid = false;
+        lock.writeLock().unlock();
+        return true;
+    }
+
+    /**
+     * Return false once the page object has left the buffer pool. Threads
+     * that find a page without holding a lock on it check this after
+     * latching it and fetch the page again if it fails.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /** Return true if any thread holds the latch in either mode */
+    public boolean isLatched() {
+        return lock.isWriteLocked() || lock.getReadLockCount() > 0;
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb.storage;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+
+import java.io.IOException;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 后台页面写回线程
+ * 开启后，事务提交时不再同步写回脏页：BufferPool只为每个脏页追加update日志记录，
+ * 把页面提交后的内容（before image）放入写回队列，提交的耗时只剩下logCommit的一次force。
+ * 该线程不断从队列中取出页面，先force日志保证WAL，再把页面写回磁盘。
+ *
+ * 页面在写回之前不能被驱逐，驱逐时找不到clean页面的线程会同步写回整个队列，
+ * flushAllPages也会先写回整个队列。检查点不写回页面，未写回的页面记录在检查点的脏页表中。
+ *
+ * @see BufferPool#startPageWriter(long, int)
+ */
+public class PageWriter implements Runnable {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 20;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final BufferPool pool;
+    //写回线程不属于任何事务，启动时记下所属数据库及其目录和日志
+    private final Database database;
+    private final Catalog catalog;
+    private final LogFile logFile;
+    //队列为空时最多等待多久再检查一次是否需要停止
+    private final long intervalMillis;
+    //每次force日志之后最多写回的页面数
+    private final int batchSize;
+
+    private final Thread thread;
+    private volatile boolean running;
+
+    PageWriter(BufferPool pool, Database database, Catalog catalog, LogFile logFile, long intervalMillis, int batchSize) {
+        this.pool = pool;
+        this.database = database;
+        this.catalog = catalog;
+        this.logFile = logFile;
+        this.intervalMillis = intervalMillis;
+        this.batchSize = batchSize;
+        this.thread = new Thread(this, "simpledb-page-writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * 停止写回线程并等待它退出，队列中剩下的页面由调用者决定是否写回
+     */
+    void stop() {
+        running = false;
+        //只在写回线程没有写页面时打断它：force日志用的FileChannel被打断时会直接关闭
+        synchronized (this) {
+            thread.interrupt();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    Catalog getCatalog() {
+        return catalog;
+    }
+
+    LogFile getLogFile() {
+        return logFile;
+    }
+
+    @Override
+    public void run() {
+        //写页面时用到的页面大小等取自所属的数据库
+        Database.bind(database);
+        while (running) {
+            try {
+                if (pool.awaitPendingWrites(intervalMillis)) {
+                    synchronized (this) {
+                        //running为true说明stop()还没有打断过本线程
+                        if (!running) break;
+                        pool.backgroundWrites.add(pool.writePendingPages(catalog, logFile, batchSize));
+                    }
+                }
+            } catch (InterruptedException e) {
+                //stop()打断等待 回到循环检查running
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
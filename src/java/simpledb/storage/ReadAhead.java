@@ -0,0 +1,82 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 顺序扫描的自适应预读（参考Linux的readahead）
+ * 扫描每访问一个页面就调用一次access，连续几次访问的都是上一个页面的后继页面时认为扫描是顺序的，
+ * 之后由缓冲池的预读线程提前把接下来的若干个页面读入缓冲池。
+ * 后继页面由successor决定：HeapFile是页号加一，B+树叶子页是右兄弟页面。
+ *
+ * 预读窗口从INITIAL_WINDOW开始，每发起一次预读翻倍，直到缓冲池设置的最大窗口；
+ * 已经预读、还没被扫描访问的页面少于窗口的一半时发起下一次预读，
+ * 一次预读从上一次预读到的最后一个页面开始，沿着successor继续读入。
+ * 扫描不再顺序时（例如rewind）窗口回到初始大小。
+ *
+ * 预读对象属于单个迭代器，不需要考虑线程安全。
+ *
+ * @see BufferPool#newReadAhead(Function)
+ */
+public class ReadAhead {
+
+    /** Number of pages read ahead by the first request of a sequential scan */
+    public static final int INITIAL_WINDOW = 4;
+    //连续多少次顺序访问之后开始预读
+    static final int SEQUENTIAL_RUN = 2;
+
+    private final BufferPool pool;
+    private final Function<Page, PageId> successor;
+    private final int maxWindow;
+
+    private int window;
+    //上一个访问的页面的后继页面 下一次访问的是它说明扫描是顺序的
+    private PageId expected;
+    //连续顺序访问的次数
+    private int run;
+    //已经发起预读、还没被扫描访问的页面数
+    private int ahead;
+    //最后一个被预读的页面 由预读线程更新
+    private AtomicReference<PageId> frontier;
+
+    ReadAhead(BufferPool pool, Function<Page, PageId> successor, int maxWindow) {
+        this.pool = pool;
+        this.successor = successor;
+        this.maxWindow = maxWindow;
+        this.window = Math.min(INITIAL_WINDOW, maxWindow);
+    }
+
+    /** Return the number of pages the next read-ahead request asks for */
+    public int window() {
+        return window;
+    }
+
+    /**
+     * 扫描访问到了page，必要时发起预读
+     * @param page 扫描刚刚从缓冲池中取出的页面
+     */
+    public void access(Page page) {
+        PageId pid = page.getId();
+        if (pid.equals(expected)) {
+            run++;
+            if (ahead > 0) ahead--;
+        } else {
+            //不是顺序访问 重新开始检测 之前发起的预读不再推进frontier
+            run = 0;
+            ahead = 0;
+            window = Math.min(INITIAL_WINDOW, maxWindow);
+            frontier = new AtomicReference<>(pid);
+        }
+        expected = successor.apply(page);
+        if (expected == null || run < SEQUENTIAL_RUN || ahead > window / 2) return;
+
+        //预读线程跟不上扫描时 从当前页面开始预读
+        if (ahead == 0) frontier.set(pid);
+        int count = window - ahead;
+        pool.prefetch(frontier, count, successor);
+        ahead += count;
+        window = Math.min(window * 2, maxWindow);
+    }
+}
@@ -0,0 +1,60 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * @author zhp
+ * @date 2026-10-16
+ * 缓冲池页面置换策略
+ * BufferPool只负责保存页面，具体驱逐哪个页面由置换策略决定。
+ * 策略在BufferPool构造时传入，BufferPool在页面被读入、命中、移除时通知策略，
+ * 需要驱逐页面时由策略按自己的顺序挑选一个可以驱逐的页面。
+ *
+ * 实现类需要保证线程安全，getPage并不持有BufferPool的对象锁。
+ *
+ * @see ClockPolicy
+ * @see LRUKPolicy
+ * @see TwoQPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * 页面从磁盘读入缓冲池
+     * @param pid 新读入的页面id
+     */
+    void pageAdded(PageId pid);
+
+    /**
+     * 缓冲池中的页面被再次访问（命中）
+     * @param pid 被访问的页面id
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * 页面离开缓冲池（被驱逐或者被discardPage丢弃）
+     * @param pid 被移除的页面id
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * 按照策略挑选一个驱逐页面，只会返回evictable判断为true的页面。
+     * 该方法只负责挑选，不会把页面从策略中移除，BufferPool真正驱逐后会调用pageRemoved
+     * @param evictable 判断页面当前能否被驱逐（例如脏页不能被驱逐）
+     * @return 要驱逐的页面id，不存在可驱逐页面时返回null
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /**
+     * 清空策略中保存的所有状态
+     */
+    void reset();
+
+    /**
+     * 清空策略中保存的所有状态，并告知策略所在分区能保存的页数。
+     * BufferPartition创建时调用，需要按缓冲池大小确定内部结构大小的策略可以覆盖该方法
+     * @param capacity 分区最多能保存的页数
+     */
+    default void reset(int capacity) {
+        reset();
+    }
+}
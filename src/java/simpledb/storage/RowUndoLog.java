@@ -0,0 +1,128 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 按行加锁的页面上未提交的修改
+ * 同一页面可能同时被多个事务修改，事务提交或中止时不能再用整页的before image：
+ * 中止时按相反顺序撤销该事务自己的修改；提交时从页面当前内容中撤销其他事务的修改，
+ * 得到该事务提交后的内容再写回。
+ * 同一时间每个slot上最多只有一个事务未提交的修改（修改者持有该元组的X锁），
+ * 不同事务的修改互不影响，撤销的顺序只需要在同一事务内保持相反。
+ *
+ * 除isRowPage外所有方法都要在持有页面的排他latch时调用，changedSlots持有共享latch即可。
+ */
+class RowUndoLog {
+
+    //一次插入或删除 before为删除的元组，插入时为null
+    private static class RowChange {
+        final TransactionId tid;
+        final int slot;
+        final Tuple before;
+
+        RowChange(TransactionId tid, int slot, Tuple before) {
+            this.tid = tid;
+            this.slot = slot;
+            this.before = before;
+        }
+
+        void undo(HeapPage page) {
+            if (before == null) page.clearSlot(slot);
+            else page.restoreTuple(slot, before);
+        }
+    }
+
+    //一个页面上的写者和它们的修改
+    private static class PageChanges {
+        //以READ_WRITE获取过页面、还没有结束的事务 页面在它们全部结束之前保持为脏页
+        final Set<TransactionId> writers = new LinkedHashSet<>();
+        final List<RowChange> changes = new ArrayList<>();
+    }
+
+    private final Map<PageId, PageChanges> pages = new ConcurrentHashMap<>();
+
+    /** 页面是否有按行加锁的写者 */
+    boolean isRowPage(PageId pid) {
+        return pages.containsKey(pid);
+    }
+
+    void addWriter(TransactionId tid, PageId pid) {
+        pages.computeIfAbsent(pid, p -> new PageChanges()).writers.add(tid);
+    }
+
+    boolean isWriter(TransactionId tid, PageId pid) {
+        PageChanges pc = pages.get(pid);
+        return pc != null && pc.writers.contains(tid);
+    }
+
+    void record(TransactionId tid, PageId pid, int slot, Tuple before) {
+        pages.computeIfAbsent(pid, p -> new PageChanges()).changes.add(new RowChange(tid, slot, before));
+    }
+
+    /** tid是否修改过页面 */
+    boolean changed(TransactionId tid, PageId pid) {
+        PageChanges pc = pages.get(pid);
+        if (pc == null) return false;
+        for (RowChange change : pc.changes) {
+            if (change.tid.equals(tid)) return true;
+        }
+        return false;
+    }
+
+    /** 其他事务未提交修改的slot 这些slot上的内容在修改者结束之前都还不确定 */
+    Set<Integer> changedSlots(PageId pid, TransactionId except) {
+        PageChanges pc = pages.get(pid);
+        if (pc == null) return Collections.emptySet();
+        Set<Integer> slots = new HashSet<>();
+        for (RowChange change : pc.changes) {
+            if (!change.tid.equals(except)) slots.add(change.slot);
+        }
+        return slots;
+    }
+
+    /**
+     * tid提交后页面的内容：页面当前内容去掉其他事务未提交的修改
+     */
+    HeapPage commitImage(TransactionId tid, HeapPage page) throws IOException {
+        HeapPage image = new HeapPage(page.getId(), page.getPageData());
+        PageChanges pc = pages.get(page.getId());
+        if (pc == null) return image;
+        for (int i = pc.changes.size() - 1; i >= 0; i--) {
+            RowChange change = pc.changes.get(i);
+            if (!change.tid.equals(tid)) change.undo(image);
+        }
+        return image;
+    }
+
+    /** 在页面上按相反顺序撤销tid的修改 */
+    void undo(TransactionId tid, HeapPage page) {
+        PageChanges pc = pages.get(page.getId());
+        if (pc == null) return;
+        for (int i = pc.changes.size() - 1; i >= 0; i--) {
+            RowChange change = pc.changes.get(i);
+            if (change.tid.equals(tid)) change.undo(page);
+        }
+    }
+
+    /**
+     * tid在页面上结束 丢弃它的修改记录
+     * @return 页面上剩下的一个写者，没有写者时返回null
+     */
+    TransactionId finish(TransactionId tid, PageId pid) {
+        PageChanges pc = pages.get(pid);
+        if (pc == null) return null;
+        pc.writers.remove(tid);
+        pc.changes.removeIf(change -> change.tid.equals(tid));
+        if (pc.writers.isEmpty()) {
+            pages.remove(pid);
+            return null;
+        }
+        return pc.writers.iterator().next();
+    }
+}
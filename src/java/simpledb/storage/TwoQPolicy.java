@@ -0,0 +1,123 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * @author zhp
+ * @date 2026-10-16
+ * 2Q置换策略
+ * 页面第一次读入时进入FIFO队列A1in，在A1in中被再次访问不会改变其位置；
+ * 从A1in被驱逐的页面只把页面id记录在幽灵队列A1out中（不保存页面数据）；
+ * 页面在A1out中时被再次读入，说明它是热点页面，直接进入LRU队列Am。
+ * 驱逐时A1in超过阈值就先驱逐A1in，否则驱逐Am中最久未使用的页面。
+ * 全表扫描读入的页面只会经过A1in，不会把Am中的热点页面挤出去。
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    //A1in占缓冲池页面数的比例
+    private static final double IN_RATIO = 0.25;
+    //A1out能记录的页面id数量与缓冲池页面数的比例
+    private static final double OUT_RATIO = 0.5;
+
+    //只被访问过一次的页面 FIFO
+    private final LinkedHashSet<PageId> a1in;
+    //从A1in驱逐的页面id FIFO
+    private final LinkedHashSet<PageId> a1out;
+    //热点页面 LRU，末尾为最近使用
+    private final LinkedHashSet<PageId> am;
+    //缓冲池（分区）能保存的页数，由BufferPartition通过reset(int)设置
+    private int capacity;
+
+    public TwoQPolicy() {
+        this(BufferPool.DEFAULT_PAGES);
+    }
+
+    public TwoQPolicy(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("缓冲池页数必须大于0");
+        this.capacity = capacity;
+        a1in = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        am = new LinkedHashSet<>();
+    }
+
+    @Override
+    public synchronized void pageAdded(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    @Override
+    public synchronized void pageAccessed(PageId pid) {
+        //A1in中的页面保持FIFO顺序，只有Am中的页面需要移动到LRU末尾
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    @Override
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            //从A1in移除的页面记入幽灵队列
+            a1out.add(pid);
+            //按缓冲池容量而不是当前驻留页数限制，预热阶段或者页面被丢弃后A1out不会缩小
+            int maxOut = Math.max(1, (int) (capacity * OUT_RATIO));
+            Iterator<PageId> it = a1out.iterator();
+            while (a1out.size() > maxOut && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    @Override
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        //分区满了才会驱逐，此时驻留页数就是缓冲池容量
+        int maxIn = Math.max(1, (int) (residentSize() * IN_RATIO));
+        PageId victim;
+        if (a1in.size() >= maxIn) {
+            victim = firstEvictable(a1in, evictable);
+            if (victim == null) victim = firstEvictable(am, evictable);
+        } else {
+            victim = firstEvictable(am, evictable);
+            if (victim == null) victim = firstEvictable(a1in, evictable);
+        }
+        return victim;
+    }
+
+    private PageId firstEvictable(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) return pid;
+        }
+        return null;
+    }
+
+    //当前缓冲池中的页面数
+    private int residentSize() {
+        return a1in.size() + am.size();
+    }
+
+    @Override
+    public synchronized void reset() {
+        a1in.clear();
+        a1out.clear();
+        am.clear();
+    }
+
+    @Override
+    public synchronized void reset(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("缓冲池页数必须大于0");
+        reset();
+        this.capacity = capacity;
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb.storage;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author zhp
+ * @date 2026-10-17
+ * 快照读使用的页面旧版本
+ * 每次提交分配一个递增的提交时间戳，提交的页面替换掉before image（已提交的内容）之前，
+ * 先把旧的before image以"在该时间戳失效"保存下来。快照读事务开始时记下当前已发布的时间戳，
+ * 读页面时使用在快照之后才失效的最早的旧版本，没有这样的旧版本时页面当前已提交的内容就是快照中的内容。
+ *
+ * 提交之间由commitLock串行，一个事务的所有页面在同一个时间戳下替换完之后才发布该时间戳，
+ * 快照要么看到事务的全部修改，要么一个都看不到。
+ * 旧版本只保留到没有快照还需要它为止，没有快照读事务时提交结束就会丢弃。
+ */
+class VersionStore {
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    //最后一个发布的提交时间戳 只在持有commitLock时增加
+    private long clock;
+    //活跃的快照 -> 使用该快照的事务数
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    //页面 -> (失效时间戳 -> 该版本的内容)
+    private final Map<PageId, TreeMap<Long, byte[]>> versions = new HashMap<>();
+    //失效时间戳 -> 在该时间戳失效的页面 用于回收
+    private final TreeMap<Long, List<PageId>> retired = new TreeMap<>();
+
+    /** 开始一个快照 返回快照的时间戳 */
+    synchronized long openSnapshot() {
+        snapshots.merge(clock, 1, Integer::sum);
+        return clock;
+    }
+
+    synchronized void closeSnapshot(long snapshot) {
+        snapshots.computeIfPresent(snapshot, (s, n) -> n > 1 ? n - 1 : null);
+        collect();
+    }
+
+    /**
+     * 开始一次提交，返回这次提交的时间戳 之后必须调用endCommit
+     */
+    long beginCommit() {
+        commitLock.lock();
+        synchronized (this) {
+            return clock + 1;
+        }
+    }
+
+    /** 页面的已提交内容将被替换 在替换之前调用 */
+    synchronized void retire(PageId pid, byte[] data, long ts) {
+        if (versions.computeIfAbsent(pid, p -> new TreeMap<>()).putIfAbsent(ts, data) == null) {
+            retired.computeIfAbsent(ts, t -> new ArrayList<>()).add(pid);
+        }
+    }
+
+    /** 发布提交时间戳 之后开始的快照能看到这次提交 */
+    void endCommit(long ts) {
+        try {
+            synchronized (this) {
+                clock = ts;
+                collect();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * 快照中页面的旧版本
+     * @return 在快照之后才失效的最早的版本，页面当前已提交的内容就是快照中的内容时返回null
+     */
+    synchronized byte[] find(PageId pid, long snapshot) {
+        TreeMap<Long, byte[]> pageVersions = versions.get(pid);
+        if (pageVersions == null) return null;
+        Map.Entry<Long, byte[]> version = pageVersions.higherEntry(snapshot);
+        return version == null ? null : version.getValue();
+    }
+
+    /** Return the number of old page versions kept for snapshots */
+    synchronized int size() {
+        int size = 0;
+        for (TreeMap<Long, byte[]> pageVersions : versions.values()) size += pageVersions.size();
+        return size;
+    }
+
+    //丢弃所有快照都不再需要的版本：失效时间戳不晚于最早的快照
+    private void collect() {
+        long oldest = snapshots.isEmpty() ? clock : Math.min(clock, snapshots.firstKey());
+        while (!retired.isEmpty() && retired.firstKey() <= oldest) {
+            Map.Entry<Long, List<PageId>> entry = retired.pollFirstEntry();
+            for (PageId pid : entry.getValue()) {
+                TreeMap<Long, byte[]> pageVersions = versions.get(pid);
+                if (pageVersions == null) continue;
+                pageVersions.remove(entry.getKey());
+                if (pageVersions.isEmpty()) versions.remove(pid);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package simpledb.transaction;
+
+/**
+ * Exception that is thrown when a lock requested with NOWAIT is held by
+ * another transaction, or when a transaction waited longer than its lock
+ * timeout. Like any TransactionAbortedException the transaction has to be
+ * aborted.
+ */
+public class LockNotAvailableException extends TransactionAbortedException {
+    private static final long serialVersionUID = 1L;
+
+    public LockNotAvailableException() {
+    }
+}
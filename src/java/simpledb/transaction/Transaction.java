@@ -27,6 +27,38 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only transaction. Its scans read a
+     * snapshot of the database as of this call and take no locks, so they
+     * neither wait for writers nor hold writers up.
+     */
+    public void startReadOnly() {
+        start();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
+    /**
+     * Limit how long the transaction waits for a lock held by another
+     * transaction. A request that waits longer fails with a
+     * LockNotAvailableException and the transaction has to be aborted.
+     *
+     * @param millis the longest wait in milliseconds, 0 to never wait, or a
+     *        negative number to wait as long as it takes (the default)
+     */
+    public void setLockTimeout(long millis) {
+        Database.getBufferPool().lockManager.setLockTimeout(tid, millis);
+    }
+
+    /**
+     * Read at the read committed isolation level: scans of tables with row
+     * locking release the S lock on each tuple once it was read, so they
+     * don't hold writers up until this transaction ends. By default the
+     * locks are kept and repeated scans see the same tuples.
+     */
+    public void setReadCommitted() {
+        Database.getBufferPool().lockManager.setReadCommitted(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.AbortEvictionTest;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolFrameTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 40;
+    private static final int POOL_PAGES = 10;
+    // two int columns fill a 4096 byte page with 504 tuples
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private static void readAll(BufferPool pool, HeapFile f, TransactionId tid) throws Exception {
+        for (int i = 0; i < f.numPages(); i++) {
+            pool.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetSmallerThanOnePage() {
+        Database.getBufferPool().setOffHeapBudget(BufferPool.getPageSize() - 1);
+    }
+
+    /**
+     * Pages evicted from a small pool are decoded from their frames on the
+     * next miss instead of being read from disk.
+     */
+    @Test public void evictedPagesComeBackFromFrames() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * TABLE_PAGES, null, tuples);
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        pool.setOffHeapBudget(2L * TABLE_PAGES * BufferPool.getPageSize());
+        assertEquals(2 * TABLE_PAGES, pool.getOffHeapFrameCount());
+
+        TransactionId tid = new TransactionId();
+        readAll(pool, f, tid);
+        assertEquals(0, pool.getFrameHitCount());
+
+        pool.resetStatistics();
+        readAll(pool, f, tid);
+        assertEquals(TABLE_PAGES, pool.getMissCount());
+        assertEquals(TABLE_PAGES, pool.getFrameHitCount());
+        pool.transactionComplete(tid);
+
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Frames never hand out stale contents: committed inserts are visible
+     * and aborted ones are not after their pages cycle through the frames.
+     */
+    @Test public void framesFollowCommitAndAbort() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * TABLE_PAGES, null, null);
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        pool.setOffHeapBudget(TABLE_PAGES / 2 * BufferPool.getPageSize());
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        readAll(pool, f, t.getId());
+        assertFalse(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        readAll(pool, f, t.getId());
+        assertTrue(pool.getFrameHitCount() > 0);
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolFrameTest.class);
+    }
+}
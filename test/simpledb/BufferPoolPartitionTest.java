@@ -0,0 +1,85 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.TwoQPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolPartitionTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 64;
+    private static final int READERS = 4;
+
+    /**
+     * Small pools keep a single partition so that eviction sees every page.
+     */
+    @Test public void smallPoolIsNotPartitioned() {
+        assertEquals(1, new BufferPool(BufferPool.DEFAULT_PAGES).getNumPartitions());
+        assertEquals(1, new BufferPool(BufferPool.DEFAULT_PAGES, new TwoQPolicy()).getNumPartitions());
+        assertEquals(4, new BufferPool(16, 4, ClockPolicy::new).getNumPartitions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyPartitions() {
+        new BufferPool(2, 3, ClockPolicy::new);
+    }
+
+    /**
+     * Several threads read a table twice the size of a partitioned pool.
+     * Every read is either a hit or a miss, and no partition runs out of
+     * evictable pages.
+     */
+    @Test public void concurrentReadersAcrossPartitions() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992 * TABLE_PAGES, null, null);
+        BufferPool pool = Database.resetBufferPool(TABLE_PAGES / 2, 4, ClockPolicy::new);
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < READERS; t++) {
+            Thread thread = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int round = 0; round < 2; round++) {
+                        for (int i = 0; i < TABLE_PAGES; i++) {
+                            HeapPageId pid = new HeapPageId(f.getId(), i);
+                            assertEquals(pid, pool.getPage(tid, pid, Permissions.READ_ONLY).getId());
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    pool.transactionComplete(tid);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        assertNull(error.get());
+        assertEquals(READERS * 2 * TABLE_PAGES, pool.getHitCount() + pool.getMissCount());
+        assertTrue(pool.getMissCount() >= TABLE_PAGES);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPartitionTest.class);
+    }
+}
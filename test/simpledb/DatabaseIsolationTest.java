@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DatabaseIsolationTest extends SimpleDbTestBase {
+    private static final int ROWS = 4000;
+
+    @After public void tearDown() {
+        Database.unbind();
+    }
+
+    private static Database newDatabase(int pageSize) throws Exception {
+        File log = File.createTempFile("simpledb-log", ".tmp");
+        log.deleteOnExit();
+        return Database.create(new BufferPool(BufferPool.DEFAULT_PAGES, pageSize, 1, ClockPolicy::new), log);
+    }
+
+    /**
+     * Each database lays out its tables with its own page size, keeps its
+     * own catalog and caches pages in its own pool.
+     */
+    @Test public void databasesWithDifferentPageSizes() throws Exception {
+        Database small = newDatabase(1024);
+        Database large = newDatabase(16384);
+
+        Database.bind(small);
+        assertEquals(1024, BufferPool.getPageSize());
+        List<List<Integer>> smallTuples = new ArrayList<>();
+        HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, ROWS, null, smallTuples);
+        SystemTestUtil.matchTuples(smallFile, smallTuples);
+        BufferPool smallPool = Database.getBufferPool();
+
+        Database.bind(large);
+        assertEquals(16384, BufferPool.getPageSize());
+        List<List<Integer>> largeTuples = new ArrayList<>();
+        HeapFile largeFile = SystemTestUtil.createRandomHeapFile(2, ROWS, null, largeTuples);
+        SystemTestUtil.matchTuples(largeFile, largeTuples);
+        assertNotSame(smallPool, Database.getBufferPool());
+        assertTrue(smallFile.getFile().length() / 1024 > largeFile.getFile().length() / 16384);
+        try {
+            Database.getCatalog().getDatabaseFile(smallFile.getId());
+            fail("tables must not leak into another database's catalog");
+        } catch (NoSuchElementException expected) {
+        }
+
+        Database.unbind();
+        assertEquals(4096, BufferPool.getPageSize());
+        assertEquals(0, Database.getBufferPool().getMissCount());
+    }
+
+    /**
+     * Two threads bound to different databases scan their own tables at
+     * the same time.
+     */
+    @Test public void concurrentDatabases() throws Exception {
+        Database[] dbs = {newDatabase(1024), newDatabase(8192)};
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (Database db : dbs) {
+            Thread thread = new Thread(() -> {
+                Database.bind(db);
+                try {
+                    List<List<Integer>> tuples = new ArrayList<>();
+                    HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+                    for (int i = 0; i < 3; i++) {
+                        SystemTestUtil.matchTuples(f, tuples);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    Database.unbind();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertNull(error.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DatabaseIsolationTest.class);
+    }
+}
@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -219,6 +222,49 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A transaction that waits behind a lock holder that is not itself waiting
+   * is never aborted, however long it waits.
+   */
+  @Test public void testWaitWithoutDeadlock() throws Exception {
+    LockGrabber lg1Write = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write.acquired());
+
+    LockGrabber lg2Read = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    Thread.sleep(5 * POLL_INTERVAL);
+    assertFalse(lg2Read.acquired());
+    assertNull(lg2Read.getError());
+
+    bp.transactionComplete(tid1);
+    lg2Read.join(10 * POLL_INTERVAL);
+    assertTrue(lg2Read.acquired());
+    assertEquals(0, bp.lockManager.getDeadlockCount());
+    bp.transactionComplete(tid2);
+  }
+
+  /**
+   * Only the youngest transaction of a cycle is aborted; the older one gets
+   * its lock once the victim's locks are released.
+   */
+  @Test public void testYoungestIsVictim() throws Exception {
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+
+    lg2Write0.join(10 * POLL_INTERVAL);
+    lg1Write1.join(10 * POLL_INTERVAL);
+    assertNotNull(lg2Write0.getError());
+    assertTrue(lg1Write1.acquired());
+    assertEquals(1, bp.lockManager.getDeadlockCount());
+    assertEquals(1, bp.lockManager.getDeadlockAbortCount());
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.FileHandle;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FileHandleTest extends SimpleDbTestBase {
+    private static final int BLOCK = 512;
+
+    private static File tempFile() throws IOException {
+        File f = File.createTempFile("filehandle", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private static byte[] block(int value) {
+        byte[] data = new byte[BLOCK];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    @Test public void positionalReadWrite() throws Exception {
+        File f = tempFile();
+        FileHandle handle = new FileHandle(f);
+        handle.write(block(1), 0);
+        handle.write(block(3), 2 * BLOCK);
+        assertEquals(3 * BLOCK, f.length());
+
+        byte[] data = new byte[BLOCK];
+        assertEquals(BLOCK, handle.read(data, 2 * BLOCK));
+        assertArrayEquals(block(3), data);
+        assertEquals(BLOCK, handle.read(data, BLOCK));
+        assertArrayEquals(block(0), data);
+        // reads past the end of the file stop short
+        assertEquals(BLOCK / 2, handle.read(data, 5 * BLOCK / 2));
+        assertEquals(0, handle.read(data, 3 * BLOCK));
+        handle.close();
+    }
+
+    /**
+     * No more than MAX_OPEN_FILES files stay open; closed files are opened
+     * again on their next I/O.
+     */
+    @Test public void openFilesAreBounded() throws Exception {
+        List<FileHandle> handles = new ArrayList<>();
+        for (int i = 0; i < FileHandle.MAX_OPEN_FILES + 10; i++) {
+            FileHandle handle = new FileHandle(tempFile());
+            handle.write(block(i), 0);
+            handles.add(handle);
+            assertTrue(FileHandle.openFiles() <= FileHandle.MAX_OPEN_FILES);
+        }
+        for (int i = 0; i < handles.size(); i++) {
+            byte[] data = new byte[BLOCK];
+            assertEquals(BLOCK, handles.get(i).read(data, 0));
+            assertArrayEquals(block(i), data);
+        }
+        for (FileHandle handle : handles) handle.close();
+    }
+
+    /**
+     * An interrupted reader closes the shared channel; I/O from other
+     * threads opens the file again.
+     */
+    @Test public void interruptedReader() throws Exception {
+        FileHandle handle = new FileHandle(tempFile());
+        handle.write(block(7), 0);
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try {
+                handle.read(new byte[BLOCK], 0);
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        reader.start();
+        reader.join();
+        assertTrue(error.get() instanceof ClosedByInterruptException);
+
+        byte[] data = new byte[BLOCK];
+        assertEquals(BLOCK, handle.read(data, 0));
+        assertArrayEquals(block(7), data);
+        handle.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileHandleTest.class);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.LockMode;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class LockEscalationTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 30;
+    private static final int THRESHOLD = 10;
+    // two int columns fill a 4096 byte page with 504 tuples
+    private static final int TUPLES_PER_PAGE = 504;
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    private HeapFile f;
+    private BufferPool bp;
+    private LockManager locks;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * TUPLES_PER_PAGE, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        locks = bp.lockManager;
+        locks.setEscalationThreshold(THRESHOLD);
+    }
+
+    private PageId page(int i) {
+        return new HeapPageId(f.getId(), i);
+    }
+
+    private void readAll(TransactionId tid) throws Exception {
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            bp.getPage(tid, page(i), Permissions.READ_ONLY);
+        }
+    }
+
+    private static TestUtil.LockGrabber startGrabber(TransactionId tid, PageId pid, Permissions perm) {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        return t;
+    }
+
+    @Test public void compatibility() {
+        assertTrue(LockMode.IS.compatibleWith(LockMode.SIX));
+        assertTrue(LockMode.IX.compatibleWith(LockMode.IX));
+        assertFalse(LockMode.IX.compatibleWith(LockMode.S));
+        assertFalse(LockMode.SIX.compatibleWith(LockMode.IX));
+        assertFalse(LockMode.X.compatibleWith(LockMode.IS));
+        assertTrue(LockMode.SIX.covers(LockMode.S));
+        assertFalse(LockMode.SIX.covers(LockMode.X));
+    }
+
+    /**
+     * Page locks are taken under an intention lock on the table.
+     */
+    @Test public void pageLocksTakeIntentionLocks() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, page(0), Permissions.READ_ONLY);
+        assertTrue(locks.holdsTableLock(tid, f.getId(), LockMode.IS));
+        assertFalse(locks.holdsTableLock(tid, f.getId(), LockMode.IX));
+        bp.getPage(tid, page(1), Permissions.READ_WRITE);
+        assertTrue(locks.holdsTableLock(tid, f.getId(), LockMode.IX));
+        assertEquals(3, locks.locksHeld(tid));
+        bp.transactionComplete(tid);
+        assertEquals(0, locks.locksHeld(tid));
+    }
+
+    /**
+     * A table lock blocks page locks of other transactions that conflict
+     * with it until it is released.
+     */
+    @Test public void tableLockBlocksPages() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        locks.acquireTableLock(tid1, f.getId(), LockMode.X);
+        TestUtil.LockGrabber reader = startGrabber(tid2, page(5), Permissions.READ_ONLY);
+        Thread.sleep(TIMEOUT);
+        assertFalse(reader.acquired());
+
+        // the holder itself needs no page locks
+        bp.getPage(tid1, page(5), Permissions.READ_WRITE);
+        assertEquals(1, locks.locksHeld(tid1));
+
+        bp.transactionComplete(tid1);
+        reader.join(TIMEOUT);
+        assertTrue(reader.acquired());
+        bp.transactionComplete(tid2);
+    }
+
+    /**
+     * A reader holding more page locks than the threshold swaps them for a
+     * shared table lock; other readers continue, writers wait.
+     */
+    @Test public void readsEscalateToSharedTableLock() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+        readAll(tid1);
+        assertEquals(1, locks.getEscalationCount());
+        assertTrue(locks.holdsTableLock(tid1, f.getId(), LockMode.S));
+        // only the table itself is still locked
+        assertEquals(1, locks.locksHeld(tid1));
+        assertTrue(bp.holdsLock(tid1, page(0)));
+
+        bp.getPage(tid2, page(0), Permissions.READ_ONLY);
+        TestUtil.LockGrabber writer = startGrabber(tid3, page(1), Permissions.READ_WRITE);
+        Thread.sleep(TIMEOUT);
+        assertFalse(writer.acquired());
+
+        bp.transactionComplete(tid1);
+        writer.join(TIMEOUT);
+        assertTrue(writer.acquired());
+        bp.transactionComplete(tid2);
+        bp.transactionComplete(tid3);
+    }
+
+    /**
+     * Escalation never waits: while another transaction writes to the table
+     * the reader keeps its page locks.
+     */
+    @Test public void escalationSkippedUnderConflict() throws Exception {
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        bp.getPage(writer, page(TABLE_PAGES - 1), Permissions.READ_WRITE);
+        for (int i = 0; i < TABLE_PAGES - 1; i++) {
+            bp.getPage(reader, page(i), Permissions.READ_ONLY);
+        }
+        assertEquals(0, locks.getEscalationCount());
+        assertFalse(locks.holdsTableLock(reader, f.getId(), LockMode.S));
+        assertEquals(TABLE_PAGES, locks.locksHeld(reader));
+        bp.transactionComplete(writer);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockEscalationTest.class);
+    }
+}
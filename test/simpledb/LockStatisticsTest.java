@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.LockManagerMonitor;
+import simpledb.storage.LockStatistics;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * The lock manager records who waited for which lock and for how long.
+ */
+public class LockStatisticsTest extends SimpleDbTestBase {
+    /** Time the blocked transactions are kept waiting, in ms */
+    private static final int TIMEOUT = 150;
+    // two int columns fill a 4096 byte page with 504 tuples
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private HeapFile f;
+    private BufferPool bp;
+    private LockManager locks;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, 2 * TUPLES_PER_PAGE, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        locks = bp.lockManager;
+    }
+
+    private PageId page(int i) {
+        return new HeapPageId(f.getId(), i);
+    }
+
+    private static TestUtil.LockGrabber startGrabber(TransactionId tid, PageId pid, Permissions perm) {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        return t;
+    }
+
+    /**
+     * A blocked request shows up in the waits-for graph while it waits and in
+     * the page, table and histogram counts once it gets the lock.
+     */
+    @Test public void waitsAreRecorded() throws Exception {
+        TransactionId holder = new TransactionId();
+        TransactionId waiter = new TransactionId();
+        bp.getPage(holder, page(0), Permissions.READ_WRITE);
+        TestUtil.LockGrabber grabber = startGrabber(waiter, page(0), Permissions.READ_ONLY);
+        Thread.sleep(TIMEOUT);
+
+        assertEquals(Collections.singletonMap(waiter, Collections.singletonList(holder)), locks.getWaitsForGraph());
+        assertEquals("table " + f.getId() + " page 0", locks.getWaitingFor(waiter));
+        assertEquals(0, locks.getStatistics().getWaitCount());
+
+        bp.transactionComplete(holder);
+        grabber.join();
+        assertTrue(grabber.acquired());
+        assertTrue(locks.getWaitsForGraph().isEmpty());
+
+        LockStatistics stats = locks.getStatistics();
+        assertEquals(1, stats.getWaitCount());
+        long[] histogram = stats.getWaitHistogram();
+        assertEquals(1, Arrays.stream(histogram).sum());
+        // waited between 100 ms and 1 s
+        assertEquals(1, histogram[4]);
+        List<LockStatistics.Contention<PageId>> hot = stats.getHotPages(10);
+        assertEquals(1, hot.size());
+        assertEquals(page(0), hot.get(0).getResource());
+        assertTrue(hot.get(0).getMaxWaitNanos() >= (TIMEOUT - 20) * 1000000L);
+        assertEquals(Integer.valueOf(f.getId()), stats.getHotTables(10).get(0).getResource());
+        bp.transactionComplete(waiter);
+
+        locks.resetStatistics();
+        assertEquals(0, locks.getStatistics().getWaitCount());
+        assertTrue(locks.getStatistics().getHotPages(10).isEmpty());
+    }
+
+    /**
+     * Upgrading a read lock to a write lock is counted.
+     */
+    @Test public void upgradesAreCounted() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, page(0), Permissions.READ_ONLY);
+        long before = locks.getStatistics().getUpgradeCount();
+        bp.getPage(tid, page(0), Permissions.READ_WRITE);
+        // the page lock and the intention lock on the table
+        assertEquals(before + 2, locks.getStatistics().getUpgradeCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A deadlock is logged with its cycle and victim.
+     */
+    @Test public void deadlocksAreLogged() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        bp.getPage(tid1, page(0), Permissions.READ_WRITE);
+        bp.getPage(tid2, page(1), Permissions.READ_WRITE);
+        TestUtil.LockGrabber lg1 = startGrabber(tid1, page(1), Permissions.READ_WRITE);
+        Thread.sleep(TIMEOUT);
+        TestUtil.LockGrabber lg2 = startGrabber(tid2, page(0), Permissions.READ_WRITE);
+        lg2.join();
+        // the younger transaction is aborted
+        assertNotNull(lg2.getError());
+        lg1.join();
+        assertTrue(lg1.acquired());
+
+        List<LockStatistics.Deadlock> deadlocks = locks.getStatistics().getRecentDeadlocks();
+        assertEquals(1, deadlocks.size());
+        LockStatistics.Deadlock deadlock = deadlocks.get(0);
+        assertEquals(tid2, deadlock.getVictim());
+        assertEquals(2, deadlock.getCycle().size());
+        assertTrue(deadlock.getCycle().containsAll(Arrays.asList(tid1, tid2)));
+        assertEquals("table " + f.getId() + " page 0", deadlock.getResource());
+        bp.transactionComplete(tid1);
+    }
+
+    /**
+     * The statistics of the current buffer pool can be read through JMX.
+     */
+    @Test public void mbean() throws Exception {
+        LockManagerMonitor.register();
+        // registering twice is harmless
+        LockManagerMonitor.register();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(LockManagerMonitor.OBJECT_NAME);
+
+        TransactionId holder = new TransactionId();
+        TransactionId waiter = new TransactionId();
+        bp.getPage(holder, page(0), Permissions.READ_WRITE);
+        TestUtil.LockGrabber grabber = startGrabber(waiter, page(0), Permissions.READ_WRITE);
+        Thread.sleep(TIMEOUT);
+        assertEquals(1, server.getAttribute(name, "WaitingTransactionCount"));
+        String[] graph = (String[]) server.getAttribute(name, "WaitsForGraph");
+        assertEquals(1, graph.length);
+        assertTrue(graph[0], graph[0].startsWith("tx " + waiter.getId() + " waiting for table " + f.getId()));
+
+        bp.transactionComplete(holder);
+        grabber.join();
+        assertEquals(1L, server.getAttribute(name, "LockWaitCount"));
+        String[] hotPages = (String[]) server.getAttribute(name, "HotPages");
+        assertTrue(hotPages[0], hotPages[0].startsWith("table " + f.getId() + " page 0: 1 waits"));
+        server.invoke(name, "resetStatistics", null, null);
+        assertEquals(0L, server.getAttribute(name, "LockWaitCount"));
+        bp.transactionComplete(waiter);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockStatisticsTest.class);
+    }
+}
@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -193,6 +195,79 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  private static TestUtil.LockGrabber startGrabber(TransactionId tid, PageId pid, Permissions perm) {
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+    t.start();
+    return t;
+  }
+
+  /**
+   * A read lock that is compatible with the current holder still queues
+   * behind an earlier write request.
+   */
+  @Test public void waitersAreServedInOrder() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = startGrabber(tid3, p0, Permissions.READ_ONLY);
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired());
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(TIMEOUT);
+    assertTrue(reader.acquired());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Queued read requests are granted together once the writer is done.
+   */
+  @Test public void readersAreGrantedTogether() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber reader2 = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber reader3 = startGrabber(tid3, p0, Permissions.READ_ONLY);
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader2.acquired() || reader3.acquired());
+
+    bp.transactionComplete(tid1);
+    reader2.join(TIMEOUT);
+    reader3.join(TIMEOUT);
+    assertTrue(reader2.acquired() && reader3.acquired());
+    bp.transactionComplete(tid2);
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * A released lock is handed to the waiter directly instead of on its next
+   * poll.
+   */
+  @Test public void handoffWakesWaiter() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber writer = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+
+    // time only the release, not the commit work around it
+    long start = System.nanoTime();
+    bp.lockManager.unTransactionIdlock(tid1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired());
+    long millis = (writer.acquiredAt() - start) / 1000000;
+    // well under the old 50 ms poll, with slack for a loaded machine
+    assertTrue("handoff took " + millis + " ms", millis < 45);
+    bp.transactionComplete(tid1);
+    bp.transactionComplete(tid2);
+  }
+
   /**
    * JUnit suite target
    */
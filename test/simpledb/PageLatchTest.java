@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.PageLatch;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Page latches are held only while a page is being read or changed.
+ */
+public class PageLatchTest extends SimpleDbTestBase {
+    /** Time to wait before checking that a thread is still blocked, in ms */
+    private static final int TIMEOUT = 100;
+
+    private static boolean tryExclusiveElsewhere(PageLatch latch) throws InterruptedException {
+        AtomicBoolean acquired = new AtomicBoolean();
+        Thread t = new Thread(() -> {
+            if (latch.tryExclusive()) {
+                acquired.set(true);
+                latch.releaseExclusive();
+            }
+        });
+        t.start();
+        t.join();
+        return acquired.get();
+    }
+
+    @Test public void latchModes() throws Exception {
+        PageLatch latch = new PageLatch();
+        latch.shared();
+        assertTrue(latch.isLatched());
+        assertFalse(tryExclusiveElsewhere(latch));
+        latch.releaseShared();
+        assertFalse(latch.isLatched());
+
+        latch.exclusive();
+        assertTrue(latch.isHeldExclusively());
+        // the owner may enter again
+        latch.exclusive();
+        latch.releaseExclusive();
+        latch.releaseExclusive();
+        assertTrue(tryExclusiveElsewhere(latch));
+    }
+
+    /**
+     * Heap updates hold the page latch only while changing the page.
+     */
+    @Test public void heapUpdatesReleaseLatch() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[]{1, 2}));
+        Page page = bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        assertFalse(page.getLatch().isLatched());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A row-locked scan reads each page under a shared latch and waits while
+     * another thread modifies it.
+     */
+    @Test public void scanWaitsForLatch() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        f.setRowLocking(true);
+        Page page = Database.getBufferPool().getPage(new TransactionId(), new HeapPageId(f.getId(), 0),
+                Permissions.READ_ONLY);
+        page.getLatch().exclusive();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread scanner = new Thread(() -> {
+            try {
+                DbFileIterator it = f.iterator(new TransactionId());
+                it.open();
+                while (it.hasNext()) it.next();
+                done.set(true);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        scanner.start();
+        Thread.sleep(TIMEOUT);
+        assertFalse(done.get());
+        page.getLatch().releaseExclusive();
+        scanner.join(TIMEOUT * 10);
+        assertTrue(done.get());
+    }
+
+    /**
+     * Inserts that split leaf and internal pages release every latch they took.
+     */
+    @Test public void btreeSplitsReleaseLatches() throws Exception {
+        File file = File.createTempFile("latch", ".dat");
+        file.deleteOnExit();
+        BTreeFile f = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+        BufferPool bp = Database.resetBufferPool(500);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2000; i++) {
+            bp.insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        assertTrue(f.numPages() > 5);
+
+        Set<PageId> leaves = new HashSet<>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            leaves.add(t.getRecordId().getPageId());
+        }
+        it.close();
+        assertTrue(leaves.size() > 1);
+        for (PageId pid : leaves) {
+            assertFalse(bp.getPage(tid, pid, Permissions.READ_ONLY).getLatch().isLatched());
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageLatchTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LRUKPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.TwoQPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockPolicy: a page that was referenced again gets a
+     * second chance, an unreferenced one is evicted.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockPolicy();
+        for (int i = 0; i < 3; i++) policy.pageAdded(pid(i));
+        // first sweep clears all reference bits and then evicts page 0
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(0));
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test for LRUKPolicy: pages with fewer than K references are
+     * evicted before pages that were referenced K times.
+     */
+    @Test public void lruKPrefersColdPages() {
+        ReplacementPolicy policy = new LRUKPolicy(2);
+        policy.pageAdded(pid(0));
+        policy.pageAccessed(pid(0));
+        policy.pageAdded(pid(1));
+        policy.pageAdded(pid(2));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        assertEquals(pid(2), policy.chooseVictim(p -> !p.equals(pid(1))));
+        assertEquals(pid(0), policy.chooseVictim(p -> p.equals(pid(0))));
+    }
+
+    /**
+     * Unit test for TwoQPolicy: pages seen only once are evicted first, and
+     * a page re-read after eviction is promoted to the hot queue.
+     */
+    @Test public void twoQScanResistance() {
+        ReplacementPolicy policy = new TwoQPolicy();
+        for (int i = 0; i < 4; i++) policy.pageAdded(pid(i));
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(0));
+        // page 0 is remembered in A1out, so it goes to Am when read again
+        policy.pageAdded(pid(0));
+        for (int i = 4; i < 8; i++) {
+            PageId victim = policy.chooseVictim(p -> true);
+            assertNotEquals(pid(0), victim);
+            policy.pageRemoved(victim);
+            policy.pageAdded(pid(i));
+        }
+    }
+
+    /**
+     * Unit test for TwoQPolicy: A1out is sized from the pool's capacity, so
+     * pages evicted while the pool is nearly empty are still remembered.
+     */
+    @Test public void twoQGhostQueueUsesCapacity() {
+        ReplacementPolicy policy = new TwoQPolicy(8);
+        policy.pageAdded(pid(0));
+        policy.pageAdded(pid(1));
+        policy.pageRemoved(pid(0));
+        policy.pageRemoved(pid(1));
+        // page 0 is still in A1out and goes to Am, the new pages to A1in
+        policy.pageAdded(pid(0));
+        for (int i = 2; i < 6; i++) policy.pageAdded(pid(i));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Every policy returns null when no page may be evicted.
+     */
+    @Test public void noEvictablePage() {
+        ReplacementPolicy[] policies = {new ClockPolicy(), new LRUKPolicy(), new TwoQPolicy()};
+        for (ReplacementPolicy policy : policies) {
+            assertNull(policy.chooseVictim(p -> true));
+            policy.pageAdded(pid(0));
+            policy.pageAdded(pid(1));
+            assertNull(policy.chooseVictim(p -> false));
+            policy.pageRemoved(pid(0));
+            policy.pageRemoved(pid(1));
+            assertNull(policy.chooseVictim(p -> true));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -314,6 +314,8 @@ public class TestUtil {
         final PageId pid;
         final Permissions perm;
         boolean acquired;
+        // System.nanoTime() when the lock was acquired
+        long acquiredAt;
         Exception error;
         final Object alock;
         final Object elock;
@@ -337,6 +339,7 @@ public class TestUtil {
             try {
                 Database.getBufferPool().getPage(tid, pid, perm);
                 synchronized(alock) {
+                    acquiredAt = System.nanoTime();
                     acquired = true;
                 }
             } catch (Exception e) {
@@ -358,6 +361,16 @@ public class TestUtil {
             }
         }
 
+        /**
+         * @return the System.nanoTime() at which the lock was acquired,
+         *   only meaningful once acquired() is true
+         */
+        public long acquiredAt() {
+            synchronized(alock) {
+                return acquiredAt;
+            }
+        }
+
         /**
          * @return an Exception instance if one occured during lock acquisition;
          *   null otherwise
@@ -0,0 +1,147 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.transaction.Transaction;
+
+/**
+ * Recovery repeats the logged history of the dirty pages and rolls back
+ * unfinished transactions with compensation log records (CLRs), so a
+ * rollback interrupted by a crash is not undone twice.
+ */
+public class AriesRecoveryTest extends SimpleDbTestBase {
+    private static final int COMMITS = 5;
+    // an ABORT record: type, transaction id, start offset
+    private static final int ABORT_RECORD_SIZE = 4 + 8 + 8;
+
+    private File logFile;
+    private File dataFile;
+    private HeapFile f;
+
+    @Before public void setUp() throws Exception {
+        logFile = File.createTempFile("aries-log", ".tmp");
+        logFile.deleteOnExit();
+        dataFile = File.createTempFile("aries", ".dat");
+        dataFile.deleteOnExit();
+        Database.bind(Database.create(new BufferPool(BufferPool.DEFAULT_PAGES), logFile));
+        f = Utility.createEmptyHeapFile(dataFile.getAbsolutePath(), 2);
+        for (int i = 0; i < COMMITS; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+    }
+
+    @After public void tearDown() {
+        Database.unbind();
+    }
+
+    // restart with the log and data files as they are, and recover
+    private void crash() throws Exception {
+        Database.bind(Database.create(new BufferPool(BufferPool.DEFAULT_PAGES), logFile));
+        f = Utility.openHeapFile(2, dataFile);
+        Database.getLogFile().recover();
+    }
+
+    private static List<List<Integer>> committedRows() {
+        List<List<Integer>> rows = new ArrayList<>();
+        for (int i = 0; i < COMMITS; i++) rows.add(Arrays.asList(i, i));
+        return rows;
+    }
+
+    // insert two rows in a transaction that doesn't finish, stealing the page after each
+    private Transaction stealTwice() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(100, 2));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(101, 2));
+        Database.getBufferPool().flushAllPages();
+        return t;
+    }
+
+    /**
+     * A crash during recovery, after the CLRs were forced but before the
+     * loser's abort was logged, leaves nothing to undo the second time.
+     */
+    @Test public void interruptedRecoveryResumes() throws Exception {
+        stealTwice();
+        byte[] crashed = Files.readAllBytes(dataFile.toPath());
+
+        crash();
+        // both updates of the loser were compensated
+        assertEquals(2, Database.getLogFile().getCompensationRecordCount());
+        SystemTestUtil.matchTuples(f, committedRows());
+
+        // lose the abort record and the pages written by recovery
+        try (RandomAccessFile log = new RandomAccessFile(logFile, "rw")) {
+            log.setLength(log.length() - ABORT_RECORD_SIZE);
+        }
+        Files.write(dataFile.toPath(), crashed);
+        crash();
+        // the CLRs are redone, not undone again
+        assertEquals(0, Database.getLogFile().getCompensationRecordCount());
+        SystemTestUtil.matchTuples(f, committedRows());
+    }
+
+    /**
+     * An abort whose page writes were lost is redone from its CLRs.
+     */
+    @Test public void abortRedoneFromCompensation() throws Exception {
+        Transaction t = stealTwice();
+        byte[] stolen = Files.readAllBytes(dataFile.toPath());
+        t.abort();
+        assertEquals(2, Database.getLogFile().getCompensationRecordCount());
+
+        Files.write(dataFile.toPath(), stolen);
+        crash();
+        assertEquals(0, Database.getLogFile().getCompensationRecordCount());
+        SystemTestUtil.matchTuples(f, committedRows());
+    }
+
+    /**
+     * Pages whose logged updates aren't on disk are in the dirty page
+     * table until they are written.
+     */
+    @Test public void dirtyPageTable() throws Exception {
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(100, 2));
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        Page page = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+        long lsn = Database.getLogFile().logWrite(t.getId(), page.getBeforeImage(), page);
+        assertEquals(Long.valueOf(lsn), Database.getBufferPool().getDirtyPageTable().get(pid));
+
+        // the commit logs the page again and writes it
+        t.commit();
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AriesRecoveryTest.class);
+    }
+}
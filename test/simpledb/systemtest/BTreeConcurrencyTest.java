@@ -0,0 +1,202 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * B+ tree searches latch the internal pages instead of locking them, so
+ * readers and writers in different parts of the tree don't wait for each
+ * other's transactions to end.
+ */
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+    // small pages make the tree deep with few tuples
+    private static final int PAGE_SIZE = 512;
+    private static final int POOL_PAGES = 1000;
+    private static final int THREADS = 4;
+    private static final int TUPLES_PER_THREAD = 2000;
+    private static final int BATCH = 50;
+
+    @After public void tearDown() {
+        BufferPool.resetPageSize();
+        Database.reset();
+    }
+
+    private static BTreeFile createTree() throws Exception {
+        BufferPool.setPageSize(PAGE_SIZE);
+        File file = File.createTempFile("btree-concurrency", ".dat");
+        file.deleteOnExit();
+        Database.reset();
+        BTreeFile f = BTreeUtility.createEmptyBTreeFile(file.getAbsolutePath(), 2, 0);
+        Database.resetBufferPool(POOL_PAGES);
+        return f;
+    }
+
+    private static BTreePageId rootId(BTreeFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+        BTreePageId root = rootPtr.getRootId();
+        Database.getBufferPool().transactionComplete(tid);
+        return root;
+    }
+
+    private static int count(BTreeFile f, int key) throws Exception {
+        TransactionId tid = new TransactionId();
+        int n = count(f, tid, key);
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    private static int count(BTreeFile f, TransactionId tid, int key) throws Exception {
+        DbFileIterator it = f.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A transaction keeps reading the left-most leaf while another one inserts
+     * at the right end of the tree until the root splits. The root and the
+     * internal pages on the reader's path change without waiting for it.
+     */
+    @Test(timeout = 60000) public void openReaderDoesNotBlockSplits() throws Exception {
+        BTreeFile f = createTree();
+        BufferPool bp = Database.getBufferPool();
+        TransactionId loader = new TransactionId();
+        for (int i = 0; i < 1000; i++) {
+            bp.insertTuple(loader, f.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        bp.transactionComplete(loader);
+        BTreePageId root = rootId(f);
+
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = f.indexIterator(reader, new IndexPredicate(Op.EQUALS, new IntField(0)));
+        it.open();
+        assertTrue(it.hasNext());
+        it.next();
+
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 5000; i++) {
+            bp.insertTuple(writer, f.getId(), BTreeUtility.getBTreeTuple(100000 + i, 2));
+        }
+        bp.transactionComplete(writer);
+        assertFalse(root.equals(rootId(f)));
+
+        it.close();
+        bp.transactionComplete(reader);
+        assertEquals(1, count(f, 0));
+        assertEquals(1, count(f, 104999));
+        TransactionId checker = new TransactionId();
+        BTreeChecker.checkRep(f, checker, new HashMap<>(), false);
+        bp.transactionComplete(checker);
+    }
+
+    /**
+     * Insert a batch of keys in one transaction, starting the batch over in a
+     * new transaction when it is aborted by deadlock detection.
+     */
+    private static void insertBatch(BTreeFile f, int first, int n) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        while (true) {
+            TransactionId tid = new TransactionId();
+            try {
+                for (int key = first; key < first + n; key++) {
+                    bp.insertTuple(tid, f.getId(), BTreeUtility.getBTreeTuple(key, 2));
+                    // look the previous key up while other threads keep splitting pages
+                    if (key > first) assertEquals(1, count(f, tid, key - 1));
+                }
+                bp.transactionComplete(tid);
+                return;
+            } catch (TransactionAbortedException e) {
+                bp.transactionComplete(tid, false);
+            }
+        }
+    }
+
+    /**
+     * Insert TUPLES_PER_THREAD keys in each of the given number of threads.
+     * @return the elapsed time in nanoseconds
+     */
+    private static long insertConcurrently(BTreeFile f, int threads) throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int base = t * 1000000;
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < TUPLES_PER_THREAD; i += BATCH) insertBatch(f, base + i, BATCH);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        long elapsed = System.nanoTime() - start;
+        if (error.get() != null) throw new AssertionError(error.get());
+        return elapsed;
+    }
+
+    @Test public void concurrentInserts() throws Exception {
+        long single = insertConcurrently(createTree(), 1);
+        BTreeFile f = createTree();
+        long parallel = insertConcurrently(f, THREADS);
+        System.out.printf("B+ tree inserts: 1 thread %d tuples/s, %d threads %d tuples/s%n",
+                TUPLES_PER_THREAD * 1000000000L / single, THREADS,
+                THREADS * TUPLES_PER_THREAD * 1000000000L / parallel);
+
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(1, count(f, t * 1000000));
+            assertEquals(1, count(f, t * 1000000 + TUPLES_PER_THREAD - 1));
+        }
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(THREADS * TUPLES_PER_THREAD, n);
+        BTreeChecker.checkRep(f, tid, new HashMap<>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeConcurrencyTest.class);
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Commit benchmark: a transaction that dirties one page commits in about
+ * the same time whether the pool caches a thousand pages or a hundred
+ * thousand, because commit only looks at the pages the transaction wrote
+ * and the locks it holds.
+ */
+public class CommitLatencyTest extends SimpleDbTestBase {
+    // small pages keep a full 100k page pool within the test heap
+    private static final int PAGE_SIZE = 256;
+    private static final int PARTITIONS = 8;
+    private static final int SMALL_POOL = 1000;
+    private static final int LARGE_POOL = 100000;
+    private static final int COMMITS = 200;
+
+    @After public void tearDown() {
+        Database.unbind();
+    }
+
+    /**
+     * Fill a pool of the given size with pages of one table, then commit
+     * transactions that each dirty a single page.
+     *
+     * @return the median time spent flushing the dirty pages of a commit
+     *         and the median time of the whole commit, in nanoseconds
+     */
+    private static long[] medianCommitNanos(int poolPages) throws Exception {
+        File log = File.createTempFile("simpledb-log", ".tmp");
+        log.deleteOnExit();
+        Database.bind(Database.create(new BufferPool(poolPages, PAGE_SIZE, PARTITIONS, ClockPolicy::new), log));
+        BufferPool pool = Database.getBufferPool();
+
+        File f = File.createTempFile("commit-latency", ".dat");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength((long) poolPages * PAGE_SIZE);
+        }
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        TransactionId reader = new TransactionId();
+        for (int i = 0; i < poolPages; i++) {
+            pool.getPage(reader, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        }
+        pool.transactionComplete(reader);
+        assertEquals(poolPages, pool.getMissCount());
+
+        long[] flush = new long[COMMITS];
+        long[] commit = new long[COMMITS];
+        for (int i = 0; i < COMMITS; i++) {
+            TransactionId tid = new TransactionId();
+            HeapPageId pid = new HeapPageId(table.getId(), i % poolPages);
+            pool.getPage(tid, pid, Permissions.READ_WRITE).markDirty(true, tid);
+            long start = System.nanoTime();
+            pool.flushPages(tid);
+            flush[i] = System.nanoTime() - start;
+            pool.transactionComplete(tid, true);
+            commit[i] = System.nanoTime() - start;
+        }
+        // the whole table stayed cached
+        assertEquals(poolPages, pool.getMissCount());
+        Arrays.sort(flush);
+        Arrays.sort(commit);
+        return new long[] {flush[COMMITS / 2], commit[COMMITS / 2]};
+    }
+
+    @Test public void commitLatencyIndependentOfPoolSize() throws Exception {
+        // warm up the commit path before measuring
+        medianCommitNanos(SMALL_POOL);
+        long[] small = medianCommitNanos(SMALL_POOL);
+        long[] large = medianCommitNanos(LARGE_POOL);
+        System.out.printf("median flush/commit latency: %d pages %d/%d us, %d pages %d/%d us%n",
+                SMALL_POOL, small[0] / 1000, small[1] / 1000, LARGE_POOL, large[0] / 1000, large[1] / 1000);
+        // scanning 100x more pages would show up as a large multiple
+        assertTrue("flushing a commit slowed down from " + small[0] + "ns to " + large[0] + "ns",
+                large[0] < small[0] * 4 + 200000);
+        assertTrue("commit slowed down from " + small[1] + "ns to " + large[1] + "ns",
+                large[1] < small[1] * 4 + 200000);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CommitLatencyTest.class);
+    }
+}
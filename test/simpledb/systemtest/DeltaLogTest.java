@@ -0,0 +1,102 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Page updates after the first one since a checkpoint are logged as the
+ * changed bytes only, and recovery rebuilds the pages from them.
+ */
+public class DeltaLogTest extends SimpleDbTestBase {
+    private static final int COMMITS = 100;
+
+    private static void commitInsert(HeapFile f, int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, 2));
+        t.commit();
+    }
+
+    private static List<List<Integer>> rows(int from, int to) {
+        List<List<Integer>> rows = new ArrayList<>();
+        for (int i = from; i < to; i++) rows.add(Arrays.asList(i, i));
+        return rows;
+    }
+
+    /**
+     * Committing one-tuple inserts logs an order of magnitude fewer bytes
+     * with delta records than with full page images.
+     */
+    @Test public void logVolume() throws Exception {
+        LogFile log = Database.getLogFile();
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        log.setDeltaLogging(false);
+        log.resetStatistics();
+        for (int i = 0; i < COMMITS; i++) commitInsert(full, i);
+        long fullBytes = log.getUpdateBytes();
+        assertEquals(0, log.getDeltaRecordCount());
+
+        HeapFile delta = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        log.setDeltaLogging(true);
+        log.resetStatistics();
+        for (int i = 0; i < COMMITS; i++) commitInsert(delta, i);
+        long deltaBytes = log.getUpdateBytes();
+        System.out.printf("%d one-tuple insert commits: %d bytes/update with full images, %d bytes/update with deltas%n",
+                COMMITS, fullBytes / COMMITS, deltaBytes / log.getUpdateRecordCount());
+
+        // only the first update of the page carries full images
+        assertEquals(log.getUpdateRecordCount() - 1, log.getDeltaRecordCount());
+        assertTrue(fullBytes >= 10 * deltaBytes);
+        SystemTestUtil.matchTuples(delta, rows(0, COMMITS));
+    }
+
+    /**
+     * Recovery redoes committed deltas on top of the full image logged
+     * before them and undoes those of a transaction that was still running.
+     */
+    @Test public void recoverFromDeltas() throws Exception {
+        File file = File.createTempFile("delta", ".dat");
+        file.deleteOnExit();
+        HeapFile f = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        commitInsert(f, 0);
+        // keep the page as it was after the first commit
+        byte[] stale = Files.readAllBytes(file.toPath());
+
+        for (int i = 1; i < 10; i++) commitInsert(f, i);
+        Transaction open = new Transaction();
+        open.start();
+        Database.getBufferPool().insertTuple(open.getId(), f.getId(), Utility.getHeapTuple(100, 2));
+        // steal the uncommitted insert, logged as a delta too
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getLogFile().getDeltaRecordCount() >= 10);
+
+        // lose the writes of the later commits
+        Files.write(file.toPath(), stale);
+        Database.reset();
+        f = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        SystemTestUtil.matchTuples(f, rows(0, 10));
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeltaLogTest.class);
+    }
+}
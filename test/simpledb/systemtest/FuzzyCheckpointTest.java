@@ -0,0 +1,148 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.transaction.Transaction;
+
+/**
+ * Checkpoints record the active transactions and the dirty page table
+ * without writing pages, and can be taken in the background.
+ */
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+    private static final int COMMITS = 200;
+    // how long the scheduler gets to take a checkpoint
+    private static final long WAIT_MILLIS = 5000;
+
+    private File logFile;
+    private File dataFile;
+    private HeapFile f;
+
+    @Before public void setUp() throws Exception {
+        logFile = File.createTempFile("fuzzy-log", ".tmp");
+        logFile.deleteOnExit();
+        dataFile = File.createTempFile("fuzzy", ".dat");
+        dataFile.deleteOnExit();
+        Database.bind(Database.create(new BufferPool(BufferPool.DEFAULT_PAGES), logFile));
+        f = Utility.createEmptyHeapFile(dataFile.getAbsolutePath(), 2);
+    }
+
+    @After public void tearDown() {
+        Database.getLogFile().stopCheckpointScheduler();
+        Database.unbind();
+    }
+
+    private void commitInsert(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, 2));
+        t.commit();
+    }
+
+    private static void awaitCheckpoint(LogFile log) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (log.getCheckpointCount() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    }
+
+    /**
+     * A checkpoint leaves the dirty pages of running transactions alone.
+     */
+    @Test public void checkpointWritesNoPages() throws Exception {
+        LogFile log = Database.getLogFile();
+        commitInsert(0);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+        byte[] before = Files.readAllBytes(dataFile.toPath());
+
+        log.resetStatistics();
+        log.logCheckpoint();
+        assertEquals(1, log.getCheckpointCount());
+        assertEquals(0, log.getUpdateRecordCount());
+        assertArrayEquals(before, Files.readAllBytes(dataFile.toPath()));
+        Page page = Database.getBufferPool().getPage(t.getId(), new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(t.getId(), page.isDirty());
+        t.commit();
+    }
+
+    /**
+     * Recovery redoes an update logged before the checkpoint whose page
+     * was never written, found through the checkpoint's dirty page table.
+     */
+    @Test public void redoFromCheckpointDirtyPages() throws Exception {
+        commitInsert(0);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+        Page page = Database.getBufferPool().getPage(t.getId(), new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        Database.getLogFile().logWrite(t.getId(), page.getBeforeImage(), page);
+        Database.getLogFile().logCheckpoint();
+        // commit without writing the page, then crash
+        Database.getLogFile().logCommit(t.getId());
+
+        Database.bind(Database.create(new BufferPool(BufferPool.DEFAULT_PAGES), logFile));
+        f = Utility.openHeapFile(2, dataFile);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(f, Arrays.asList(Arrays.asList(0, 0), Arrays.asList(1, 1)));
+    }
+
+    /**
+     * The scheduler takes a checkpoint once enough log was written.
+     */
+    @Test public void scheduledBySize() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.startCheckpointScheduler(BufferPool.getPageSize(), 60000);
+        assertTrue(log.isCheckpointSchedulerRunning());
+        long start = System.nanoTime();
+        for (int i = 0; i < COMMITS; i++) commitInsert(i);
+        long micros = (System.nanoTime() - start) / 1000;
+        awaitCheckpoint(log);
+        System.out.printf("%d commits with background checkpoints: %d checkpoints, %d us/commit, p99 commit latency %d us%n",
+                COMMITS, log.getCheckpointCount(), micros / COMMITS, log.getCommitLatencyMicros(99));
+        assertTrue(log.getCheckpointCount() > 0);
+        log.stopCheckpointScheduler();
+        assertFalse(log.isCheckpointSchedulerRunning());
+        assertTrue(log.getCurrentLSN() - log.getCheckpointLSN() < COMMITS * BufferPool.getPageSize());
+    }
+
+    /**
+     * The scheduler takes a checkpoint after the interval if anything
+     * was logged, and none while the log is idle.
+     */
+    @Test public void scheduledByTime() throws Exception {
+        LogFile log = Database.getLogFile();
+        commitInsert(0);
+        log.startCheckpointScheduler(Long.MAX_VALUE, 50);
+        awaitCheckpoint(log);
+        assertEquals(1, log.getCheckpointCount());
+        // nothing was logged since
+        Thread.sleep(200);
+        assertEquals(1, log.getCheckpointCount());
+        log.stopCheckpointScheduler();
+        SystemTestUtil.matchTuples(f, Collections.singletonList(Arrays.asList(0, 0)));
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Group commit makes the commits of concurrent transactions durable with
+ * one log force per batch.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 50;
+    // long enough for the other committers to join the batch
+    private static final long MAX_DELAY_MICROS = 2000;
+
+    @After public void tearDown() throws Exception {
+        Database.getLogFile().stopGroupCommit();
+    }
+
+    private static void commitInsert(HeapFile f, int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, 2));
+        t.commit();
+    }
+
+    /**
+     * Each thread commits transactions that insert into its own table, so
+     * the commits don't wait for each other's locks.
+     * @return the elapsed time in nanoseconds
+     */
+    private static long commitConcurrently(List<HeapFile> tables) throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (HeapFile f : tables) {
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < COMMITS_PER_THREAD; i++) commitInsert(f, i);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        long elapsed = System.nanoTime() - start;
+        if (error.get() != null) throw new AssertionError(error.get());
+        return elapsed;
+    }
+
+    private static List<HeapFile> createTables() throws Exception {
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) tables.add(SystemTestUtil.createRandomHeapFile(2, 0, null, null));
+        return tables;
+    }
+
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        LogFile log = Database.getLogFile();
+        List<HeapFile> plain = createTables();
+        log.resetStatistics();
+        long plainNanos = commitConcurrently(plain);
+        long plainForces = log.getForceCount();
+        long plainP99 = log.getCommitLatencyMicros(99);
+
+        List<HeapFile> grouped = createTables();
+        log.startGroupCommit(THREADS, MAX_DELAY_MICROS);
+        assertTrue(log.isGroupCommitRunning());
+        log.resetStatistics();
+        long groupNanos = commitConcurrently(grouped);
+        long groupForces = log.getForceCount();
+        int commits = THREADS * COMMITS_PER_THREAD;
+        System.out.printf("%d commits: %d forces, %d commits/s, p99 %d us without group commit; "
+                        + "%d forces, %d commits/s, p99 %d us with group commit (%.1f waiters per force)%n",
+                commits, plainForces, commits * 1000000000L / plainNanos, plainP99,
+                groupForces, commits * 1000000000L / groupNanos, log.getCommitLatencyMicros(99),
+                log.getAverageGroupSize());
+
+        assertEquals(commits, log.getCommitCount());
+        assertTrue(log.getAverageGroupSize() > 1);
+        assertTrue(log.getGroupForceCount() < commits);
+        // without group commit every commit forces the log at least once
+        assertTrue(plainForces >= commits);
+        assertTrue(groupForces < plainForces);
+
+        // everything committed is still there after the pool is dropped
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (int i = 0; i < COMMITS_PER_THREAD; i++) expected.add(Arrays.asList(i, i));
+        for (HeapFile f : grouped) SystemTestUtil.matchTuples(f, expected);
+    }
+
+    /**
+     * A lone commit is forced right away, and commits force the log by
+     * themselves again once group commit stops.
+     */
+    @Test public void singleCommit() throws Exception {
+        LogFile log = Database.getLogFile();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        log.startGroupCommit();
+        log.resetStatistics();
+        commitInsert(f, 1);
+        // one force for the update record of the page, one for the commit record
+        assertEquals(2, log.getGroupForceCount());
+        assertEquals(1, log.getCommitCount());
+        assertTrue(log.getCommitLatencyMicros(50) > 0);
+
+        log.stopGroupCommit();
+        assertFalse(log.isGroupCommitRunning());
+        commitInsert(f, 2);
+        assertEquals(2, log.getGroupForceCount());
+        assertEquals(2, log.getCommitCount());
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
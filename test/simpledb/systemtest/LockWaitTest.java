@@ -0,0 +1,217 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.LockWait;
+import simpledb.common.Permissions;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.LockNotAvailableException;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Transactions can bound how long they wait for locks, and single requests
+ * can fail or skip instead of waiting.
+ */
+public class LockWaitTest extends SimpleDbTestBase {
+    private static final int ROWS = 10;
+    private static final int QUEUE_ROWS = 400;
+    private static final int CONSUMERS = 4;
+    /** Lock timeout used by the tests, in ms */
+    private static final int TIMEOUT = 200;
+
+    /**
+     * A transaction with a lock timeout gives up on a page locked by another
+     * transaction after about that long.
+     */
+    @Test(timeout = 10000) public void lockTimeout() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        TransactionId holder = new TransactionId();
+        bp.getPage(holder, pid, Permissions.READ_WRITE);
+
+        Transaction t = new Transaction();
+        t.start();
+        t.setLockTimeout(TIMEOUT);
+        long before = bp.lockManager.getLockTimeoutCount();
+        long start = System.nanoTime();
+        try {
+            bp.getPage(t.getId(), pid, Permissions.READ_ONLY);
+            fail("expected the lock request to time out");
+        } catch (LockNotAvailableException e) {
+            // expected
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("gave up after " + elapsed + " ms", elapsed >= TIMEOUT - 20);
+        assertEquals(before + 1, bp.lockManager.getLockTimeoutCount());
+        t.abort();
+
+        // the holder was not disturbed and the next transaction waits as usual
+        bp.transactionComplete(holder);
+        TransactionId next = new TransactionId();
+        assertEquals(-1, bp.lockManager.getLockTimeout(next));
+        bp.getPage(next, pid, Permissions.READ_WRITE);
+        bp.transactionComplete(next);
+    }
+
+    /**
+     * NOWAIT fails right away and SKIP_LOCKED returns null for a page another
+     * transaction has locked.
+     */
+    @Test public void noWaitAndSkipLockedPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        TransactionId holder = new TransactionId();
+        bp.getPage(holder, pid, Permissions.READ_WRITE);
+
+        TransactionId tid = new TransactionId();
+        try {
+            bp.getPage(tid, pid, Permissions.READ_ONLY, LockWait.NOWAIT);
+            fail("expected LockNotAvailableException");
+        } catch (LockNotAvailableException e) {
+            // expected
+        }
+        assertNull(bp.getPage(tid, pid, Permissions.READ_ONLY, LockWait.SKIP_LOCKED));
+        assertEquals(0, count(new SeqScan(tid, f.getId(), "t", Permissions.READ_ONLY, LockWait.SKIP_LOCKED)));
+
+        bp.transactionComplete(holder);
+        assertNotNull(bp.getPage(tid, pid, Permissions.READ_ONLY, LockWait.NOWAIT));
+        assertEquals(ROWS, count(new SeqScan(tid, f.getId(), "t", Permissions.READ_ONLY, LockWait.NOWAIT)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * With row locking, a READ_WRITE scan locks only the tuples it returned,
+     * and other scans skip or fail on just those.
+     */
+    @Test public void skipLockedRows() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        f.setRowLocking(true);
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+
+        SeqScan first = new SeqScan(t1.getId(), f.getId(), "t", Permissions.READ_WRITE, LockWait.SKIP_LOCKED);
+        first.open();
+        assertTrue(first.hasNext());
+        Tuple taken = first.next();
+        first.close();
+
+        List<Tuple> rest = scan(new SeqScan(t2.getId(), f.getId(), "t", Permissions.READ_WRITE, LockWait.SKIP_LOCKED));
+        assertEquals(ROWS - 1, rest.size());
+        for (Tuple t : rest) assertNotEquals(taken.getRecordId(), t.getRecordId());
+        try {
+            count(new SeqScan(t2.getId(), f.getId(), "t", Permissions.READ_ONLY, LockWait.NOWAIT));
+            fail("expected LockNotAvailableException");
+        } catch (LockNotAvailableException e) {
+            // expected
+        }
+        t2.abort();
+        t1.commit();
+    }
+
+    private static List<Tuple> scan(SeqScan scan) throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        scan.open();
+        while (scan.hasNext()) result.add(scan.next());
+        scan.close();
+        return result;
+    }
+
+    private static int count(SeqScan scan) throws Exception {
+        return scan(scan).size();
+    }
+
+    /**
+     * Take one tuple off the queue table and delete it.
+     * @return the tuple, or null if no unlocked tuple is left
+     */
+    private static Tuple dequeue(HeapFile queue) throws Exception {
+        while (true) {
+            Transaction t = new Transaction();
+            t.start();
+            try {
+                SeqScan scan = new SeqScan(t.getId(), queue.getId(), "q", Permissions.READ_WRITE, LockWait.SKIP_LOCKED);
+                scan.open();
+                Tuple job = scan.hasNext() ? scan.next() : null;
+                scan.close();
+                if (job != null) Database.getBufferPool().deleteTuple(t.getId(), job);
+                t.commit();
+                return job;
+            } catch (TransactionAbortedException e) {
+                t.abort();
+            }
+        }
+    }
+
+    /**
+     * Consumers take jobs off a row-locked queue table with SKIP_LOCKED
+     * scans; each job is taken exactly once.
+     */
+    @Test(timeout = 60000) public void jobQueue() throws Exception {
+        List<List<Integer>> jobs = new ArrayList<>();
+        HeapFile queue = SystemTestUtil.createRandomHeapFile(2, QUEUE_ROWS, null, jobs);
+        queue.setRowLocking(true);
+
+        List<List<Integer>> taken = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> consumers = new ArrayList<>();
+        for (int i = 0; i < CONSUMERS; i++) {
+            consumers.add(new Thread(() -> {
+                try {
+                    Tuple job;
+                    while ((job = dequeue(queue)) != null) taken.add(SystemTestUtil.tupleToList(job));
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread c : consumers) c.start();
+        for (Thread c : consumers) c.join();
+        long elapsed = System.nanoTime() - start;
+        if (error.get() != null) throw new AssertionError(error.get());
+        System.out.printf("SKIP LOCKED queue: %d consumers %d jobs/s%n",
+                CONSUMERS, QUEUE_ROWS * 1000000000L / elapsed);
+
+        // a consumer may stop while the last jobs are still locked by others, so
+        // every job is taken once in total
+        Collections.sort(jobs, LockWaitTest::compare);
+        List<List<Integer>> sorted = new ArrayList<>(taken);
+        Collections.sort(sorted, LockWaitTest::compare);
+        assertEquals(jobs, sorted);
+        SystemTestUtil.matchTuples(queue, new ArrayList<>());
+    }
+
+    private static int compare(List<Integer> a, List<Integer> b) {
+        for (int i = 0; i < a.size(); i++) {
+            int c = Integer.compare(a.get(i), b.get(i));
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockWaitTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Heap files can read their pages through a memory mapping of the data file.
+ */
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    // two int columns fill a 4096 byte page with 504 tuples
+    private static final int TUPLES_PER_PAGE = 504;
+    // pages per mapped segment
+    private static final int SEGMENT_PAGES = 4096;
+    // pages decoded to measure the allocations of one
+    private static final int DECODES = 1000;
+
+    private static long scan(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        long count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    @Test public void mappedScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 50 * TUPLES_PER_PAGE, null, tuples);
+        assertFalse(f.isMemoryMapped());
+        f.setMemoryMapped(true);
+        assertTrue(f.isMemoryMapped());
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Pages appended by inserts after the file was mapped are read back
+     * through a new mapping.
+     */
+    @Test public void growingFile() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 * TUPLES_PER_PAGE, null, null);
+        f.setMemoryMapped(true);
+        assertEquals(10 * TUPLES_PER_PAGE, scan(f));
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        assertEquals(11, f.numPages());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    @Test public void fileSpanningSegments() throws Exception {
+        BufferPool.setPageSize(256);
+        try {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            // two int columns fill a 256 byte page with 31 tuples
+            List<List<Integer>> tuples = new ArrayList<>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 31 * (SEGMENT_PAGES + 10), null, tuples);
+            f.setMemoryMapped(true);
+            SystemTestUtil.matchTuples(f, tuples);
+        } finally {
+            BufferPool.resetPageSize();
+        }
+    }
+
+    /**
+     * A page decoded from the mapping doesn't copy the page data: its before
+     * image is only built when the page is first modified.
+     */
+    @Test public void mappedPageIsNotCopied() throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) return;
+
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        // an empty page decodes into few objects, so a copy of the data would dominate
+        ByteBuffer data = ByteBuffer.wrap(HeapPage.createEmptyPageData()).asReadOnlyBuffer();
+        for (int i = 0; i < DECODES; i++) new HeapPage(pid, data);
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < DECODES; i++) new HeapPage(pid, data);
+        long perPage = (allocations.getThreadAllocatedBytes(thread) - before) / DECODES;
+        assertTrue(perPage + " bytes per page", perPage < BufferPool.getPageSize());
+
+        // the first change still keeps the original contents as the before image
+        HeapPage page = new HeapPage(pid, data);
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        assertEquals(page.getNumEmptySlots() + 1, page.getBeforeImage().getNumEmptySlots());
+        page.setBeforeImage();
+        assertEquals(page.getNumEmptySlots(), page.getBeforeImage().getNumEmptySlots());
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Commits while the background page writer is running only force the log;
+ * the committed pages reach the table file later.
+ */
+public class PageWriterTest extends SimpleDbTestBase {
+
+    @After public void tearDown() throws IOException {
+        Database.getBufferPool().stopPageWriter();
+    }
+
+    /** Count the magic tuples inserted by AbortEvictionTest.insertRow, reading the file directly */
+    private static int countMagicTuplesOnDisk(HeapFile f) {
+        int found = 0;
+        for (int i = 0; i < f.numPages(); i++) {
+            HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), i));
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (((IntField) t.getField(0)).getValue() == -42
+                        && ((IntField) t.getField(1)).getValue() == -43) {
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    private static void waitForWriter(BufferPool pool) throws InterruptedException {
+        for (int i = 0; i < 500 && pool.getPendingWriteCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test public void committedPagesReachDisk()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 4, null, null);
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        pool.startPageWriter();
+        assertTrue(pool.isPageWriterRunning());
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+
+        waitForWriter(pool);
+        assertEquals(0, pool.getPendingWriteCount());
+        assertTrue(pool.getBackgroundWriteCount() > 0);
+        assertEquals(1, countMagicTuplesOnDisk(f));
+
+        // the committed page stays cached and clean
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    @Test public void stopWritesPendingPages()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 4, null, null);
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        pool.startPageWriter(60000, 1);
+
+        for (int i = 0; i < 3; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            AbortEvictionTest.insertRow(f, t);
+            t.commit();
+        }
+        pool.stopPageWriter();
+        assertFalse(pool.isPageWriterRunning());
+        assertEquals(0, pool.getPendingWriteCount());
+        assertEquals(3, countMagicTuplesOnDisk(f));
+
+        // without the writer a commit writes its pages before returning
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+        assertEquals(4, countMagicTuplesOnDisk(f));
+    }
+
+    /** Pages waiting for the writer are not evicted from a pool that is too small to hold them all */
+    @Test public void smallPoolWithPendingWrites()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512 * 10, null, null);
+        BufferPool pool = Database.resetBufferPool(2);
+        pool.startPageWriter(60000, 1);
+
+        Transaction t = new Transaction();
+        t.start();
+        AbortEvictionTest.insertRow(f, t);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+        pool.stopPageWriter();
+        assertEquals(1, countMagicTuplesOnDisk(f));
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Sequential heap and B+ tree leaf scans read their next pages ahead on
+ * the pool's read-ahead thread.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 200;
+    private static final int WINDOW = 16;
+    // two int columns fill a 4096 byte page with 504 tuples
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private static int scan(DbFileIterator it) throws Exception {
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private static void waitForPrefetch(BufferPool pool) throws InterruptedException {
+        for (int i = 0; i < 200 && pool.getPrefetchCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test public void windowIsCapped() {
+        BufferPool pool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(0, pool.getReadAheadWindow());
+        assertNull(pool.newReadAhead(p -> null));
+        pool.setReadAheadWindow(1000);
+        assertEquals(BufferPool.DEFAULT_PAGES / 4, pool.getReadAheadWindow());
+        assertNotNull(pool.newReadAhead(p -> null));
+        pool.setReadAheadWindow(0);
+        assertNull(pool.newReadAhead(p -> null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeWindow() {
+        Database.getBufferPool().setReadAheadWindow(-1);
+    }
+
+    /**
+     * Every page of a heap scan is read from disk exactly once, either by
+     * the scan itself or ahead of it.
+     */
+    @Test public void heapScanReadsAhead() throws Exception {
+        int pages = 60;
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * TUPLES_PER_PAGE, null, tuples);
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        pool.setReadAheadWindow(WINDOW);
+
+        TransactionId tid = new TransactionId();
+        assertEquals(tuples.size(), scan(f.iterator(tid)));
+        waitForPrefetch(pool);
+        assertTrue(pool.getPrefetchCount() > 0);
+        assertEquals(pages, pool.getMissCount() + pool.getPrefetchCount());
+        assertTrue(pool.getPrefetchHitCount() <= pool.getPrefetchCount());
+        pool.transactionComplete(tid);
+    }
+
+    @Test public void leafChainReadsAhead() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 40000, null, tuples, 0);
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        pool.setReadAheadWindow(WINDOW);
+
+        TransactionId tid = new TransactionId();
+        assertEquals(tuples.size(), scan(f.iterator(tid)));
+        waitForPrefetch(pool);
+        assertTrue(pool.getPrefetchCount() > 0);
+        assertTrue(pool.getPrefetchHitCount() <= pool.getPrefetchCount());
+        pool.transactionComplete(tid);
+    }
+
+    /**
+     * Pages read ahead of a scan that goes through a scan ring still leave
+     * the pool once the ring is done with them.
+     */
+    @Test public void largeScanWithRing() throws Exception {
+        int pages = 3 * POOL_PAGES / 2;
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, pages * TUPLES_PER_PAGE, null, tuples);
+        BufferPool pool = Database.resetBufferPool(POOL_PAGES);
+        pool.setReadAheadWindow(WINDOW);
+        assertNotNull(pool.newScanRing(f.numPages()));
+
+        for (int i = 0; i < 2; i++) {
+            TransactionId tid = new TransactionId();
+            assertEquals(tuples.size(), scan(f.iterator(tid)));
+            pool.transactionComplete(tid);
+        }
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,242 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Heap files with row locking let transactions change different tuples of
+ * the same page at the same time.
+ */
+public class RowLockingTest extends SimpleDbTestBase {
+    private static final int ROWS = 10;
+    /** Time to wait before checking that a thread is still blocked, in ms */
+    private static final int TIMEOUT = 100;
+
+    private HeapFile f;
+    private List<List<Integer>> tuples;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        f.setRowLocking(true);
+        bp = Database.getBufferPool();
+    }
+
+    private static Tuple row(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) result.add(it.next());
+        it.close();
+        return result;
+    }
+
+    private static Thread start(AtomicReference<Object> outcome, Callable<?> body) {
+        Thread thread = new Thread(() -> {
+            try {
+                outcome.set(body.call());
+            } catch (Exception e) {
+                outcome.set(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Two transactions insert and delete tuples of the same page without
+     * waiting for each other; one commits, the other aborts, and only the
+     * committed changes reach the file.
+     */
+    @Test(timeout = 10000) public void writersShareAPage() throws Exception {
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        // scanned by a third transaction, whose row locks would keep the writers out
+        TransactionId reader = new TransactionId();
+        List<Tuple> read = scan(reader);
+        bp.transactionComplete(reader);
+        assertEquals(ROWS, read.size());
+
+        bp.insertTuple(t1.getId(), f.getId(), row(-1, -1));
+        bp.insertTuple(t2.getId(), f.getId(), row(-2, -2));
+        assertEquals(new HeapPageId(f.getId(), 0), read.get(0).getRecordId().getPageId());
+        bp.deleteTuple(t1.getId(), read.get(0));
+        bp.deleteTuple(t2.getId(), read.get(1));
+        assertEquals(1, f.numPages());
+
+        t1.commit();
+        t2.abort();
+
+        tuples.remove(SystemTestUtil.tupleToList(read.get(0)));
+        tuples.add(SystemTestUtil.tupleToList(row(-1, -1)));
+        SystemTestUtil.matchTuples(f, tuples);
+        // the file itself only holds the committed changes
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * A second delete of the same tuple waits for the first and then finds
+     * the tuple gone.
+     */
+    @Test(timeout = 10000) public void sameRowConflicts() throws Exception {
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        Tuple victim = scan(t1.getId()).get(3);
+        bp.deleteTuple(t1.getId(), victim);
+
+        AtomicReference<Object> outcome = new AtomicReference<>();
+        Thread thread = start(outcome, () -> {
+            bp.deleteTuple(t2.getId(), victim);
+            return Boolean.TRUE;
+        });
+        Thread.sleep(TIMEOUT);
+        assertNull(outcome.get());
+
+        t1.commit();
+        thread.join();
+        assertTrue(outcome.get() instanceof TransactionAbortedException);
+        t2.abort();
+
+        tuples.remove(SystemTestUtil.tupleToList(victim));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Scans do not see uncommitted inserts of other transactions; they wait
+     * until the inserter finishes.
+     */
+    @Test(timeout = 10000) public void scanWaitsForUncommittedRows() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.insertTuple(writer.getId(), f.getId(), row(-1, -1));
+
+        TransactionId reader = new TransactionId();
+        AtomicReference<Object> outcome = new AtomicReference<>();
+        Thread thread = start(outcome, () -> scan(reader).size());
+        Thread.sleep(TIMEOUT);
+        assertNull(outcome.get());
+
+        writer.commit();
+        thread.join();
+        assertEquals(ROWS + 1, outcome.get());
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * A scan keeps the tuples it read locked until the transaction ends, so
+     * a second scan sees the same tuples and deletes of other transactions
+     * wait.
+     */
+    @Test(timeout = 10000) public void scanIsRepeatable() throws Exception {
+        Transaction reader = new Transaction();
+        Transaction writer = new Transaction();
+        reader.start();
+        writer.start();
+        List<Tuple> read = scan(reader.getId());
+
+        AtomicReference<Object> outcome = new AtomicReference<>();
+        Thread thread = start(outcome, () -> {
+            bp.deleteTuple(writer.getId(), read.get(0));
+            return Boolean.TRUE;
+        });
+        Thread.sleep(TIMEOUT);
+        assertNull(outcome.get());
+        assertEquals(read, scan(reader.getId()));
+
+        reader.commit();
+        thread.join();
+        assertEquals(Boolean.TRUE, outcome.get());
+        writer.commit();
+        tuples.remove(SystemTestUtil.tupleToList(read.get(0)));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * A read committed transaction releases the lock on each tuple once it
+     * was read, and sees committed deletes in its next scan.
+     */
+    @Test(timeout = 10000) public void readCommittedReleasesRowLocks() throws Exception {
+        Transaction reader = new Transaction();
+        Transaction writer = new Transaction();
+        reader.start();
+        reader.setReadCommitted();
+        writer.start();
+        List<Tuple> read = scan(reader.getId());
+
+        bp.deleteTuple(writer.getId(), read.get(0));
+        writer.commit();
+        assertEquals(ROWS - 1, scan(reader.getId()).size());
+        reader.commit();
+    }
+
+    /**
+     * An insert that finds every free slot of a page locked moves on to the
+     * next page without pinning the first one as dirty.
+     */
+    @Test(timeout = 10000) public void insertLeavesUnusedPageClean() throws Exception {
+        HeapPageId first = new HeapPageId(f.getId(), 0);
+        TransactionId reader = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(reader, first, Permissions.READ_ONLY);
+        bp.transactionComplete(reader);
+        TransactionId other = new TransactionId();
+        for (int slot = ROWS; slot < ROWS + page.getNumEmptySlots(); slot++) {
+            assertTrue(bp.lockManager.tryRowLock(other, new RecordId(first, slot), Permissions.READ_WRITE));
+        }
+
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), f.getId(), row(-1, -1));
+        assertEquals(2, f.numPages());
+        // the page can't be locked while the slots are, so look at the cached copy
+        assertNull(page.isDirty());
+        t.commit();
+        bp.transactionComplete(other);
+
+        tuples.add(SystemTestUtil.tupleToList(row(-1, -1)));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Mixed scan + point-lookup workload: a small hot table is read page by page
+ * while a large table is scanned. Large scans go through a BufferRing, so the
+ * hot pages should still be cached after the scan.
+ */
+public class ScanRingTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 20;
+    // one int column fills a 4096 byte page with 992 tuples
+    private static final int TUPLES_PER_PAGE = 992;
+    private static final int HOT_PAGES = 4;
+    private static final int COLD_PAGES = 40;
+
+    private static void lookupHotPages(HeapFile hot, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        for (int i = 0; i < HOT_PAGES; i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    private static int scan(HeapFile f, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    @Test public void hotPagesSurviveLargeScan()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(1, HOT_PAGES * TUPLES_PER_PAGE, null, null);
+        HeapFile cold = SystemTestUtil.createRandomHeapFile(1, COLD_PAGES * TUPLES_PER_PAGE, null, null);
+        BufferPool pool = Database.resetBufferPool(BUFFER_PAGES);
+        assertNull(pool.newScanRing(hot.numPages()));
+        assertNotNull(pool.newScanRing(cold.numPages()));
+
+        TransactionId tid = new TransactionId();
+        lookupHotPages(hot, tid);
+        assertEquals(COLD_PAGES * TUPLES_PER_PAGE, scan(cold, tid));
+
+        pool.resetStatistics();
+        lookupHotPages(hot, tid);
+        assertEquals(HOT_PAGES, pool.getHitCount());
+        assertEquals(0, pool.getMissCount());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void scanWithoutRingFlushesHotPages()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(1, HOT_PAGES * TUPLES_PER_PAGE, null, null);
+        HeapFile cold = SystemTestUtil.createRandomHeapFile(1, COLD_PAGES * TUPLES_PER_PAGE, null, null);
+        BufferPool pool = Database.resetBufferPool(BUFFER_PAGES);
+
+        TransactionId tid = new TransactionId();
+        lookupHotPages(hot, tid);
+        // read the large table through the shared pool, as scans did before
+        for (int i = 0; i < cold.numPages(); i++) {
+            pool.getPage(tid, new HeapPageId(cold.getId(), i), Permissions.READ_ONLY);
+        }
+
+        pool.resetStatistics();
+        lookupHotPages(hot, tid);
+        assertTrue(pool.getMissCount() > 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Read-only transactions scan a snapshot without taking locks.
+ */
+public class SnapshotReadTest extends SimpleDbTestBase {
+    // two int columns fill a 4096 byte page with 504 tuples
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int PAGES = 3;
+
+    private HeapFile f;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = SystemTestUtil.createRandomHeapFile(2, PAGES * TUPLES_PER_PAGE, null, null);
+        bp = Database.getBufferPool();
+    }
+
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) result.add(it.next());
+        it.close();
+        return result;
+    }
+
+    private static Tuple row(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    /**
+     * A snapshot scan neither waits for a writer holding page locks nor
+     * sees its uncommitted changes, and keeps seeing the same data after the
+     * writer commits.
+     */
+    @Test(timeout = 10000) public void readerIgnoresWriter() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.insertTuple(writer.getId(), f.getId(), row(-1, -1));
+        assertEquals(PAGES + 1, f.numPages());
+        for (int i = 0; i < PAGES; i++) {
+            bp.getPage(writer.getId(), new HeapPageId(f.getId(), i), Permissions.READ_WRITE);
+        }
+
+        Transaction reader = new Transaction();
+        reader.startReadOnly();
+        assertEquals(PAGES * TUPLES_PER_PAGE, scan(reader.getId()).size());
+        assertFalse(bp.holdsLock(reader.getId(), new HeapPageId(f.getId(), 0)));
+
+        writer.commit();
+        assertEquals(PAGES * TUPLES_PER_PAGE, scan(reader.getId()).size());
+        assertTrue(bp.getVersionCount() > 0);
+
+        Transaction later = new Transaction();
+        later.startReadOnly();
+        assertEquals(PAGES * TUPLES_PER_PAGE + 1, scan(later.getId()).size());
+        later.commit();
+        reader.commit();
+        assertEquals(0, bp.getVersionCount());
+    }
+
+    /**
+     * All pages a transaction commits become visible to snapshots at once.
+     */
+    @Test public void commitsAreAtomic() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        List<Tuple> all = scan(writer.getId());
+        for (int i = 0; i < PAGES; i++) {
+            bp.deleteTuple(writer.getId(), all.get(i * TUPLES_PER_PAGE));
+        }
+
+        Transaction before = new Transaction();
+        before.startReadOnly();
+        writer.commit();
+        Transaction after = new Transaction();
+        after.startReadOnly();
+
+        assertEquals(PAGES * TUPLES_PER_PAGE, scan(before.getId()).size());
+        assertEquals(PAGES * TUPLES_PER_PAGE - PAGES, scan(after.getId()).size());
+        before.commit();
+        after.commit();
+    }
+
+    /**
+     * Without snapshot readers no old versions are kept.
+     */
+    @Test public void noVersionsWithoutSnapshots() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.insertTuple(writer.getId(), f.getId(), row(-1, -1));
+        writer.commit();
+        assertEquals(0, bp.getVersionCount());
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
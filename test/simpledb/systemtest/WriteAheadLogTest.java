@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.transaction.Transaction;
+
+/**
+ * Log records are appended to an in-memory buffer and numbered with LSNs;
+ * a page is written once the log is on disk up to the page's LSN.
+ */
+public class WriteAheadLogTest extends SimpleDbTestBase {
+    private static final int TABLES = 8;
+
+    @After public void tearDown() {
+        Database.unbind();
+    }
+
+    private static List<HeapFile> createTables(int n) throws Exception {
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < n; i++) tables.add(SystemTestUtil.createRandomHeapFile(2, 0, null, null));
+        return tables;
+    }
+
+    /**
+     * Records stay in the log buffer until the log is forced.
+     */
+    @Test public void recordsAreBuffered() throws Exception {
+        File file = File.createTempFile("simpledb-log", ".tmp");
+        file.deleteOnExit();
+        Database.bind(Database.create(new BufferPool(BufferPool.DEFAULT_PAGES), file));
+        LogFile log = Database.getLogFile();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+
+        Transaction t = new Transaction();
+        t.start();
+        long length = file.length();
+        long lsn = log.getCurrentLSN();
+        Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+        Database.getBufferPool().flushPages(t.getId());
+        assertTrue(log.getCurrentLSN() > lsn);
+        // the update record was forced before the page was written
+        assertTrue(log.getFlushedLSN() > lsn);
+        assertTrue(file.length() > length);
+
+        length = file.length();
+        Transaction begun = new Transaction();
+        begun.start();
+        assertEquals(length, file.length());
+        long forces = log.getForceCount();
+        t.commit();
+        assertEquals(forces + 1, log.getForceCount());
+        assertTrue(file.length() > length);
+        begun.commit();
+    }
+
+    /**
+     * Flushing many dirty pages logs them all and then forces the log once
+     * instead of once per page.
+     */
+    @Test public void flushAllPagesForcesOnce() throws Exception {
+        LogFile log = Database.getLogFile();
+        List<HeapFile> tables = createTables(TABLES);
+        Transaction t = new Transaction();
+        t.start();
+        for (HeapFile f : tables) Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(1, 2));
+
+        log.resetStatistics();
+        Database.getBufferPool().flushAllPages();
+        assertEquals(TABLES, log.getUpdateRecordCount());
+        assertEquals(1, log.getForceCount());
+        System.out.printf("flushAllPages of %d dirty pages: %d log force%n", TABLES, log.getForceCount());
+
+        long lsn = 0;
+        for (HeapFile f : tables) {
+            Page p = Database.getBufferPool().getPage(t.getId(), new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+            // every page got its own record, and all of them are on disk
+            assertTrue(p.getPageLSN() != lsn);
+            assertTrue(p.getPageLSN() < log.getFlushedLSN());
+            lsn = p.getPageLSN();
+        }
+        // writing a page whose record is on disk doesn't force the log
+        log.forceTo(lsn);
+        assertEquals(1, log.getForceCount());
+        t.commit();
+    }
+
+    /**
+     * LSNs keep increasing when a checkpoint truncates the log.
+     */
+    @Test public void lsnsSurviveTruncation() throws Exception {
+        LogFile log = Database.getLogFile();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        List<Long> lsns = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(i, 2));
+            Page p = Database.getBufferPool().getPage(t.getId(), new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+            t.commit();
+            lsns.add(p.getPageLSN());
+            long before = log.getCurrentLSN();
+            log.logCheckpoint();
+            assertTrue(log.getCurrentLSN() > before);
+            assertEquals(log.getCurrentLSN(), log.getFlushedLSN());
+        }
+        for (int i = 1; i < lsns.size(); i++) assertTrue(lsns.toString(), lsns.get(i) > lsns.get(i - 1));
+
+        // the committed rows are on disk
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(f, Arrays.asList(Arrays.asList(0, 0), Arrays.asList(1, 1), Arrays.asList(2, 2)));
+    }
+
+    /**
+     * Make test compatible with older version of ant.
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WriteAheadLogTest.class);
+    }
+}